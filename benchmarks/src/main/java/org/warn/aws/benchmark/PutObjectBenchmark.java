@@ -0,0 +1,191 @@
+package org.warn.aws.benchmark;
+
+import com.amazonaws.regions.Regions;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.warn.aws.s3.client.S3ClientWrapper;
+import org.warn.aws.s3.metrics.LatencyHistogram;
+import org.warn.aws.s3.model.S3TransferOptions;
+import org.warn.aws.util.Constants;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Uploads a generated data set through {@link S3ClientWrapper#putObject} against an in-process {@link S3StandIn},
+ * as a directory, as a list, or one file of the set on its own. The single-shot mode reports seconds per upload;
+ * the objects and bytes counters turn that into objects/s and MB/s, and the latency counters give the p50 and p99 of
+ * the objects in the upload, from the client's own metrics. Run with {@code -prof gc} to report the allocation rate.
+ */
+@State( Scope.Benchmark )
+@Fork( value = 1, jvmArgsAppend = { "-Xmx4g" } )
+@Warmup( iterations = 1 )
+@Measurement( iterations = 3 )
+public class PutObjectBenchmark {
+
+    private static final String BUCKET_NAME = "benchmark-bucket";
+    private static final int THREADS = 20;
+
+    /**
+     * File-size distribution as size x count.
+     */
+    @Param( { "1KB x 100000", "64KB x 10000", "1MB x 1000", "100MB x 10", "5GB x 1" } )
+    public String distribution;
+
+    @Param( { "0" } )
+    public long latencyMillis;
+
+    @Param( { "0" } )
+    public long bandwidthMbps;
+
+    private S3StandIn standIn;
+    private Path dataDir;
+    private Path listFile;
+    private Path firstFile;
+    private long fileSize;
+    private int fileCount;
+    private ExecutorService executorService;
+    private S3ClientWrapper s3ClientWrapper;
+
+    /**
+     * Counters of one invocation. The latencies are those of the invocation's objects, so they are set rather than
+     * added to.
+     */
+    @AuxCounters( AuxCounters.Type.EVENTS )
+    @State( Scope.Thread )
+    public static class TransferCounters {
+        public long objects;
+        public long bytes;
+        public double p50LatencyMillis;
+        public double p99LatencyMillis;
+    }
+
+    @Setup( Level.Trial )
+    public void setUpTrial() throws IOException {
+        String[] parts = distribution.split( "x" );
+        fileSize = parseSize( parts[0].trim() );
+        fileCount = Integer.parseInt( parts[1].trim() );
+
+        dataDir = Files.createTempDirectory( "aws-tools-benchmark" );
+        // keep the journal, index and error logs of the benchmark runs out of the real home directory
+        System.setProperty( "user.home", dataDir.toString() );
+        Path filesDir = Files.createDirectories( dataDir.resolve( "data" ) );
+        listFile = dataDir.resolve( "files.txt" );
+        firstFile = filesDir.resolve( String.format( "file-%07d.bin", 0 ) );
+        try( Writer list = Files.newBufferedWriter( listFile, StandardCharsets.UTF_8 ) ) {
+            for( int i = 0; i < fileCount; i++ ) {
+                Path file = filesDir.resolve( String.format( "file-%07d.bin", i ) );
+                writeFile( file, fileSize );
+                list.write( file.toString() + "\n" );
+            }
+        }
+        standIn = new S3StandIn( latencyMillis, bandwidthMbps );
+    }
+
+    @Setup( Level.Invocation )
+    public void setUpInvocation() {
+        // a fresh client per invocation, so every run pays for its own connections like a single CLI run
+        executorService = Executors.newFixedThreadPool( THREADS );
+        s3ClientWrapper = new S3ClientWrapper( "benchmark", "benchmark", Regions.US_EAST_1, standIn.getEndpoint(),
+                executorService );
+    }
+
+    @TearDown( Level.Invocation )
+    public void tearDownInvocation() throws InterruptedException {
+        s3ClientWrapper.shutdown();
+        executorService.shutdownNow();
+        executorService.awaitTermination( 1, TimeUnit.MINUTES );
+    }
+
+    @TearDown( Level.Trial )
+    public void tearDownTrial() throws IOException {
+        standIn.close();
+        try( Stream<Path> paths = Files.walk( dataDir ) ) {
+            paths.sorted( Comparator.reverseOrder() ).forEach( path -> path.toFile().delete() );
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode( Mode.SingleShotTime )
+    @OutputTimeUnit( TimeUnit.SECONDS )
+    public void directory( TransferCounters counters ) {
+        s3ClientWrapper.putObject( BUCKET_NAME, dataDir.resolve( "data" ).toString(), "benchmark",
+                Constants.OPTION_DIRECTORY, new S3TransferOptions() );
+        count( counters, fileCount );
+    }
+
+    @Benchmark
+    @BenchmarkMode( Mode.SingleShotTime )
+    @OutputTimeUnit( TimeUnit.SECONDS )
+    public void list( TransferCounters counters ) {
+        s3ClientWrapper.putObject( BUCKET_NAME, listFile.toString(), "benchmark", Constants.OPTION_LIST,
+                new S3TransferOptions() );
+        count( counters, fileCount );
+    }
+
+    @Benchmark
+    @BenchmarkMode( Mode.SingleShotTime )
+    @OutputTimeUnit( TimeUnit.SECONDS )
+    public void file( TransferCounters counters ) {
+        s3ClientWrapper.putObject( BUCKET_NAME, firstFile.toString(), "benchmark", Constants.OPTION_FILE,
+                new S3TransferOptions() );
+        count( counters, 1 );
+    }
+
+    private void count( TransferCounters counters, int objects ) {
+        counters.objects += objects;
+        counters.bytes += objects * fileSize;
+        LatencyHistogram objectLatency = s3ClientWrapper.getMetrics().getObjectLatency();
+        counters.p50LatencyMillis = objectLatency.getPercentileMicros( 0.5 ) / 1000.0;
+        counters.p99LatencyMillis = objectLatency.getPercentileMicros( 0.99 ) / 1000.0;
+    }
+
+    /**
+     * Writes a file of the given size. Files above 64 MB are created sparse, so generating the largest data sets
+     * does not take longer than uploading them.
+     */
+    private static void writeFile( Path file, long size ) throws IOException {
+        if( size > 64L * 1024 * 1024 ) {
+            try( RandomAccessFile randomAccessFile = new RandomAccessFile( file.toFile(), "rw" ) ) {
+                randomAccessFile.setLength( size );
+            }
+            return;
+        }
+        byte[] content = new byte[ (int) size ];
+        ThreadLocalRandom.current().nextBytes( content );
+        Files.write( file, content );
+    }
+
+    private static long parseSize( String size ) {
+        String unit = size.replaceAll( "[0-9]", "" );
+        long value = Long.parseLong( size.replaceAll( "[^0-9]", "" ) );
+        switch( unit ) {
+            case "KB": return value * 1024;
+            case "MB": return value * 1024 * 1024;
+            case "GB": return value * 1024 * 1024 * 1024;
+            default: return value;
+        }
+    }
+}
@@ -0,0 +1,445 @@
+package org.warn.aws.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Minimal in-process stand-in for the S3 object upload API: PutObject, CopyObject, HeadObject, the multipart upload
+ * calls including ListParts, ListObjectsV2 with prefix, delimiter, StartAfter and continuation tokens, and
+ * DeleteObjects. Request bodies are read, hashed for the ETag the SDK validates, and discarded; only the ETag and size
+ * of each object are kept. Every request can be delayed by a fixed latency, and all request bodies share one bandwidth
+ * budget, so the stand-in behaves like a remote endpoint on a link of the given speed.
+ */
+public class S3StandIn implements AutoCloseable {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final String STREAMING_PAYLOAD_PREFIX = "STREAMING-";
+    private static final int MAX_KEYS = 1000;
+
+    private final HttpServer server;
+    private final ExecutorService executorService;
+    private final long latencyMillis;
+    private final double nanosPerByte;
+    private final AtomicLong bandwidthClock = new AtomicLong();
+    private final Map<String, Map<Integer, StoredObject>> multipartUploads = new ConcurrentHashMap<>();
+    private final NavigableMap<String, StoredObject> objects = new ConcurrentSkipListMap<>();
+
+    private static class StoredObject {
+        private final String eTag;
+        private final long size;
+
+        private StoredObject( String eTag, long size ) {
+            this.eTag = eTag;
+            this.size = size;
+        }
+    }
+
+    /**
+     * @param latencyMillis   delay added before every response
+     * @param bandwidthMbps   shared limit for all request bodies, or 0 for unlimited
+     */
+    public S3StandIn( long latencyMillis, long bandwidthMbps ) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.nanosPerByte = bandwidthMbps > 0 ? 8_000.0 / bandwidthMbps : 0; // 1 Mbps = 10^6 bits/s
+        this.server = HttpServer.create( new InetSocketAddress( "127.0.0.1", 0 ), 1024 );
+        this.executorService = Executors.newCachedThreadPool();
+        server.setExecutor( executorService );
+        server.createContext( "/", this::handle );
+        server.start();
+    }
+
+    /**
+     * Stores an object without uploading it, for benchmarks that list or delete many objects.
+     */
+    public void addObject( String bucket, String key, long size ) {
+        String eTag = toHex( newMd5().digest( key.getBytes( StandardCharsets.UTF_8 ) ) );
+        objects.put( bucket + "/" + key, new StoredObject( eTag, size ) );
+    }
+
+    public String getEndpoint() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop( 0 );
+        executorService.shutdownNow();
+    }
+
+    private void handle( HttpExchange exchange ) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            String query = exchange.getRequestURI().getRawQuery();
+            query = query == null ? "" : query;
+            String[] path = exchange.getRequestURI().getPath().substring( 1 ).split( "/", 2 );
+            String bucket = path[0];
+            String key = path.length > 1 ? path[1] : "";
+
+            String copySource = exchange.getRequestHeaders().getFirst( "x-amz-copy-source" );
+            if( "PUT".equals( method ) && copySource != null ) {
+                consumeBody( exchange );
+                StoredObject source = objects.get( URLDecoder.decode( copySource, StandardCharsets.UTF_8 )
+                        .replaceFirst( "^/", "" ) );
+                delay();
+                if( source == null ) {
+                    exchange.sendResponseHeaders( 404, -1 );
+                    return;
+                }
+                objects.put( bucket + "/" + key, source );
+                sendXml( exchange, "<CopyObjectResult><LastModified>2020-01-01T00:00:00.000Z</LastModified><ETag>\"" +
+                        source.eTag + "\"</ETag></CopyObjectResult>" );
+
+            } else if( "PUT".equals( method ) ) {
+                StoredObject body = consumeBody( exchange );
+                String uploadId = getQueryParameter( query, "uploadId" );
+                if( uploadId != null ) {
+                    multipartUploads.computeIfAbsent( uploadId, id -> new ConcurrentSkipListMap<>() )
+                            .put( Integer.parseInt( getQueryParameter( query, "partNumber" ) ), body );
+                } else {
+                    objects.put( bucket + "/" + key, body );
+                }
+                delay();
+                exchange.getResponseHeaders().add( "ETag", "\"" + body.eTag + "\"" );
+                exchange.sendResponseHeaders( 200, -1 );
+
+            } else if( "HEAD".equals( method ) ) {
+                StoredObject object = objects.get( bucket + "/" + key );
+                delay();
+                if( object == null ) {
+                    exchange.sendResponseHeaders( 404, -1 );
+                    return;
+                }
+                exchange.getResponseHeaders().add( "ETag", "\"" + object.eTag + "\"" );
+                exchange.getResponseHeaders().add( "Content-Length", Long.toString( object.size ) );
+                // the JDK server drops the connection after a HEAD response, so clients must not reuse it
+                exchange.getResponseHeaders().add( "Connection", "close" );
+                exchange.sendResponseHeaders( 200, -1 );
+
+            } else if( "POST".equals( method ) && hasQueryParameter( query, "delete" ) ) {
+                deleteObjects( bucket, readBody( exchange ) );
+                delay();
+                sendXml( exchange, "<DeleteResult></DeleteResult>" ); // quiet mode, no errors
+
+            } else if( "POST".equals( method ) && query.contains( "uploads" ) ) {
+                consumeBody( exchange );
+                String uploadId = UUID.randomUUID().toString();
+                multipartUploads.put( uploadId, new ConcurrentSkipListMap<>() );
+                delay();
+                sendXml( exchange, "<InitiateMultipartUploadResult><Bucket>" + bucket + "</Bucket><Key>" + key +
+                        "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>" );
+
+            } else if( "POST".equals( method ) && query.contains( "uploadId" ) ) {
+                consumeBody( exchange );
+                Map<Integer, StoredObject> parts = multipartUploads.remove( getQueryParameter( query, "uploadId" ) );
+                String eTag = getMultipartETag( parts );
+                long size = parts == null ? 0 : parts.values().stream().mapToLong( part -> part.size ).sum();
+                objects.put( bucket + "/" + key, new StoredObject( eTag, size ) );
+                delay();
+                sendXml( exchange, "<CompleteMultipartUploadResult><Location>" + getEndpoint() + "/" + bucket + "/" +
+                        key + "</Location><Bucket>" + bucket + "</Bucket><Key>" + key + "</Key><ETag>\"" + eTag +
+                        "\"</ETag></CompleteMultipartUploadResult>" );
+
+            } else if( "GET".equals( method ) && query.contains( "uploadId" ) ) {
+                delay();
+                sendXml( exchange, listParts( bucket, key, getQueryParameter( query, "uploadId" ) ) );
+
+            } else if( "GET".equals( method ) && query.contains( "list-type=2" ) ) {
+                delay();
+                sendXml( exchange, listObjects( bucket, query ) );
+
+            } else if( "DELETE".equals( method ) ) {
+                String uploadId = getQueryParameter( query, "uploadId" );
+                if( uploadId != null )
+                    multipartUploads.remove( uploadId );
+                delay();
+                exchange.sendResponseHeaders( 204, -1 );
+
+            } else {
+                exchange.sendResponseHeaders( 501, -1 );
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Lists up to 1000 keys and common prefixes in key order, after the continuation token or StartAfter key. The
+     * continuation token is the last key returned, or the last common prefix marked with a leading '/'.
+     */
+    private String listObjects( String bucket, String query ) {
+        String prefix = getDecodedQueryParameter( query, "prefix", "" );
+        String delimiter = getDecodedQueryParameter( query, "delimiter", null );
+        String token = getDecodedQueryParameter( query, "continuation-token", null );
+        String skippedPrefix = token != null && token.startsWith( "/" ) ? token.substring( 1 ) : null;
+        String after = token != null ? ( skippedPrefix != null ? skippedPrefix : token ) :
+                getDecodedQueryParameter( query, "start-after", "" );
+        boolean urlEncoded = "url".equals( getQueryParameter( query, "encoding-type" ) );
+        String bucketPrefix = bucket + "/";
+
+        StringBuilder xml = new StringBuilder();
+        int keyCount = 0;
+        String lastReturned = null;
+        boolean truncated = false;
+        String commonPrefix = null;
+        String from = bucketPrefix + ( after.compareTo( prefix ) > 0 ? after : prefix );
+        boolean inclusive = !from.equals( bucketPrefix + after );
+        for( Map.Entry<String, StoredObject> entry: objects.tailMap( from, inclusive ).entrySet() ) {
+            if( !entry.getKey().startsWith( bucketPrefix + prefix ) )
+                break;
+            String key = entry.getKey().substring( bucketPrefix.length() );
+            if( skippedPrefix != null && key.startsWith( skippedPrefix ) )
+                continue; // within the common prefix the previous page ended with
+            int delimiterIndex = delimiter == null ? -1 : key.indexOf( delimiter, prefix.length() );
+            if( delimiterIndex >= 0 ) {
+                String keyPrefix = key.substring( 0, delimiterIndex + delimiter.length() );
+                if( keyPrefix.equals( commonPrefix ) )
+                    continue;
+                if( keyCount == MAX_KEYS ) {
+                    truncated = true;
+                    break;
+                }
+                commonPrefix = keyPrefix;
+                xml.append( "<CommonPrefixes><Prefix>" ).append( encode( keyPrefix, urlEncoded ) )
+                        .append( "</Prefix></CommonPrefixes>" );
+                lastReturned = "/" + keyPrefix;
+            } else {
+                if( keyCount == MAX_KEYS ) {
+                    truncated = true;
+                    break;
+                }
+                xml.append( "<Contents><Key>" ).append( encode( key, urlEncoded ) )
+                        .append( "</Key><LastModified>2020-01-01T00:00:00.000Z</LastModified><ETag>\"" )
+                        .append( entry.getValue().eTag ).append( "\"</ETag><Size>" ).append( entry.getValue().size )
+                        .append( "</Size><StorageClass>STANDARD</StorageClass></Contents>" );
+                lastReturned = key;
+            }
+            keyCount++;
+        }
+        xml.insert( 0, "<ListBucketResult><Name>" + bucket + "</Name><Prefix>" + encode( prefix, urlEncoded ) +
+                "</Prefix><KeyCount>" + keyCount + "</KeyCount><MaxKeys>" + MAX_KEYS + "</MaxKeys><IsTruncated>" +
+                truncated + "</IsTruncated>" + ( urlEncoded ? "<EncodingType>url</EncodingType>" : "" ) +
+                ( truncated ? "<NextContinuationToken>" + encode( lastReturned, false ) + "</NextContinuationToken>"
+                        : "" ) );
+        return xml.append( "</ListBucketResult>" ).toString();
+    }
+
+    private static String encode( String value, boolean urlEncoded ) {
+        if( urlEncoded )
+            return URLEncoder.encode( value, StandardCharsets.UTF_8 ).replace( "+", "%20" );
+        return value.replace( "&", "&amp;" ).replace( "<", "&lt;" ).replace( ">", "&gt;" );
+    }
+
+    private static String getDecodedQueryParameter( String query, String name, String defaultValue ) {
+        String value = getQueryParameter( query, name );
+        return value == null ? defaultValue : URLDecoder.decode( value, StandardCharsets.UTF_8 );
+    }
+
+    private String listParts( String bucket, String key, String uploadId ) {
+        StringBuilder xml = new StringBuilder( "<ListPartsResult><Bucket>" ).append( bucket ).append( "</Bucket><Key>" )
+                .append( key ).append( "</Key><UploadId>" ).append( uploadId )
+                .append( "</UploadId><IsTruncated>false</IsTruncated>" );
+        multipartUploads.getOrDefault( uploadId, Map.of() ).forEach( ( partNumber, part ) ->
+                xml.append( "<Part><PartNumber>" ).append( partNumber ).append( "</PartNumber><ETag>\"" )
+                        .append( part.eTag ).append( "\"</ETag></Part>" ) );
+        return xml.append( "</ListPartsResult>" ).toString();
+    }
+
+    /**
+     * The ETag S3 reports for a multipart upload: the MD5 of the concatenated part MD5s, followed by the part count.
+     */
+    private static String getMultipartETag( Map<Integer, StoredObject> parts ) {
+        MessageDigest md5 = newMd5();
+        if( parts == null )
+            return toHex( md5.digest() ) + "-0";
+        for( StoredObject part: parts.values() ) {
+            String partETag = part.eTag;
+            for( int i = 0; i < partETag.length(); i += 2 )
+                md5.update( (byte) Integer.parseInt( partETag.substring( i, i + 2 ), 16 ) );
+        }
+        return toHex( md5.digest() ) + "-" + parts.size();
+    }
+
+    private static String getQueryParameter( String query, String name ) {
+        for( String parameter: query.split( "&" ) ) {
+            int separator = parameter.indexOf( '=' );
+            if( separator > 0 && parameter.substring( 0, separator ).equals( name ) )
+                return parameter.substring( separator + 1 );
+        }
+        return null;
+    }
+
+    private static boolean hasQueryParameter( String query, String name ) {
+        for( String parameter: query.split( "&" ) ) {
+            if( parameter.equals( name ) || parameter.startsWith( name + "=" ) )
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes the objects named in a DeleteObjects request body.
+     */
+    private void deleteObjects( String bucket, String body ) {
+        int start;
+        int end = 0;
+        while( ( start = body.indexOf( "<Key>", end ) ) >= 0 ) {
+            end = body.indexOf( "</Key>", start );
+            objects.remove( bucket + "/" + unescapeXml( body.substring( start + "<Key>".length(), end ) ) );
+        }
+    }
+
+    private static String unescapeXml( String value ) {
+        StringBuilder text = new StringBuilder( value.length() );
+        for( int i = 0; i < value.length(); i++ ) {
+            char c = value.charAt( i );
+            int end = value.indexOf( ';', i );
+            if( c != '&' || end < 0 ) {
+                text.append( c );
+                continue;
+            }
+            String entity = value.substring( i + 1, end );
+            if( entity.startsWith( "#x" ) )
+                text.appendCodePoint( Integer.parseInt( entity.substring( 2 ), 16 ) );
+            else if( entity.startsWith( "#" ) )
+                text.appendCodePoint( Integer.parseInt( entity.substring( 1 ) ) );
+            else
+                text.append( "amp".equals( entity ) ? '&' : "lt".equals( entity ) ? '<' : "gt".equals( entity ) ? '>' :
+                        "quot".equals( entity ) ? '"' : '\'' );
+            i = end;
+        }
+        return text.toString();
+    }
+
+    private static String readBody( HttpExchange exchange ) throws IOException {
+        try( InputStream in = exchange.getRequestBody() ) {
+            return new String( in.readAllBytes(), StandardCharsets.UTF_8 );
+        }
+    }
+
+    /**
+     * Reads the request body, decoding the SDK's aws-chunked signing format when used, and returns its MD5 in hex
+     * and its size.
+     */
+    private StoredObject consumeBody( HttpExchange exchange ) throws IOException {
+        MessageDigest md5 = newMd5();
+        long size = 0;
+        byte[] buffer = new byte[ READ_BUFFER_SIZE ];
+        String contentSha256 = exchange.getRequestHeaders().getFirst( "x-amz-content-sha256" );
+        try( InputStream in = exchange.getRequestBody() ) {
+            if( contentSha256 != null && contentSha256.startsWith( STREAMING_PAYLOAD_PREFIX ) ) {
+                long chunkSize;
+                while( ( chunkSize = readChunkHeader( in ) ) > 0 ) {
+                    readFully( in, md5, buffer, chunkSize );
+                    size += chunkSize;
+                    readLine( in ); // CRLF after the chunk data
+                }
+            } else {
+                int read;
+                while( ( read = in.read( buffer ) ) > 0 ) {
+                    md5.update( buffer, 0, read );
+                    throttle( read );
+                    size += read;
+                }
+            }
+        }
+        return new StoredObject( toHex( md5.digest() ), size );
+    }
+
+    private void readFully( InputStream in, MessageDigest md5, byte[] buffer, long length ) throws IOException {
+        long remaining = length;
+        while( remaining > 0 ) {
+            int read = in.read( buffer, 0, (int) Math.min( buffer.length, remaining ) );
+            if( read < 0 )
+                throw new IOException( "Unexpected end of chunked body" );
+            md5.update( buffer, 0, read );
+            throttle( read );
+            remaining -= read;
+        }
+    }
+
+    private long readChunkHeader( InputStream in ) throws IOException {
+        String header = readLine( in );
+        int extension = header.indexOf( ';' );
+        return Long.parseLong( extension < 0 ? header : header.substring( 0, extension ), 16 );
+    }
+
+    private String readLine( InputStream in ) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while( ( b = in.read() ) >= 0 && b != '\n' ) {
+            if( b != '\r' )
+                line.write( b );
+        }
+        return line.toString( StandardCharsets.US_ASCII );
+    }
+
+    /**
+     * Reserves transfer time for the given number of bytes on the shared bandwidth clock and sleeps until it is due.
+     */
+    private void throttle( int bytes ) {
+        if( nanosPerByte == 0 )
+            return;
+        long cost = (long) ( bytes * nanosPerByte );
+        long due = bandwidthClock.accumulateAndGet( cost, ( clock, c ) -> Math.max( clock, System.nanoTime() ) + c );
+        long wait = due - System.nanoTime();
+        if( wait > 0 )
+            sleep( TimeUnit.NANOSECONDS.toMillis( wait ), (int) ( wait % 1_000_000 ) );
+    }
+
+    private void delay() {
+        if( latencyMillis > 0 )
+            sleep( latencyMillis, 0 );
+    }
+
+    private static void sleep( long millis, int nanos ) {
+        try {
+            Thread.sleep( millis, nanos );
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sendXml( HttpExchange exchange, String xml ) throws IOException {
+        byte[] body = ( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + xml ).getBytes( StandardCharsets.UTF_8 );
+        exchange.getResponseHeaders().add( "Content-Type", "application/xml" );
+        exchange.sendResponseHeaders( 200, body.length );
+        try( OutputStream out = exchange.getResponseBody() ) {
+            out.write( body );
+        }
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance( "MD5" );
+        } catch( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    private static String toHex( byte[] bytes ) {
+        StringBuilder hex = new StringBuilder( bytes.length * 2 );
+        for( byte b: bytes )
+            hex.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) ).append( Character.forDigit( b & 0xf, 16 ) );
+        return hex.toString();
+    }
+}
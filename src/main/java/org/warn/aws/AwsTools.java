@@ -2,30 +2,50 @@ package org.warn.aws;
 
 import com.amazonaws.regions.Regions;
 import lombok.extern.slf4j.Slf4j;
+import org.warn.aws.s3.client.ExecutionEngine;
 import org.warn.aws.s3.client.S3ClientWrapper;
+import org.warn.aws.s3.metrics.JournalReport;
+import org.warn.aws.s3.model.S3TransferOptions;
+import org.warn.aws.util.BandwidthSchedule;
+import org.warn.aws.util.CommandFailedException;
 import org.warn.aws.util.ConfigConstants;
 import org.warn.aws.util.Constants;
+import org.warn.aws.util.ErrorHandler;
+import org.warn.aws.util.OptionsUtil;
 import org.warn.aws.util.ValidationsUtil;
 import org.warn.utils.config.PropertiesHelper;
 import org.warn.utils.config.UserConfig;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 @Slf4j
 public class AwsTools {
 
-    private static final int MAX_CONCURRENT_TASKS = 20;
-    private static final ExecutorService executorService = Executors.newFixedThreadPool( MAX_CONCURRENT_TASKS );
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 60;
+
     private static final UserConfig userConfig = new UserConfig( null,
             ConfigConstants.AWSTOOLS_DIR_NAME, ConfigConstants.CONFIG_FILE);
 
     public static void main( String [] args ) throws InterruptedException {
+        Map<String, String> flags = OptionsUtil.getFlags( args );
+        args = OptionsUtil.getPositionalArgs( args );
+
         // initial argument length check
         ValidationsUtil.checkArgsLength( args.length, 1 );
 
+        ExecutionEngine executionEngine = getExecutionEngine( flags );
+        ExecutorService executorService = executionEngine.getExecutorService();
+
         try {
             String currentAppVersion = PropertiesHelper
                     .loadFromResourcesDir( ConfigConstants.APP_PROPERTY_FILE_NAME )
@@ -55,6 +75,16 @@ public class AwsTools {
                 scanner.close();
                 System.exit(1);
             }
+            if( Constants.COMMAND_REPORT.equals( command ) ) {
+                ValidationsUtil.checkArgsLength( args.length, 2 );
+                Path journalFile = Paths.get( args[1] );
+                try {
+                    new JournalReport( journalFile ).print();
+                } catch( IOException e ) {
+                    ErrorHandler.handleIOException( e, journalFile );
+                }
+                return;
+            }
             accessKey = userConfig.getProperty( ConfigConstants.PROP_ACCESS_KEY );
             secretKey = userConfig.getProperty( ConfigConstants.PROP_SECRET_KEY );
             region = userConfig.getProperty( ConfigConstants.PROP_REGION );
@@ -63,30 +93,36 @@ public class AwsTools {
             ValidationsUtil.checkIfCredentialsAreProvided( accessKey, secretKey, region );
 
             if (Constants.COMMAND_S3.equals(command)) {
-                ValidationsUtil.checkArgsLength(args.length, 5);
-
-                String s3Operation = args[1];
-                String bucketName = args[2];
-                ValidationsUtil.validateOperation(s3Operation);
-                ValidationsUtil.checkIfBucketNameIsProvided(bucketName);
-
                 S3ClientWrapper s3ClientWrapper = new S3ClientWrapper( accessKey, secretKey, Regions.fromName(region),
-                        executorService );
-
-                if( Constants.OPERATION_PUT.equals( s3Operation ) ) {
-                    String optionType = args[3];
-                    ValidationsUtil.validateOption( optionType );
-
-                    String localFilePath = args[4];
-                    String s3PathPrefix = null;
-                    if( args.length > 5 )
-                        s3PathPrefix = args[5];
-
-                    log.info("Initializing S3 {} operation - BucketName={}, s3PathPrefix={}",
-                            s3Operation, bucketName, s3PathPrefix );
-                    log.info("Option={}, fileOrDirectory={}", optionType, localFilePath);
+                        null, executionEngine );
+                try {
+                    runS3Command( s3ClientWrapper, args, flags );
+                } catch( CommandFailedException e ) {
+                    // thrown instead of exiting by a command run until stopped, once its shutdown hook is removed
+                    System.err.println();
+                    System.err.println( e.getMessage() );
+                    System.exit(1);
+                } finally {
+                    s3ClientWrapper.shutdown();
+                }
 
-                    s3ClientWrapper.putObject( bucketName, localFilePath, s3PathPrefix, optionType );
+            } else if( Constants.COMMAND_BATCH.equals( command ) || Constants.COMMAND_DAEMON.equals( command ) ) {
+                S3ClientWrapper s3ClientWrapper = new S3ClientWrapper( accessKey, secretKey, Regions.fromName(region),
+                        null, executionEngine );
+                BatchRunner batchRunner = new BatchRunner( s3ClientWrapper, flags );
+                Path path = args.length > 1 ? Paths.get( args[1] ) :
+                        Paths.get( System.getProperty( "user.home" ), ConfigConstants.JOBS_DIR );
+                try {
+                    if( Constants.COMMAND_BATCH.equals( command ) ) {
+                        ValidationsUtil.checkArgsLength( args.length, 2 );
+                        batchRunner.runFile( path );
+                    } else {
+                        runUntilStopped( () -> batchRunner.watch( path ) );
+                    }
+                } catch( IOException e ) {
+                    ErrorHandler.handleIOException( e, path );
+                } finally {
+                    s3ClientWrapper.shutdown();
                 }
 
             } else {
@@ -99,4 +135,279 @@ public class AwsTools {
         }
 
     }
+
+    /**
+     * Runs one s3 command, from the command line or from a batch, on the given client. The client is left open.
+     */
+    static void runS3Command( S3ClientWrapper s3ClientWrapper, String[] args, Map<String, String> flags ) {
+        ValidationsUtil.checkArgsLength(args.length, 3);
+
+        String s3Operation = args[1];
+        ValidationsUtil.validateOperation(s3Operation);
+
+        if( Constants.OPERATION_RETRY.equals( s3Operation ) ) {
+            // buckets and keys are taken from the failed uploads CSVs
+            List<String> failureLogPaths = Arrays.asList( args ).subList( 2, args.length );
+            log.info("Initializing S3 {} operation - failedUploadsCsv={}", s3Operation, failureLogPaths);
+
+            s3ClientWrapper.retryFailedUploads( failureLogPaths, getTransferOptions( flags ) );
+            return;
+        }
+
+        if( Constants.OPERATION_LIST.equals( s3Operation ) ) {
+            ValidationsUtil.checkArgsLength( args.length, 4 );
+            String bucketName = args[2];
+            ValidationsUtil.checkIfBucketNameIsProvided( bucketName );
+            String outputFilePath = args[3];
+            String s3PathPrefix = null;
+            if( args.length > 4 )
+                s3PathPrefix = args[4];
+
+            log.info("Initializing S3 {} operation - BucketName={}, s3PathPrefix={}",
+                    s3Operation, bucketName, s3PathPrefix );
+            log.info("Output={}", outputFilePath);
+
+            S3TransferOptions transferOptions = getTransferOptions( flags );
+            if( transferOptions.getCompression() != null &&
+                    !Constants.COMPRESSION_GZIP.equals( transferOptions.getCompression() ) )
+                ValidationsUtil.handleUnsupported( Constants.MSG_UNSUPPORTED_OPTION, "--" + Constants.FLAG_COMPRESS +
+                        "=" + transferOptions.getCompression() + " with " + s3Operation );
+            s3ClientWrapper.listObjects( bucketName, s3PathPrefix, outputFilePath, transferOptions );
+            return;
+        }
+
+        ValidationsUtil.checkArgsLength(args.length, 5);
+        String bucketName = args[2];
+        ValidationsUtil.checkIfBucketNameIsProvided(bucketName);
+
+        if( Constants.OPERATION_PUT.equals( s3Operation ) ) {
+            String optionType = args[3];
+            ValidationsUtil.validateOption( optionType );
+
+            String localFilePath = args[4];
+            String s3PathPrefix = null;
+            if( args.length > 5 )
+                s3PathPrefix = args[5];
+
+            log.info("Initializing S3 {} operation - BucketName={}, s3PathPrefix={}",
+                    s3Operation, bucketName, s3PathPrefix );
+            log.info("Option={}, fileOrDirectory={}", optionType, localFilePath);
+
+            S3TransferOptions transferOptions = getTransferOptions( flags );
+            if( !transferOptions.getFanOutDestinations().isEmpty() &&
+                    ( transferOptions.isPackSmallFiles() || transferOptions.getCompression() != null ) )
+                ValidationsUtil.handleUnsupported( Constants.MSG_UNSUPPORTED_OPTION, "--" + Constants.FLAG_FAN_OUT +
+                        " with --" + Constants.FLAG_PACK + " or --" + Constants.FLAG_COMPRESS );
+            if( transferOptions.isDeduplicate() && ( !Constants.OPTION_DIRECTORY.equals( optionType ) ||
+                    transferOptions.isPackSmallFiles() || transferOptions.getCompression() != null ||
+                    !transferOptions.getFanOutDestinations().isEmpty() ) )
+                ValidationsUtil.handleUnsupported( Constants.MSG_UNSUPPORTED_OPTION, "--" + Constants.FLAG_DEDUP +
+                        " is only supported in -d mode, without --" + Constants.FLAG_PACK + ", --" +
+                        Constants.FLAG_COMPRESS + " or --" + Constants.FLAG_FAN_OUT );
+            if( transferOptions.isPrune() && ( !Constants.OPTION_DIRECTORY.equals( optionType ) ||
+                    transferOptions.isPackSmallFiles() || transferOptions.getCompression() != null ||
+                    !transferOptions.getFanOutDestinations().isEmpty() ) )
+                ValidationsUtil.handleUnsupported( Constants.MSG_UNSUPPORTED_OPTION, "--" + Constants.FLAG_PRUNE +
+                        " is only supported in -d mode, without --" + Constants.FLAG_PACK + ", --" +
+                        Constants.FLAG_COMPRESS + " or --" + Constants.FLAG_FAN_OUT );
+            s3ClientWrapper.putObject( bucketName, localFilePath, s3PathPrefix, optionType, transferOptions );
+
+        } else if( Constants.OPERATION_SYNC.equals( s3Operation ) || Constants.OPERATION_WATCH.equals( s3Operation ) ) {
+            String optionType = args[3];
+            if( !Constants.OPTION_DIRECTORY.equals( optionType ) )
+                ValidationsUtil.handleUnsupported( Constants.MSG_UNSUPPORTED_OPTION, optionType );
+
+            String localFilePath = args[4];
+            String s3PathPrefix = args.length > 5 ? args[5] : null;
+
+            log.info("Initializing S3 {} operation - BucketName={}, s3PathPrefix={}",
+                    s3Operation, bucketName, s3PathPrefix );
+            log.info("Option={}, directory={}", optionType, localFilePath);
+
+            if( Constants.OPERATION_WATCH.equals( s3Operation ) ) {
+                S3TransferOptions transferOptions = getTransferOptions( flags );
+                runUntilStopped( () -> s3ClientWrapper.watchDirectory( bucketName, localFilePath, s3PathPrefix,
+                        transferOptions ) );
+            } else {
+                s3ClientWrapper.syncDirectory( bucketName, localFilePath, s3PathPrefix, getTransferOptions( flags ) );
+            }
+
+        } else if( Constants.OPERATION_DELETE.equals( s3Operation ) ) {
+            String optionType = args[3];
+            ValidationsUtil.validateOption( optionType );
+
+            String keyPrefixOrListing = args[4];
+
+            log.info("Initializing S3 {} operation - BucketName={}, keyPrefixOrListing={}",
+                    s3Operation, bucketName, keyPrefixOrListing );
+            log.info("Option={}", optionType);
+
+            S3TransferOptions transferOptions = getTransferOptions( flags );
+            if( Constants.OPTION_DIRECTORY.equals( optionType ) && keyPrefixOrListing.isEmpty() &&
+                    !transferOptions.isForce() )
+                ValidationsUtil.handleUnsupported( Constants.MSG_UNSUPPORTED_OPTION, "an empty prefix deletes every " +
+                        "object in the bucket; add --" + Constants.FLAG_FORCE + " to do that" );
+            s3ClientWrapper.deleteObjects( bucketName, keyPrefixOrListing, optionType, transferOptions );
+
+        } else if( Constants.OPERATION_GET.equals( s3Operation ) ) {
+            ValidationsUtil.checkArgsLength( args.length, 6 );
+            String optionType = args[3];
+            ValidationsUtil.validateOption( optionType );
+
+            String keyOrPrefix = args[4];
+            String localFilePath = args[5];
+
+            log.info("Initializing S3 {} operation - BucketName={}, keyOrPrefix={}",
+                    s3Operation, bucketName, keyOrPrefix );
+            log.info("Option={}, localPath={}", optionType, localFilePath);
+
+            s3ClientWrapper.getObject( bucketName, keyOrPrefix, localFilePath, optionType,
+                    getTransferOptions( flags ) );
+
+        } else {
+            ValidationsUtil.handleUnsupported( Constants.MSG_UNSUPPORTED_OPERATION, s3Operation );
+        }
+    }
+
+    /**
+     * A command that runs until the process is stopped.
+     */
+    private interface StoppableCommand<E extends Exception> {
+        void run() throws E, InterruptedException;
+    }
+
+    /**
+     * Runs a command until the process is stopped. On Ctrl+C or SIGTERM a shutdown hook interrupts this thread and
+     * waits for it, so the command pauses its in-flight multipart uploads and closes its journals before the JVM
+     * exits.
+     */
+    private static <E extends Exception> void runUntilStopped( StoppableCommand<E> command ) throws E {
+        Thread mainThread = Thread.currentThread();
+        Thread shutdownHook = new Thread( () -> {
+            log.info("Stopping - waiting up to {} s for the current command to finish", SHUTDOWN_TIMEOUT_SECONDS);
+            mainThread.interrupt();
+            try {
+                mainThread.join( TimeUnit.SECONDS.toMillis( SHUTDOWN_TIMEOUT_SECONDS ) );
+            } catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+        }, "shutdown-hook" );
+        Runtime.getRuntime().addShutdownHook( shutdownHook );
+
+        // System.exit would wait for the hook, and the hook for this thread, so errors are thrown instead
+        boolean exitOnError = ValidationsUtil.isExitOnError();
+        ValidationsUtil.setExitOnError( false );
+        try {
+            command.run();
+        } catch( InterruptedException e ) {
+            log.info("Stopped");
+        } finally {
+            ValidationsUtil.setExitOnError( exitOnError );
+            try {
+                Runtime.getRuntime().removeShutdownHook( shutdownHook );
+            } catch( IllegalStateException e ) {
+                // the process is being stopped; clear the interrupt so that the rest of the teardown runs
+                Thread.interrupted();
+            }
+        }
+    }
+
+    private static S3TransferOptions getTransferOptions( Map<String, String> flags ) {
+        S3TransferOptions transferOptions = new S3TransferOptions();
+        transferOptions.setMaxInFlightUploads( OptionsUtil.getIntFlag( flags, Constants.FLAG_CONCURRENCY,
+                transferOptions.getMaxInFlightUploads() ) );
+        transferOptions.setAdaptive( OptionsUtil.getBooleanFlag( flags, Constants.FLAG_ADAPTIVE ) );
+        transferOptions.setReconcile( OptionsUtil.getBooleanFlag( flags, Constants.FLAG_RECONCILE ) );
+        transferOptions.setResume( OptionsUtil.getBooleanFlag( flags, Constants.FLAG_RESUME ) );
+        transferOptions.setExportMetrics( OptionsUtil.getBooleanFlag( flags, Constants.FLAG_METRICS ) );
+        transferOptions.setMetricsInterval( OptionsUtil.getIntFlag( flags, Constants.FLAG_METRICS_INTERVAL,
+                transferOptions.getMetricsInterval() ) );
+        transferOptions.setPackSmallFiles( OptionsUtil.getBooleanFlag( flags, Constants.FLAG_PACK ) );
+        transferOptions.setPackTargetSize( OptionsUtil.getIntFlag( flags, Constants.FLAG_PACK_SIZE,
+                Constants.DEFAULT_PACK_TARGET_SIZE_MB ) * 1024 * 1024 );
+        transferOptions.setPackFileThreshold( OptionsUtil.getIntFlag( flags, Constants.FLAG_PACK_THRESHOLD,
+                Constants.DEFAULT_PACK_FILE_THRESHOLD_KB ) * 1024 );
+        transferOptions.setCompression( OptionsUtil.getStringFlag( flags, Constants.FLAG_COMPRESS,
+                Constants.SUPPORTED_COMPRESSIONS_LIST ) );
+        transferOptions.setBandwidthSchedule( getBandwidthSchedule( flags ) );
+        transferOptions.setRetryAttempts( OptionsUtil.getIntFlag( flags, Constants.FLAG_ATTEMPTS,
+                transferOptions.getRetryAttempts() ) );
+        transferOptions.setSettleSeconds( OptionsUtil.getIntFlag( flags, Constants.FLAG_SETTLE,
+                transferOptions.getSettleSeconds() ) );
+        transferOptions.setScanIntervalSeconds( OptionsUtil.getIntFlag( flags, Constants.FLAG_SCAN_INTERVAL,
+                transferOptions.getScanIntervalSeconds() ) );
+        transferOptions.setPartSize( OptionsUtil.getIntFlag( flags, Constants.FLAG_PART_SIZE,
+                Constants.DEFAULT_DOWNLOAD_PART_SIZE_MB ) * 1024L * 1024 );
+        transferOptions.setFanOutDestinations( getFanOutDestinations( flags ) );
+        transferOptions.setDeduplicate( OptionsUtil.getBooleanFlag( flags, Constants.FLAG_DEDUP ) );
+        transferOptions.setPrune( OptionsUtil.getBooleanFlag( flags, Constants.FLAG_PRUNE ) );
+        transferOptions.setJournal( OptionsUtil.getBooleanFlag( flags, Constants.FLAG_JOURNAL ) );
+        transferOptions.setForce( OptionsUtil.getBooleanFlag( flags, Constants.FLAG_FORCE ) );
+        transferOptions.setDryRun( OptionsUtil.getBooleanFlag( flags, Constants.FLAG_DRY_RUN ) );
+        transferOptions.setSkipVerify( OptionsUtil.getBooleanFlag( flags, Constants.FLAG_NO_VERIFY ) );
+        String listingFormat = OptionsUtil.getStringFlag( flags, Constants.FLAG_FORMAT,
+                Constants.SUPPORTED_LISTING_FORMATS_LIST );
+        if( listingFormat != null )
+            transferOptions.setListingFormat( listingFormat );
+        transferOptions.setDelimiter( flags.get( Constants.FLAG_DELIMITER ) );
+        return transferOptions;
+    }
+
+    /**
+     * Creates the threads and connection pool all commands of this process run on. In batch and daemon mode they are
+     * shared by every command, so these flags apply to the process rather than to a command.
+     */
+    private static ExecutionEngine getExecutionEngine( Map<String, String> flags ) {
+        String engine = OptionsUtil.getStringFlag( flags, Constants.FLAG_ENGINE, Constants.SUPPORTED_ENGINES_LIST );
+        ExecutionEngine executionEngine = ExecutionEngine.create( engine != null ? engine : Constants.ENGINE_PLATFORM,
+                OptionsUtil.getIntFlag( flags, Constants.FLAG_THREADS, Constants.DEFAULT_THREADS ),
+                OptionsUtil.getIntFlag( flags, Constants.FLAG_MAX_CONNECTIONS, 0 ),
+                OptionsUtil.getIntFlag( flags, Constants.FLAG_SOCKET_BUFFER, 0 ) * 1024 );
+        log.info("Execution engine - {}", executionEngine);
+        return executionEngine;
+    }
+
+    /**
+     * Parses the fan-out destinations, given as {@code bucket[@region],...}. Buckets without a region are in the
+     * configured region.
+     */
+    private static Map<String, Regions> getFanOutDestinations( Map<String, String> flags ) {
+        Map<String, Regions> destinations = new LinkedHashMap<>();
+        String value = flags.get( Constants.FLAG_FAN_OUT );
+        if( value == null )
+            return destinations;
+        for( String destination: value.split( "," ) ) {
+            String[] parts = destination.trim().split( "@", 2 );
+            Regions region = null;
+            try {
+                if( parts.length > 1 )
+                    region = Regions.fromName( parts[1] );
+            } catch( IllegalArgumentException e ) {
+                ValidationsUtil.handleUnsupported( Constants.MSG_INVALID_OPTION_VALUE,
+                        "--" + Constants.FLAG_FAN_OUT + "=" + value );
+            }
+            ValidationsUtil.checkIfBucketNameIsProvided( parts[0] );
+            destinations.put( parts[0], region );
+        }
+        return destinations;
+    }
+
+    /**
+     * Returns the bandwidth schedule of the flag, or else of the config file, which is then re-read while
+     * transferring, so that a schedule added, changed or removed there applies to running transfers.
+     */
+    private static Supplier<String> getBandwidthSchedule( Map<String, String> flags ) {
+        String schedule = flags.get( Constants.FLAG_BANDWIDTH );
+        if( schedule == null ) {
+            return () -> new UserConfig( null, ConfigConstants.AWSTOOLS_DIR_NAME, ConfigConstants.CONFIG_FILE )
+                    .getProperty( ConfigConstants.PROP_BANDWIDTH );
+        }
+        try {
+            BandwidthSchedule.parse( schedule );
+        } catch( IllegalArgumentException e ) {
+            ValidationsUtil.handleUnsupported( Constants.MSG_INVALID_OPTION_VALUE,
+                    "--" + Constants.FLAG_BANDWIDTH + "=" + schedule );
+        }
+        return () -> schedule;
+    }
 }
@@ -0,0 +1,176 @@
+package org.warn.aws;
+
+import lombok.extern.slf4j.Slf4j;
+import org.warn.aws.s3.client.S3ClientWrapper;
+import org.warn.aws.util.CommandFailedException;
+import org.warn.aws.util.Constants;
+import org.warn.aws.util.ManifestReader;
+import org.warn.aws.util.OptionsUtil;
+import org.warn.aws.util.ValidationsUtil;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs s3 commands one after another through a single {@link S3ClientWrapper}, so the JVM, the client and its pooled
+ * connections stay warm between jobs. Commands come from a file, one per line, or from job files dropped into a
+ * directory that is watched for as long as the daemon runs. A failing command is logged and does not stop the
+ * commands after it.
+ */
+@Slf4j
+class BatchRunner {
+
+    private final S3ClientWrapper s3ClientWrapper;
+    private final Map<String, String> defaultFlags;
+
+    /**
+     * @param defaultFlags  flags applied to every command, unless the command sets them itself
+     */
+    BatchRunner( S3ClientWrapper s3ClientWrapper, Map<String, String> defaultFlags ) {
+        this.s3ClientWrapper = s3ClientWrapper;
+        this.defaultFlags = defaultFlags;
+        // an invalid command, or one hitting an error that ends a standalone run, must fail only its own job
+        ValidationsUtil.setExitOnError( false );
+    }
+
+    /**
+     * Runs every command in the file. Blank lines and lines starting with {@code #} are skipped. Returns the number
+     * of commands that could not be run.
+     */
+    int runFile( Path commandFile ) throws IOException, InterruptedException {
+        int commandCount = 0;
+        int failedCount = 0;
+        try( ManifestReader reader = new ManifestReader( commandFile ) ) {
+            String line;
+            while( ( line = reader.readLine() ) != null ) {
+                line = line.trim();
+                if( line.startsWith( "#" ) )
+                    continue;
+                commandCount++;
+                if( !runCommand( line ) )
+                    failedCount++;
+                if( Thread.interrupted() )
+                    throw new InterruptedException( "Interrupted while running " + commandFile );
+            }
+        }
+        log.info("Batch finished - file={}, commands={}, failedCommands={}", commandFile, commandCount, failedCount);
+        return failedCount;
+    }
+
+    /**
+     * Runs job files as they appear in the directory, until the process is stopped. A job file is a command file
+     * named {@code *.job}; it should be written under another name and renamed, so it is never read half written.
+     * Once run, it is renamed to {@code *.done}, or to {@code *.failed} if any of its commands could not be run.
+     */
+    void watch( Path jobsDirectory ) throws IOException, InterruptedException {
+        if( !Files.isDirectory( jobsDirectory ) ) {
+            // jobs run with the configured credentials, so only the owner may submit them
+            Files.createDirectories( jobsDirectory );
+            if( jobsDirectory.getFileSystem().supportedFileAttributeViews().contains( "posix" ) )
+                Files.setPosixFilePermissions( jobsDirectory, PosixFilePermissions.fromString( "rwx------" ) );
+        }
+        try( WatchService watchService = FileSystems.getDefault().newWatchService() ) {
+            jobsDirectory.register( watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY );
+            log.info("Waiting for jobs - directory={}", jobsDirectory);
+            runPendingJobs( jobsDirectory );
+            while( true ) {
+                WatchKey watchKey = watchService.take();
+                // the directory is scanned again, which also covers events dropped on overflow
+                watchKey.pollEvents();
+                runPendingJobs( jobsDirectory );
+                if( !watchKey.reset() ) {
+                    log.error("Jobs directory is no longer accessible - directory={}", jobsDirectory);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void runPendingJobs( Path jobsDirectory ) throws IOException, InterruptedException {
+        List<Path> jobFiles;
+        try( Stream<Path> paths = Files.list( jobsDirectory ) ) {
+            jobFiles = paths.filter( path -> path.getFileName().toString().endsWith( Constants.JOB_FILE_SUFFIX ) )
+                    .sorted()
+                    .collect( Collectors.toList() );
+        }
+        for( Path jobFile: jobFiles ) {
+            log.info("Running job - file={}", jobFile);
+            long startNanos = System.nanoTime();
+            int failedCount = runFile( jobFile );
+            String jobName = jobFile.getFileName().toString();
+            String suffix = failedCount == 0 ? Constants.JOB_DONE_SUFFIX : Constants.JOB_FAILED_SUFFIX;
+            Files.move( jobFile, jobFile.resolveSibling( jobName.substring( 0,
+                    jobName.length() - Constants.JOB_FILE_SUFFIX.length() ) + suffix ),
+                    StandardCopyOption.REPLACE_EXISTING );
+            log.info("Job finished - file={}, failedCommands={}, durationMs={}", jobFile, failedCount,
+                    ( System.nanoTime() - startNanos ) / 1_000_000);
+        }
+    }
+
+    private boolean runCommand( String line ) {
+        String[] tokens = tokenize( line );
+        Map<String, String> flags = new HashMap<>( defaultFlags );
+        flags.putAll( OptionsUtil.getFlags( tokens ) );
+        String[] args = OptionsUtil.getPositionalArgs( tokens );
+        if( args.length == 0 || !Constants.COMMAND_S3.equals( args[0] ) ) {
+            log.error("Command FAILED - command={}, Error=Only s3 commands can be run in a batch", line);
+            return false;
+        }
+
+        log.info("Running command - command={}", line);
+        long startNanos = System.nanoTime();
+        try {
+            AwsTools.runS3Command( s3ClientWrapper, args, flags );
+        } catch( CommandFailedException e ) {
+            // e.g. a mistyped bucket or a missing local file; the commands after it still run
+            log.error("Command FAILED - command={}, Error={}", line, e.getMessage());
+            return false;
+        } catch( RuntimeException e ) {
+            log.error("Command FAILED - command={}, Error={}", line, e.getMessage());
+            return false;
+        }
+        log.info("Command finished - command={}, durationMs={}", line, ( System.nanoTime() - startNanos ) / 1_000_000);
+        return true;
+    }
+
+    /**
+     * Splits a command line on whitespace. Double quotes group words containing spaces, e.g. file paths.
+     */
+    private static String[] tokenize( String line ) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        boolean quoted = false;
+        boolean inToken = false;
+        for( char c: line.toCharArray() ) {
+            if( c == '"' ) {
+                quoted = !quoted;
+                inToken = true;
+            } else if( Character.isWhitespace( c ) && !quoted ) {
+                if( inToken )
+                    tokens.add( token.toString() );
+                token.setLength( 0 );
+                inToken = false;
+            } else {
+                token.append( c );
+                inToken = true;
+            }
+        }
+        if( inToken )
+            tokens.add( token.toString() );
+        return tokens.toArray( new String[0] );
+    }
+}
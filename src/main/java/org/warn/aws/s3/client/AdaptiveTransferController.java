@@ -0,0 +1,181 @@
+package org.warn.aws.s3.client;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.services.s3.transfer.TransferManagerConfiguration;
+import lombok.extern.slf4j.Slf4j;
+import org.warn.aws.util.Constants;
+import org.warn.aws.util.DataTransferUtil;
+import org.warn.utils.file.FileHelper;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tunes the number of uploads in flight, the multipart part size and the multipart threshold while a transfer
+ * runs. Every sampling interval the transfer rate is compared with the previous sample: concurrency grows while
+ * throughput keeps improving, and backs off when throughput falls or S3 starts throttling requests. Part size
+ * follows the throughput of a single upload, so that one part takes a few seconds to send. Changes apply to
+ * uploads started after the decision; uploads already running keep their settings.
+ */
+@Slf4j
+class AdaptiveTransferController {
+
+    private static final long SAMPLE_INTERVAL_SECONDS = 10;
+    private static final long TARGET_SECONDS_PER_PART = 5;
+    private static final long MIN_PART_SIZE = 5L * 1024 * 1024; // S3 minimum
+    private static final long MAX_PART_SIZE = 512L * 1024 * 1024;
+    private static final float IMPROVEMENT_RATIO = 1.05f;
+    private static final float DECLINE_RATIO = 0.8f;
+
+    /**
+     * Request handler for the S3 client that counts attempts rejected with 503 Slow Down. Attempts are counted
+     * rather than requests, since a throttled request usually succeeds on a retry and never reaches
+     * {@code afterError}. It is created before the client, and so before the controller, which drains the count at
+     * every sample.
+     */
+    static class ThrottleDetector extends RequestHandler2 {
+
+        private final AtomicInteger throttledRequests = new AtomicInteger();
+
+        @Override
+        public void afterAttempt( HandlerAfterAttemptContext context ) {
+            Exception e = context.getException();
+            if( e instanceof AmazonServiceException && ( (AmazonServiceException) e ).getStatusCode() == 503 )
+                throttledRequests.getAndIncrement();
+        }
+
+        private int drain() {
+            return throttledRequests.getAndSet( 0 );
+        }
+    }
+
+    private final TransferManagerConfiguration transferManagerConfiguration;
+    private final ExecutorService executorService;
+    private final ThrottleDetector throttleDetector;
+    private final int minExecutorThreads;
+    private final AtomicInteger maxInFlight = new AtomicInteger( Constants.DEFAULT_MAX_IN_FLIGHT_UPLOADS );
+    private final AtomicLong lastSampleTime = new AtomicLong();
+    private final AtomicLong bytesAtLastSample = new AtomicLong();
+    private volatile float rateAtLastSample;
+    private volatile boolean enabled;
+    private long initialPartSize;
+    private long initialMultipartThreshold;
+
+    AdaptiveTransferController( TransferManagerConfiguration transferManagerConfiguration,
+                                ExecutorService executorService, ThrottleDetector throttleDetector ) {
+        this.transferManagerConfiguration = transferManagerConfiguration;
+        this.executorService = executorService;
+        this.throttleDetector = throttleDetector;
+        this.minExecutorThreads = executorService instanceof ThreadPoolExecutor ?
+                ( (ThreadPoolExecutor) executorService ).getCorePoolSize() : 0;
+    }
+
+    void start( int initialMaxInFlight ) {
+        initialPartSize = transferManagerConfiguration.getMinimumUploadPartSize();
+        initialMultipartThreshold = transferManagerConfiguration.getMultipartUploadThreshold();
+        maxInFlight.set( initialMaxInFlight );
+        lastSampleTime.set( System.nanoTime() );
+        bytesAtLastSample.set( 0 );
+        enabled = true;
+        resizeExecutor( initialMaxInFlight );
+        log.info("Adaptive transfer control enabled - maxInFlight={}, partSize={}, multipartThreshold={}",
+                initialMaxInFlight,
+                FileHelper.printFileSizeUserFriendly( transferManagerConfiguration.getMinimumUploadPartSize() ),
+                FileHelper.printFileSizeUserFriendly( transferManagerConfiguration.getMultipartUploadThreshold() ) );
+    }
+
+    /**
+     * Stops tuning and restores the part size, multipart threshold and thread pool size the controller started
+     * from, so the next transfer on the same client does not inherit them.
+     */
+    void stop() {
+        if( !enabled )
+            return;
+        enabled = false;
+        transferManagerConfiguration.setMinimumUploadPartSize( initialPartSize );
+        transferManagerConfiguration.setMultipartUploadThreshold( initialMultipartThreshold );
+        resizeExecutor( minExecutorThreads );
+    }
+
+    int getMaxInFlight() {
+        return maxInFlight.get();
+    }
+
+    /**
+     * Called from the progress listener with the running byte count. At most one caller per sampling interval
+     * wins the race to take the sample and make a decision; everyone else returns immediately.
+     */
+    void onProgress( long totalBytes ) {
+        if( !enabled )
+            return;
+        long now = System.nanoTime();
+        long sampleTime = lastSampleTime.get();
+        long elapsedSeconds = ( now - sampleTime ) / 1_000_000_000L;
+        if( elapsedSeconds < SAMPLE_INTERVAL_SECONDS || !lastSampleTime.compareAndSet( sampleTime, now ) )
+            return;
+
+        float rate = DataTransferUtil.calculateTransferRate( totalBytes - bytesAtLastSample.getAndSet( totalBytes ),
+                elapsedSeconds );
+        adjust( rate, throttleDetector.drain() );
+    }
+
+    private void adjust( float rate, int throttled ) {
+        int current = maxInFlight.get();
+        int target = current;
+        String reason;
+        if( throttled > 0 ) {
+            target = Math.max( 1, current / 2 );
+            reason = "throttled";
+        } else if( rate > rateAtLastSample * IMPROVEMENT_RATIO ) {
+            target = Math.min( Constants.MAX_ADAPTIVE_IN_FLIGHT_UPLOADS, current + Math.max( 1, current / 4 ) );
+            reason = "throughput rising";
+        } else if( rate < rateAtLastSample * DECLINE_RATIO ) {
+            target = Math.max( 1, current - Math.max( 1, current / 4 ) );
+            reason = "throughput falling";
+        } else {
+            reason = "throughput steady";
+        }
+        rateAtLastSample = rate;
+
+        if( target != current ) {
+            maxInFlight.set( target );
+            resizeExecutor( target );
+        }
+
+        // size parts so a single upload sends one in a few seconds at the current per-upload rate
+        long bytesPerSecondPerUpload = (long) ( rate * 1024 * 1024 / 8 ) / target;
+        long partSize = Math.max( MIN_PART_SIZE, Math.min( MAX_PART_SIZE,
+                bytesPerSecondPerUpload * TARGET_SECONDS_PER_PART ) );
+        transferManagerConfiguration.setMinimumUploadPartSize( partSize );
+        transferManagerConfiguration.setMultipartUploadThreshold( Math.max( Constants.MIN_MULTIPART_THRESHOLD,
+                partSize * 2 ) );
+
+        log.info("Adaptive transfer control - rate={} (Mbps), throttled={}, decision={}, maxInFlight={} -> {}, " +
+                        "partSize={}, multipartThreshold={}", String.format( "%.2f", rate ), throttled, reason,
+                current, target, FileHelper.printFileSizeUserFriendly( partSize ),
+                FileHelper.printFileSizeUserFriendly( transferManagerConfiguration.getMultipartUploadThreshold() ) );
+    }
+
+    /**
+     * Grows the transfer thread pool to match the number of uploads in flight. The pool never shrinks below the
+     * size it was created with.
+     */
+    private void resizeExecutor( int maxInFlight ) {
+        if( !( executorService instanceof ThreadPoolExecutor ) )
+            return;
+        ThreadPoolExecutor threadPoolExecutor = (ThreadPoolExecutor) executorService;
+        int threads = Math.max( minExecutorThreads, maxInFlight );
+        // the maximum must never drop below the core size, so the order depends on the direction
+        if( threads > threadPoolExecutor.getMaximumPoolSize() ) {
+            threadPoolExecutor.setMaximumPoolSize( threads );
+            threadPoolExecutor.setCorePoolSize( threads );
+        } else {
+            threadPoolExecutor.setCorePoolSize( threads );
+            threadPoolExecutor.setMaximumPoolSize( threads );
+        }
+    }
+}
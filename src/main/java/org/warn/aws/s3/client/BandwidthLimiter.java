@@ -0,0 +1,149 @@
+package org.warn.aws.s3.client;
+
+import com.amazonaws.Request;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import lombok.extern.slf4j.Slf4j;
+import org.warn.aws.util.BandwidthSchedule;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.time.LocalTime;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Global rate limit shared by every transfer thread. Tokens are taken in batches of whatever a single read returns,
+ * with one atomic update per batch and no lock: the limiter keeps a virtual clock of when the bytes handed out so far
+ * will have been sent at the current limit, and a reader sleeps only while that clock is more than one second ahead
+ * of real time. This is a token bucket holding one second of tokens, without a shared counter to refill.
+ *
+ * As a request handler it throttles PutObject and UploadPart bodies; downloads call {@link #acquire} directly. The
+ * limit follows a {@link BandwidthSchedule} that is re-read periodically, so schedule boundaries and edits to the
+ * configuration apply without pausing running transfers. Request bodies are only throttled while a limit is set, so
+ * an unlimited schedule costs nothing; a limit that starts later applies from the next request.
+ */
+@Slf4j
+class BandwidthLimiter extends RequestHandler2 {
+
+    private static final long BURST_NANOS = TimeUnit.SECONDS.toNanos( 1 );
+    private static final long SCHEDULE_CHECK_INTERVAL_SECONDS = 30;
+
+    private final AtomicLong clock = new AtomicLong( System.nanoTime() );
+    private volatile long bytesPerSecond; // 0 for unlimited
+    private volatile long limitMbps;
+    private volatile ScheduledExecutorService scheduler;
+
+    /**
+     * Applies the schedule returned by the supplier now and every 30 seconds until {@link #close} is called. A
+     * supplier returning null or an empty schedule means unlimited.
+     */
+    void start( Supplier<String> scheduleSupplier ) {
+        updateLimit( scheduleSupplier );
+        scheduler = Executors.newSingleThreadScheduledExecutor( r -> {
+            Thread thread = new Thread( r, "bandwidth-schedule" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        scheduler.scheduleAtFixedRate( () -> updateLimit( scheduleSupplier ), SCHEDULE_CHECK_INTERVAL_SECONDS,
+                SCHEDULE_CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS );
+    }
+
+    /**
+     * Stops following the schedule and removes the limit.
+     */
+    void close() {
+        if( scheduler == null )
+            return;
+        scheduler.shutdownNow();
+        scheduler = null;
+        setLimitMbps( 0 );
+    }
+
+    /**
+     * The limit currently applied in Mbps, or 0 if unlimited.
+     */
+    long getLimitMbps() {
+        return limitMbps;
+    }
+
+    private void setLimitMbps( long limitMbps ) {
+        this.limitMbps = limitMbps;
+        this.bytesPerSecond = limitMbps * 1024 * 1024 / 8; // the same megabits as the reported transfer rates
+        // drop any backlog scheduled at the old rate
+        clock.set( System.nanoTime() );
+    }
+
+    /**
+     * Blocks until the given number of bytes may be transferred under the current limit.
+     */
+    void acquire( int bytes ) throws InterruptedIOException {
+        long rate = bytesPerSecond;
+        if( rate <= 0 || bytes <= 0 )
+            return;
+        long cost = bytes * 1_000_000_000L / rate;
+        long now = System.nanoTime();
+        long sentAt = clock.accumulateAndGet( cost, ( time, c ) -> Math.max( time, now ) + c );
+        long wait = sentAt - BURST_NANOS - now;
+        if( wait <= 0 )
+            return;
+        try {
+            TimeUnit.NANOSECONDS.sleep( wait );
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while waiting for bandwidth" );
+        }
+    }
+
+    @Override
+    public void beforeRequest( Request<?> request ) {
+        if( bytesPerSecond <= 0 )
+            return;
+        if( request.getContent() != null && ( request.getOriginalRequest() instanceof PutObjectRequest ||
+                request.getOriginalRequest() instanceof UploadPartRequest ) )
+            request.setContent( new ThrottledInputStream( request.getContent() ) );
+    }
+
+    private void updateLimit( Supplier<String> scheduleSupplier ) {
+        long newLimitMbps = limitMbps;
+        try {
+            String schedule = scheduleSupplier.get();
+            newLimitMbps = schedule == null || schedule.trim().isEmpty() ? 0 :
+                    BandwidthSchedule.parse( schedule ).getLimitMbps( LocalTime.now() );
+        } catch( RuntimeException e ) {
+            log.error("Error reading bandwidth schedule, keeping current limit - Error={}", e.getMessage());
+        }
+        if( newLimitMbps != limitMbps || ( scheduler == null && newLimitMbps > 0 ) ) {
+            setLimitMbps( newLimitMbps );
+            log.info("Bandwidth limit - {}", newLimitMbps > 0 ? newLimitMbps + " (Mbps)" : "unlimited");
+        }
+    }
+
+    private class ThrottledInputStream extends FilterInputStream {
+
+        private ThrottledInputStream( InputStream in ) {
+            super( in );
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if( b >= 0 )
+                acquire( 1 );
+            return b;
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len ) throws IOException {
+            int read = super.read( b, off, len );
+            acquire( read );
+            return read;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.warn.aws.s3.client;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import lombok.extern.slf4j.Slf4j;
+import org.warn.aws.s3.metrics.TransferMetrics;
+import org.warn.aws.s3.model.S3OperationRecord;
+import org.warn.aws.util.FailureLog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Predicate;
+
+/**
+ * Deletes objects with multi-object DeleteObjects requests of up to 1,000 keys each. Keys are streamed in from the
+ * shards of a {@link BucketLister}, each of which deletes its own batches on its listing thread, or from a single
+ * thread that keeps up to a fixed number of batches in flight, as in {@link DownloadPipeline}. Either way, at most
+ * one batch per shard or per batch in flight is held in memory. Keys that could not be deleted are written to the
+ * failure log.
+ */
+@Slf4j
+class BatchDeleter implements BucketLister.SinkFactory {
+
+    private static final int MAX_BATCH_SIZE = 1000; // the most DeleteObjects accepts
+
+    private final AmazonS3 s3Client;
+    private final ExecutorService executorService;
+    private final String bucketName;
+    private final Predicate<String> keyFilter;
+    private final TransferMetrics metrics;
+    private final FailureLog failedDeletes;
+    private final int maxInFlight;
+    private final boolean dryRun;
+    private final BlockingQueue<List<String>> completedBatches = new LinkedBlockingQueue<>();
+    private List<String> batch = new ArrayList<>();
+    private int inFlight;
+
+    /**
+     * @param keyFilter    keys to delete; other keys are passed over
+     * @param maxInFlight  number of batches submitted with {@link #add} that are deleted at once
+     * @param dryRun       log and count the keys instead of deleting them
+     */
+    BatchDeleter( AmazonS3 s3Client, ExecutorService executorService, String bucketName, Predicate<String> keyFilter,
+                  TransferMetrics metrics, FailureLog failedDeletes, int maxInFlight, boolean dryRun ) {
+        this.s3Client = s3Client;
+        this.executorService = executorService;
+        this.bucketName = bucketName;
+        this.keyFilter = keyFilter;
+        this.metrics = metrics;
+        this.failedDeletes = failedDeletes;
+        this.maxInFlight = Math.max( 1, maxInFlight );
+        this.dryRun = dryRun;
+    }
+
+    @Override
+    public BucketLister.ObjectSink open( int shardNumber ) {
+        List<String> shardBatch = new ArrayList<>();
+        return new BucketLister.ObjectSink() {
+            @Override
+            public void accept( S3ObjectSummary summary ) {
+                if( !keyFilter.test( summary.getKey() ) )
+                    return;
+                shardBatch.add( summary.getKey() );
+                if( shardBatch.size() == MAX_BATCH_SIZE ) {
+                    delete( shardBatch );
+                    shardBatch.clear();
+                }
+            }
+
+            @Override
+            public void close() {
+                if( !shardBatch.isEmpty() )
+                    delete( shardBatch );
+                shardBatch.clear();
+            }
+        };
+    }
+
+    /**
+     * Adds a key to the current batch and submits the batch once it is full, blocking only while the limit of
+     * batches in flight is reached. Called from one thread.
+     */
+    void add( String key ) throws InterruptedException {
+        if( !keyFilter.test( key ) )
+            return;
+        batch.add( key );
+        if( batch.size() == MAX_BATCH_SIZE )
+            submitBatch();
+    }
+
+    /**
+     * Submits the last, partly filled batch and waits for every batch submitted with {@link #add}.
+     */
+    void awaitCompletion() throws InterruptedException {
+        if( !batch.isEmpty() )
+            submitBatch();
+        while( inFlight > 0 ) {
+            completedBatches.take();
+            inFlight--;
+        }
+    }
+
+    private void submitBatch() throws InterruptedException {
+        while( inFlight >= maxInFlight ) {
+            completedBatches.take();
+            inFlight--;
+        }
+        List<String> keys = batch;
+        batch = new ArrayList<>();
+        inFlight++;
+        executorService.execute( () -> {
+            try {
+                delete( keys );
+            } finally {
+                completedBatches.add( keys );
+            }
+        } );
+    }
+
+    /**
+     * Deletes one batch of keys. S3 reports the keys it could not delete, or fails the whole request, and in both
+     * cases each failed key is recorded on its own, so that the failure log can be fed back to rm.
+     */
+    private void delete( List<String> keys ) {
+        if( dryRun ) {
+            for( String key: keys )
+                log.info("S3 delete skipped (dry run) - key={}", key);
+            metrics.recordDeletes( keys.size() );
+            return;
+        }
+        DeleteObjectsRequest request = new DeleteObjectsRequest( bucketName )
+                .withKeys( keys.toArray( new String[ 0 ] ) )
+                .withQuiet( true ); // only the keys that failed are returned
+        try {
+            s3Client.deleteObjects( request );
+            metrics.recordDeletes( keys.size() );
+            log.info("S3 delete successful - keys={}, firstKey={}, lastKey={}",
+                    keys.size(), keys.get( 0 ), keys.get( keys.size() - 1 ));
+
+        } catch( MultiObjectDeleteException e ) {
+            for( MultiObjectDeleteException.DeleteError error: e.getErrors() ) {
+                log.error("S3 delete FAILED - key={}, ErrorCode={}, Error={}",
+                        error.getKey(), error.getCode(), error.getMessage());
+                failedDeletes.add( new S3OperationRecord( bucketName, error.getKey(), null, -1,
+                        error.getCode() + ": " + error.getMessage() ) );
+            }
+            metrics.recordDeletes( keys.size() - e.getErrors().size() );
+
+        } catch( AmazonClientException e ) {
+            log.error("S3 delete FAILED - keys={}, firstKey={}, lastKey={}, Error={}",
+                    keys.size(), keys.get( 0 ), keys.get( keys.size() - 1 ), e.getMessage());
+            for( String key: keys )
+                failedDeletes.add( new S3OperationRecord( bucketName, key, null, -1, e.getMessage() ) );
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package org.warn.aws.s3.client;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import lombok.extern.slf4j.Slf4j;
+import org.warn.aws.util.Constants;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lists every object under a prefix with many ListObjectsV2 streams at once. The keyspace is split into key ranges
+ * (shards), either at the common prefixes found with a delimiter or evenly over the first character, and each shard
+ * is listed on its own from a StartAfter key. Since the distribution of keys is not known up front, a shard that is
+ * still listing while others have finished is split again: the rest of its range is cut at keys past its last listed
+ * key, and the parts become new shards. Shards therefore balance themselves, at the cost of one request for each
+ * split that lands in an empty range.
+ *
+ * Objects are handed to a sink per shard on the listing thread, so nothing is collected in memory. Shards are
+ * returned in key order, and S3 lists each shard in key order, so reading the sinks in that order gives a sorted
+ * listing.
+ */
+@Slf4j
+class BucketLister {
+
+    private static final int MAX_DELIMITER_BOUNDARIES = 10_000;
+    private static final int SHARDS_PER_THREAD = 4;
+    // keys are assumed to be mostly printable ASCII when choosing split points; other keys are listed all the same
+    private static final char MIN_SPLIT_CHAR = 0x20;
+    private static final char MAX_SPLIT_CHAR = 0x7f;
+    private static final String MAX_CODE_POINT = new String( Character.toChars( Character.MAX_CODE_POINT ) );
+    private static final Exception NO_ERROR = new Exception(); // a queue cannot hold null
+
+    /**
+     * Receives the objects of one shard, in key order, from one thread at a time. The sink is closed on the listing
+     * thread once its shard is done, whether the shard was listed in full or not.
+     */
+    interface ObjectSink extends Closeable {
+        void accept( S3ObjectSummary summary ) throws IOException;
+    }
+
+    interface SinkFactory {
+        ObjectSink open( int shardNumber ) throws IOException;
+    }
+
+    static class Shard {
+
+        private final int number; // in the order shards were created
+        private final String lowerBound; // inclusive
+        private volatile String upperBound; // exclusive, null for the end of the prefix; changed by the listing thread
+        private final ObjectSink sink;
+        private long objects;
+        private long bytes;
+
+        private Shard( int number, String lowerBound, String upperBound, ObjectSink sink ) {
+            this.number = number;
+            this.lowerBound = lowerBound;
+            this.upperBound = upperBound;
+            this.sink = sink;
+        }
+
+        int getNumber() {
+            return number;
+        }
+
+        long getObjects() {
+            return objects;
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+    }
+
+    private final AmazonS3 s3Client;
+    private final ExecutorService executorService;
+    private final String bucketName;
+    private final String prefix;
+    private final int maxActiveShards;
+    private final SinkFactory sinkFactory;
+    private final List<Shard> shards = new ArrayList<>();
+    private final BlockingQueue<Exception> completedShards = new LinkedBlockingQueue<>();
+    private final AtomicInteger submittedShards = new AtomicInteger();
+    private final AtomicInteger pendingShards = new AtomicInteger(); // submitted and not yet finished
+    private final AtomicLong listedObjects = new AtomicLong();
+    private final AtomicLong lastProgressLogNanos = new AtomicLong( System.nanoTime() );
+    private volatile boolean failed;
+
+    /**
+     * @param maxActiveShards  number of shards listed at once; finished shards are replaced by splitting busy ones
+     */
+    BucketLister( AmazonS3 s3Client, ExecutorService executorService, String bucketName, String prefix,
+                  int maxActiveShards, SinkFactory sinkFactory ) {
+        this.s3Client = s3Client;
+        this.executorService = executorService;
+        this.bucketName = bucketName;
+        this.prefix = prefix == null ? "" : prefix;
+        this.maxActiveShards = Math.max( 1, maxActiveShards );
+        this.sinkFactory = sinkFactory;
+    }
+
+    /**
+     * Lists the prefix and returns its shards in key order, with their sinks closed. If a shard fails, the others
+     * stop after their current page and the first error is thrown.
+     *
+     * @param delimiter  splits the prefix at the common prefixes below it, or null to split evenly over the first
+     *                   character after it
+     */
+    List<Shard> list( String delimiter ) throws InterruptedException, IOException {
+        List<String> boundaries = delimiter != null ? getDelimiterBoundaries( delimiter ) : getEvenBoundaries();
+        log.info("Listing s3://{}/{} - initial shards={}, concurrent shards={}", bucketName, prefix,
+                boundaries.size() + 1, maxActiveShards);
+
+        String lowerBound = prefix;
+        for( String boundary: boundaries ) {
+            pendingShards.incrementAndGet();
+            submit( newShard( lowerBound, boundary ) );
+            lowerBound = boundary;
+        }
+        pendingShards.incrementAndGet();
+        submit( newShard( lowerBound, null ) );
+
+        Exception error = null;
+        for( int completed = 0; completed < submittedShards.get(); completed++ ) {
+            Exception shardError = completedShards.take();
+            if( error == null && shardError != NO_ERROR )
+                error = shardError;
+        }
+        shards.sort( ( a, b ) -> compareKeys( a.lowerBound, b.lowerBound ) );
+        log.info("Listed s3://{}/{} - objects={}, shards={}", bucketName, prefix, listedObjects.get(), shards.size());
+
+        if( error instanceof IOException )
+            throw (IOException) error;
+        if( error != null )
+            throw (RuntimeException) error;
+        return shards;
+    }
+
+    private synchronized Shard newShard( String lowerBound, String upperBound ) throws IOException {
+        int number = shards.size();
+        Shard shard = new Shard( number, lowerBound, upperBound, sinkFactory.open( number ) );
+        shards.add( shard );
+        return shard;
+    }
+
+    /**
+     * Submits a shard that has already been counted as pending.
+     */
+    private void submit( Shard shard ) {
+        submittedShards.incrementAndGet();
+        try {
+            executorService.execute( () -> {
+                Exception error = null;
+                try( ObjectSink sink = shard.sink ) {
+                    listShard( shard );
+                } catch( RuntimeException | IOException e ) {
+                    // an UncheckedIOException from the sink is reported as the IOException it wraps
+                    error = e instanceof UncheckedIOException ? ( (UncheckedIOException) e ).getCause() : e;
+                    fail( shard, error );
+                } finally {
+                    pendingShards.decrementAndGet();
+                    completedShards.add( error != null ? error : NO_ERROR );
+                }
+            } );
+        } catch( RejectedExecutionException e ) {
+            try {
+                shard.sink.close();
+            } catch( IOException closeError ) {
+                e.addSuppressed( closeError );
+            }
+            fail( shard, e );
+            pendingShards.decrementAndGet();
+            completedShards.add( e );
+        }
+    }
+
+    private void fail( Shard shard, Exception e ) {
+        log.error("Error listing shard - lowerBound={}, upperBound={}, Error={}",
+                shard.lowerBound, shard.upperBound, e.getMessage());
+        failed = true;
+    }
+
+    private void listShard( Shard shard ) throws IOException {
+        ListObjectsV2Request request = new ListObjectsV2Request()
+                .withBucketName( bucketName )
+                .withPrefix( prefix );
+        if( !shard.lowerBound.equals( prefix ) )
+            request.setStartAfter( getKeyBefore( shard.lowerBound ) );
+
+        ListObjectsV2Result result;
+        do {
+            if( failed )
+                return;
+            result = s3Client.listObjectsV2( request );
+            String firstKey = null;
+            String lastKey = null;
+            for( S3ObjectSummary summary: result.getObjectSummaries() ) {
+                String upperBound = shard.upperBound;
+                if( upperBound != null && compareKeys( summary.getKey(), upperBound ) >= 0 )
+                    return;
+                if( compareKeys( summary.getKey(), shard.lowerBound ) < 0 )
+                    continue;
+                shard.sink.accept( summary );
+                listedObjects.incrementAndGet();
+                shard.objects++;
+                shard.bytes += summary.getSize();
+                if( firstKey == null )
+                    firstKey = summary.getKey();
+                lastKey = summary.getKey();
+            }
+            logProgress();
+            if( result.isTruncated() && lastKey != null )
+                trySplit( shard, firstKey, lastKey );
+            request.setContinuationToken( result.getNextContinuationToken() );
+        } while( result.isTruncated() );
+    }
+
+    /**
+     * Hands parts of the shard's remaining range to new shards while fewer shards than allowed are pending.
+     */
+    private void trySplit( Shard shard, String firstKey, String lastKey ) throws IOException {
+        if( pendingShards.get() >= maxActiveShards )
+            return;
+        String upperBound = shard.upperBound;
+        List<String> splitKeys = getSplitKeys( firstKey, lastKey, upperBound );
+        if( splitKeys.isEmpty() )
+            return;
+
+        // reserve the new shards, then keep an even selection of split keys, starting with the nearest
+        int pending;
+        int count;
+        do {
+            pending = pendingShards.get();
+            count = Math.min( maxActiveShards - pending, splitKeys.size() );
+            if( count <= 0 )
+                return;
+        } while( !pendingShards.compareAndSet( pending, pending + count ) );
+
+        List<Shard> upperShards = new ArrayList<>();
+        for( int i = count - 1; i >= 0; i-- ) {
+            String splitKey = splitKeys.get( i * splitKeys.size() / count );
+            upperShards.add( newShard( splitKey, upperBound ) );
+            upperBound = splitKey;
+        }
+        shard.upperBound = upperBound;
+        for( Shard upperShard: upperShards )
+            submit( upperShard );
+    }
+
+    /**
+     * Returns keys between the last key of a page and the upper bound, in ascending order, to split the rest of a
+     * shard at. At each depth from where the keys of the page differ up to the prefix, the last key is cut after that
+     * character, and the character is stepped up by doubling amounts: by the width of the page at the depth where its
+     * keys differ, and by one above it. Keys usually share long common prefixes, so this splits the range at the
+     * neighbouring groups of keys, and at groups twice, four times and eight times as far, wherever in the key the
+     * groups are. Halving the characters right after the prefix would take a request per character instead.
+     *
+     * @param upperBound  exclusive, or null for the end of the prefix
+     */
+    List<String> getSplitKeys( String firstKey, String lastKey, String upperBound ) {
+        List<String> splitKeys = new ArrayList<>();
+        int commonPrefixLength = getCommonPrefixLength( firstKey, lastKey );
+        for( int depth = Math.min( commonPrefixLength, lastKey.length() - 1 ); depth >= prefix.length(); depth-- ) {
+            char lastChar = lastKey.charAt( depth );
+            if( lastChar >= MAX_SPLIT_CHAR )
+                continue;
+            int width = depth == commonPrefixLength ? lastChar - firstKey.charAt( depth ) + 1 : 1;
+            for( int step = width; lastChar + step < MAX_SPLIT_CHAR; step *= 2 ) {
+                String splitKey = lastKey.substring( 0, depth ) + (char) ( lastChar + step );
+                if( upperBound != null && compareKeys( splitKey, upperBound ) >= 0 )
+                    return splitKeys; // keys at shallower depths are greater still
+                splitKeys.add( splitKey );
+            }
+        }
+        return splitKeys;
+    }
+
+    private int getCommonPrefixLength( String a, String b ) {
+        int length = prefix.length();
+        while( length < a.length() && length < b.length() && a.charAt( length ) == b.charAt( length ) )
+            length++;
+        return length;
+    }
+
+    private List<String> getDelimiterBoundaries( String delimiter ) {
+        List<String> commonPrefixes = new ArrayList<>();
+        ListObjectsV2Request request = new ListObjectsV2Request()
+                .withBucketName( bucketName )
+                .withPrefix( prefix )
+                .withDelimiter( delimiter );
+        ListObjectsV2Result result;
+        do {
+            result = s3Client.listObjectsV2( request );
+            commonPrefixes.addAll( result.getCommonPrefixes() );
+            request.setContinuationToken( result.getNextContinuationToken() );
+            // the range after the last boundary is split further while it is listed
+        } while( result.isTruncated() && commonPrefixes.size() < MAX_DELIMITER_BOUNDARIES );
+
+        // keep an even selection, enough to give every thread a few shards
+        int maxBoundaries = maxActiveShards * SHARDS_PER_THREAD;
+        if( commonPrefixes.size() <= maxBoundaries )
+            return commonPrefixes;
+        List<String> boundaries = new ArrayList<>();
+        for( int i = 1; i <= maxBoundaries; i++ )
+            boundaries.add( commonPrefixes.get( (int) ( (long) i * commonPrefixes.size() / ( maxBoundaries + 1 ) ) ) );
+        return boundaries;
+    }
+
+    private List<String> getEvenBoundaries() {
+        List<String> boundaries = new ArrayList<>();
+        int range = MAX_SPLIT_CHAR - MIN_SPLIT_CHAR;
+        int shardCount = Math.min( maxActiveShards, range );
+        for( int i = 1; i < shardCount; i++ )
+            boundaries.add( prefix + (char) ( MIN_SPLIT_CHAR + i * range / shardCount ) );
+        return boundaries;
+    }
+
+    private void logProgress() {
+        long now = System.nanoTime();
+        long lastLog = lastProgressLogNanos.get();
+        if( TimeUnit.NANOSECONDS.toSeconds( now - lastLog ) < Constants.PROGRESS_LOG_INTERVAL_SECONDS ||
+                !lastProgressLogNanos.compareAndSet( lastLog, now ) )
+            return;
+        log.info("S3 Listing Progress: {} object(s), Shards: {} listing, {} total, ThreadId: {}",
+                listedObjects.get(), pendingShards.get(), submittedShards.get(), Thread.currentThread().getId());
+    }
+
+    /**
+     * Returns the greatest key below the given one, near enough that StartAfter skips no key of the shard and
+     * lists few keys before it.
+     */
+    static String getKeyBefore( String key ) {
+        char last = key.charAt( key.length() - 1 );
+        if( last == 0 || Character.isSurrogate( last ) )
+            return key.substring( 0, key.length() - 1 );
+        return key.substring( 0, key.length() - 1 ) + (char) ( last - 1 ) + MAX_CODE_POINT;
+    }
+
+    /**
+     * Compares keys by code point, which is the UTF-8 byte order S3 lists them in.
+     */
+    static int compareKeys( String a, String b ) {
+        int i = 0;
+        int j = 0;
+        while( i < a.length() && j < b.length() ) {
+            int ca = a.codePointAt( i );
+            int cb = b.codePointAt( j );
+            if( ca != cb )
+                return Integer.compare( ca, cb );
+            i += Character.charCount( ca );
+            j += Character.charCount( cb );
+        }
+        return Integer.compare( a.length() - i, b.length() - j );
+    }
+}
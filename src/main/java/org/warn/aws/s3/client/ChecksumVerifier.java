@@ -0,0 +1,217 @@
+package org.warn.aws.s3.client;
+
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.services.s3.internal.ServerSideEncryptionResult;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.SSEAlgorithm;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.util.BinaryUtils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Pattern;
+
+/**
+ * Request handler for the S3 client that computes the MD5 of every PutObject and UploadPart body while the client
+ * reads it for sending, so verifying an upload needs no second read of the local file. When the upload completes,
+ * the digests are combined into the ETag S3 should report - the MD5 itself for a single PUT, or the MD5 of the part
+ * digests followed by the part count for a multipart upload - and compared with the ETag it actually returned.
+ * Objects encrypted with SSE-KMS or SSE-C get an ETag that is not their MD5, so they are not verified.
+ */
+class ChecksumVerifier extends RequestHandler2 {
+
+    private static final HandlerContextKey<DigestInputStream> DIGEST_STREAM =
+            new HandlerContextKey<>( "DigestInputStream" );
+    private static final int SINGLE_PART = 0;
+    private static final Pattern MD5_ETAG = Pattern.compile( "[0-9a-fA-F]{32}(-[0-9]+)?" );
+
+    /**
+     * Digests of the requests that completed so far, by part number, for each object being uploaded.
+     */
+    private final Map<String, Map<Integer, byte[]>> objectDigests = new ConcurrentHashMap<>();
+    private final Set<String> encryptedObjects = ConcurrentHashMap.newKeySet();
+    private volatile boolean enabled = true;
+
+    /**
+     * Turns computing the digests on or off for the requests sent from now on. Uploads sent while it is off are not
+     * verified.
+     */
+    void setEnabled( boolean enabled ) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public void beforeRequest( Request<?> request ) {
+        if( !enabled || request.getContent() == null || !( request.getOriginalRequest() instanceof PutObjectRequest ||
+                request.getOriginalRequest() instanceof UploadPartRequest ) )
+            return;
+        DigestInputStream digestStream = new DigestInputStream( request.getContent() );
+        request.setContent( digestStream );
+        request.addHandlerContext( DIGEST_STREAM, digestStream );
+    }
+
+    @Override
+    public void afterResponse( Request<?> request, Response<?> response ) {
+        DigestInputStream digestStream = request.getHandlerContext( DIGEST_STREAM );
+        if( digestStream == null )
+            return;
+        Object originalRequest = request.getOriginalRequest();
+        String objectId;
+        int partNumber;
+        if( originalRequest instanceof UploadPartRequest ) {
+            UploadPartRequest uploadPartRequest = (UploadPartRequest) originalRequest;
+            objectId = getObjectId( uploadPartRequest.getBucketName(), uploadPartRequest.getKey() );
+            partNumber = uploadPartRequest.getPartNumber();
+        } else {
+            PutObjectRequest putObjectRequest = (PutObjectRequest) originalRequest;
+            objectId = getObjectId( putObjectRequest.getBucketName(), putObjectRequest.getKey() );
+            partNumber = SINGLE_PART;
+        }
+        objectDigests.computeIfAbsent( objectId, id -> new ConcurrentSkipListMap<>() ).put( partNumber,
+                digestStream.digest() );
+        if( isEncryptedWithKey( response.getAwsResponse() ) )
+            encryptedObjects.add( objectId );
+    }
+
+    /**
+     * Compares the locally computed checksum of an object with the ETag S3 returned for it, and forgets the object.
+     * Returns an error message on mismatch, or null if the checksums match or the object cannot be verified - e.g.
+     * a resumed multipart upload whose first parts were sent by an earlier run, or an encrypted object.
+     */
+    String verify( String bucketName, String key, String eTag ) {
+        String objectId = getObjectId( bucketName, key );
+        Map<Integer, byte[]> digests = objectDigests.remove( objectId );
+        boolean encrypted = encryptedObjects.remove( objectId );
+        if( digests == null || encrypted || eTag == null || !MD5_ETAG.matcher( eTag ).matches() )
+            return null;
+
+        String expectedETag;
+        int separator = eTag.indexOf( '-' );
+        if( separator < 0 ) {
+            byte[] digest = digests.get( SINGLE_PART );
+            if( digest == null )
+                return null;
+            expectedETag = BinaryUtils.toHex( digest );
+        } else {
+            int partCount = Integer.parseInt( eTag.substring( separator + 1 ) );
+            digests.remove( SINGLE_PART );
+            if( digests.size() != partCount )
+                return null;
+            MessageDigest md5 = newMd5();
+            for( byte[] digest: digests.values() )
+                md5.update( digest );
+            expectedETag = BinaryUtils.toHex( md5.digest() ) + "-" + partCount;
+        }
+
+        if( expectedETag.equalsIgnoreCase( eTag ) )
+            return null;
+        return "Checksum mismatch - local=" + expectedETag + ", s3=" + eTag;
+    }
+
+    /**
+     * Forgets the digests of an object whose upload did not complete.
+     */
+    void discard( String bucketName, String key ) {
+        objectDigests.remove( getObjectId( bucketName, key ) );
+        encryptedObjects.remove( getObjectId( bucketName, key ) );
+    }
+
+    /**
+     * Tells whether S3 reported that the object is encrypted with a KMS or a customer provided key.
+     */
+    private static boolean isEncryptedWithKey( Object awsResponse ) {
+        if( !( awsResponse instanceof ServerSideEncryptionResult ) )
+            return false;
+        ServerSideEncryptionResult result = (ServerSideEncryptionResult) awsResponse;
+        // both aws:kms and aws:kms:dsse
+        return result.getSSECustomerAlgorithm() != null || ( result.getSSEAlgorithm() != null &&
+                result.getSSEAlgorithm().startsWith( SSEAlgorithm.KMS.getAlgorithm() ) );
+    }
+
+    private static String getObjectId( String bucketName, String key ) {
+        return bucketName + "/" + key;
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance( "MD5" );
+        } catch( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * Digests the bytes read through it. The client marks the request body before the first attempt and resets it
+     * before every retry, so the digest state is saved on mark and restored on reset.
+     */
+    private static class DigestInputStream extends FilterInputStream {
+
+        private MessageDigest md5 = newMd5();
+        private MessageDigest markedMd5 = newMd5();
+
+        private DigestInputStream( InputStream in ) {
+            super( in );
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if( b >= 0 )
+                md5.update( (byte) b );
+            return b;
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len ) throws IOException {
+            int read = super.read( b, off, len );
+            if( read > 0 )
+                md5.update( b, off, read );
+            return read;
+        }
+
+        @Override
+        public long skip( long n ) throws IOException {
+            // skipped bytes would be missing from the digest, so read them instead
+            byte[] buffer = new byte[ (int) Math.min( n, 8192 ) ];
+            long skipped = 0;
+            int read;
+            while( skipped < n && ( read = read( buffer, 0, (int) Math.min( buffer.length, n - skipped ) ) ) > 0 )
+                skipped += read;
+            return skipped;
+        }
+
+        @Override
+        public synchronized void mark( int readLimit ) {
+            super.mark( readLimit );
+            markedMd5 = cloneDigest( md5 );
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            super.reset();
+            md5 = cloneDigest( markedMd5 );
+        }
+
+        private byte[] digest() {
+            return cloneDigest( md5 ).digest();
+        }
+
+        private static MessageDigest cloneDigest( MessageDigest digest ) {
+            try {
+                return (MessageDigest) digest.clone();
+            } catch( CloneNotSupportedException e ) {
+                throw new IllegalStateException( e );
+            }
+        }
+    }
+}
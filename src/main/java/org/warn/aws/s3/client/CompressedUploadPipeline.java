@@ -0,0 +1,495 @@
+package org.warn.aws.s3.client;
+
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.github.luben.zstd.Zstd;
+import lombok.extern.slf4j.Slf4j;
+import org.warn.aws.s3.metrics.RunJournal;
+import org.warn.aws.s3.metrics.TransferMetrics;
+import org.warn.aws.util.Constants;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Uploads files compressed with gzip or zstd, without temporary files. Each file is read in fixed-size chunks that
+ * are compressed independently on a pool with one thread per core; concatenated gzip members and zstd frames are
+ * themselves valid gzip and zstd streams. Compressed chunks are appended in order to a part, and every full part is
+ * sent as a multipart upload part while the next chunks are still being compressed. Files that compress into less
+ * than one part are sent with a single PUT.
+ *
+ * Memory is bounded by a byte budget covering chunks being compressed and parts waiting to be sent; reading blocks
+ * while the budget is used up. As in {@link UploadPipeline}, results are handed back to the submitting thread.
+ */
+@Slf4j
+class CompressedUploadPipeline {
+
+    private static final int CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final int MAX_PARTS = 10_000;
+    private static final int ZSTD_LEVEL = 3;
+
+    interface CompletionHandler {
+        void onCompletion( CompressedUpload upload ) throws InterruptedException;
+    }
+
+    /**
+     * State of one file being compressed and uploaded. Chunk results are applied strictly in file order through
+     * {@link #tail}, so only one thread touches the part being filled at any time.
+     */
+    static class CompressedUpload {
+
+        private final String bucketName;
+        private final String key;
+        private final File file;
+        private final CompletionHandler handler;
+        private final long partSize;
+        private final long startNanos = System.nanoTime();
+        private RunJournal.Entry journalEntry;
+        private final List<byte[]> partChunks = new ArrayList<>();
+        private final List<CompletableFuture<PartETag>> parts = new ArrayList<>();
+        private CompletableFuture<Void> tail = CompletableFuture.completedFuture( null );
+        private long partBytes;
+        private long uncompressedSize;
+        private long compressedSize;
+        private CompletableFuture<String> uploadId; // null until the multipart upload is initiated
+        private String eTag;
+        private volatile Throwable error;
+
+        private CompressedUpload( String bucketName, String key, File file, long partSize,
+                                  CompletionHandler handler ) {
+            this.bucketName = bucketName;
+            this.key = key;
+            this.file = file;
+            this.partSize = partSize;
+            this.handler = handler;
+        }
+
+        String getBucketName() {
+            return bucketName;
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        long getUncompressedSize() {
+            return uncompressedSize;
+        }
+
+        long getCompressedSize() {
+            return compressedSize;
+        }
+
+        String getETag() {
+            return eTag;
+        }
+
+        /**
+         * The first error that stopped the upload, or null if it completed.
+         */
+        Throwable getError() {
+            return error;
+        }
+    }
+
+    private final AmazonS3 s3Client;
+    private final ExecutorService executorService;
+    private final ExecutorService compressionExecutor;
+    private final TransferMetrics metrics;
+    private final ProgressListener progressListener;
+    private final String compression;
+    private final long minPartSize;
+    private final long maxBufferedBytes;
+    private final BlockingQueue<Object> events = new LinkedBlockingQueue<>();
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    private long bufferedBytes;
+    private int inFlight;
+
+    /**
+     * @param maxInFlight  number of chunks or parts that may be buffered at once
+     */
+    CompressedUploadPipeline( AmazonS3 s3Client, ExecutorService executorService, TransferMetrics metrics,
+                              ProgressListener progressListener, String compression, long minPartSize,
+                              int maxInFlight ) {
+        this.s3Client = s3Client;
+        this.executorService = executorService;
+        this.metrics = metrics;
+        this.progressListener = progressListener;
+        this.compression = compression;
+        this.minPartSize = minPartSize;
+        this.maxBufferedBytes = Math.max( minPartSize + CHUNK_SIZE,
+                (long) maxInFlight * Math.max( CHUNK_SIZE, minPartSize ) );
+        this.compressionExecutor = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors(), r -> {
+            Thread thread = new Thread( r, "compression" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+    }
+
+    /**
+     * Returns the key suffix for the configured compression, e.g. {@code .gz}.
+     */
+    String getKeySuffix() {
+        return getKeySuffix( compression );
+    }
+
+    /**
+     * Returns the compression that the key was written with, judging by its suffix, or null.
+     */
+    static String getCompression( String key ) {
+        for( String compression: Constants.SUPPORTED_COMPRESSIONS_LIST ) {
+            if( key.endsWith( getKeySuffix( compression ) ) )
+                return compression;
+        }
+        return null;
+    }
+
+    private static String getKeySuffix( String compression ) {
+        return Constants.COMPRESSION_ZSTD.equals( compression ) ? ".zst" : ".gz";
+    }
+
+    void submit( String bucketName, String key, File file, CompletionHandler handler )
+            throws InterruptedException {
+        // keep well below the part count limit, since compressed data may be slightly larger than the input
+        long partSize = Math.max( minPartSize, file.length() / ( MAX_PARTS - MAX_PARTS / 10 ) + 1 );
+        CompressedUpload upload = new CompressedUpload( bucketName, key, file, partSize, handler );
+        upload.journalEntry = metrics.startJournalEntry( RunJournal.OPERATION_UPLOAD, bucketName, key, file.length() );
+        inFlight++;
+        try( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ) ) {
+            while( upload.error == null ) {
+                awaitBudget( upload );
+                byte[] chunk = readChunk( channel );
+                if( chunk == null )
+                    break;
+                bufferedBytes += CHUNK_SIZE;
+                upload.uncompressedSize += chunk.length;
+                CompletableFuture<byte[]> compressed = CompletableFuture.supplyAsync( () -> compress( chunk ),
+                        compressionExecutor );
+                // handled in file order whether or not the chunk compressed, so its budget is always released
+                upload.tail = upload.tail.thenCompose( ignored -> compressed.handle( ( bytes, e ) -> {
+                    if( e != null ) {
+                        events.add( new Release( CHUNK_SIZE ) );
+                        fail( upload, e );
+                        return null;
+                    }
+                    events.add( new Release( CHUNK_SIZE - bytes.length ) );
+                    try {
+                        appendChunk( upload, bytes );
+                    } catch( RuntimeException appendError ) {
+                        fail( upload, appendError );
+                    }
+                    return null;
+                } ) );
+            }
+        } catch( IOException e ) {
+            recordError( upload, e );
+        }
+        upload.tail.thenComposeAsync( ignored -> finish( upload ), executorService ).whenComplete( ( ignored, e ) -> {
+            if( e != null )
+                fail( upload, e );
+            events.add( upload );
+        } );
+        drainEvents();
+    }
+
+    /**
+     * Waits for every upload submitted so far. The pipeline stays open, so more files can be submitted afterwards.
+     */
+    void awaitCompletion() throws InterruptedException {
+        while( inFlight > 0 )
+            handle( events.take() );
+    }
+
+    /**
+     * Stops the compression threads. Called once, when no more files will be submitted.
+     */
+    void close() {
+        compressionExecutor.shutdownNow();
+    }
+
+    /**
+     * Waits until the next chunk of the upload fits in the budget. The budget always leaves room for a full part of
+     * this upload plus one chunk, since a part is only sent, and its bytes released, once a chunk fills it.
+     */
+    private void awaitBudget( CompressedUpload upload ) throws InterruptedException {
+        long budget = Math.max( maxBufferedBytes, upload.partSize + CHUNK_SIZE );
+        while( bufferedBytes > 0 && bufferedBytes + CHUNK_SIZE > budget )
+            handle( events.take() );
+        drainEvents();
+    }
+
+    private void drainEvents() throws InterruptedException {
+        Object event;
+        while( ( event = events.poll() ) != null )
+            handle( event );
+    }
+
+    private void handle( Object event ) throws InterruptedException {
+        if( event instanceof Release ) {
+            bufferedBytes -= ( (Release) event ).bytes;
+            return;
+        }
+        CompressedUpload upload = (CompressedUpload) event;
+        inFlight--;
+        metrics.recordObjectLatency( System.nanoTime() - upload.startNanos );
+        try {
+            upload.handler.onCompletion( upload );
+        } finally {
+            metrics.finishJournalEntry( upload.journalEntry, upload.error );
+        }
+    }
+
+    private byte[] readChunk( FileChannel channel ) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate( CHUNK_SIZE );
+        while( buffer.hasRemaining() && channel.read( buffer ) >= 0 ) {
+            // keep reading until the chunk is full or the file ends
+        }
+        if( buffer.position() == 0 )
+            return null;
+        return buffer.position() == CHUNK_SIZE ? buffer.array() : Arrays.copyOf( buffer.array(), buffer.position() );
+    }
+
+    private byte[] compress( byte[] chunk ) {
+        long cpuStart = threadMXBean.getCurrentThreadCpuTime();
+        byte[] compressed;
+        if( Constants.COMPRESSION_ZSTD.equals( compression ) ) {
+            compressed = Zstd.compress( chunk, ZSTD_LEVEL );
+        } else {
+            ByteArrayOutputStream out = new ByteArrayOutputStream( chunk.length / 4 );
+            try( GZIPOutputStream gzip = new GZIPOutputStream( out, 64 * 1024 ) ) {
+                gzip.write( chunk );
+            } catch( IOException e ) {
+                throw new IllegalStateException( e ); // in-memory streams do not fail
+            }
+            compressed = out.toByteArray();
+        }
+        metrics.recordCompression( chunk.length, compressed.length,
+                threadMXBean.getCurrentThreadCpuTime() - cpuStart );
+        return compressed;
+    }
+
+    /**
+     * Adds a compressed chunk to the part being filled, and sends the part once it reaches the part size. Runs on
+     * the compression threads, in file order.
+     */
+    private void appendChunk( CompressedUpload upload, byte[] compressed ) {
+        if( upload.error != null ) {
+            events.add( new Release( compressed.length ) );
+            return;
+        }
+        upload.partChunks.add( compressed );
+        upload.partBytes += compressed.length;
+        upload.compressedSize += compressed.length;
+        if( upload.partBytes >= upload.partSize )
+            sendPart( upload );
+    }
+
+    private void sendPart( CompressedUpload upload ) {
+        if( upload.uploadId == null ) {
+            InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest( upload.bucketName, upload.key,
+                    newObjectMetadata( -1 ) );
+            // like the parts, sent from the transfer threads, so that waiting for S3 does not hold up compression
+            upload.uploadId = CompletableFuture.supplyAsync( () -> s3Client.initiateMultipartUpload( request )
+                    .getUploadId(), executorService );
+        }
+        int partNumber = upload.parts.size() + 1;
+        List<byte[]> chunks = new ArrayList<>( upload.partChunks );
+        long partBytes = upload.partBytes;
+        upload.partChunks.clear();
+        upload.partBytes = 0;
+
+        UploadPartRequest request = new UploadPartRequest()
+                .withBucketName( upload.bucketName )
+                .withKey( upload.key )
+                .withPartNumber( partNumber )
+                .withPartSize( partBytes )
+                .withInputStream( new ChunksInputStream( chunks ) );
+        request.setGeneralProgressListener( progressListener );
+        CompletableFuture<PartETag> part = upload.uploadId.thenApplyAsync( uploadId -> s3Client.uploadPart(
+                request.withUploadId( uploadId ) ).getPartETag(), executorService );
+        upload.parts.add( part.whenComplete( ( partETag, e ) -> {
+            // the error first, so that reading stops before the budget wakes the submitting thread
+            if( e != null )
+                recordError( upload, e );
+            events.add( new Release( partBytes ) );
+        } ) );
+    }
+
+    /**
+     * Sends what is left once every chunk has been appended: the last part of a multipart upload, or the whole
+     * object with a single PUT if it never filled a part. Completing a multipart upload waits for its parts without
+     * blocking a transfer thread.
+     */
+    private CompletableFuture<Void> finish( CompressedUpload upload ) {
+        if( upload.error != null ) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally( upload.error );
+            return failed;
+        }
+        if( upload.uploadId == null ) {
+            long size = upload.partBytes;
+            PutObjectRequest request = new PutObjectRequest( upload.bucketName, upload.key,
+                    new ChunksInputStream( new ArrayList<>( upload.partChunks ) ), newObjectMetadata( size ) );
+            request.setGeneralProgressListener( progressListener );
+            upload.partChunks.clear();
+            upload.partBytes = 0;
+            try {
+                upload.eTag = s3Client.putObject( request ).getETag();
+            } finally {
+                events.add( new Release( size ) );
+            }
+            return CompletableFuture.completedFuture( null );
+        }
+
+        if( upload.partBytes > 0 )
+            sendPart( upload );
+        return CompletableFuture.allOf( upload.parts.toArray( new CompletableFuture[ 0 ] ) ).thenRunAsync( () -> {
+            List<PartETag> partETags = new ArrayList<>();
+            for( CompletableFuture<PartETag> part: upload.parts )
+                partETags.add( part.join() );
+            upload.eTag = s3Client.completeMultipartUpload( new CompleteMultipartUploadRequest( upload.bucketName,
+                    upload.key, upload.uploadId.join(), partETags ) ).getETag();
+        }, executorService );
+    }
+
+    /**
+     * Records the first error of an upload, releases the chunks it still holds, and aborts its multipart upload so
+     * the parts already stored are not left behind. Parts still being sent fail once the upload is gone.
+     */
+    private void fail( CompressedUpload upload, Throwable e ) {
+        recordError( upload, e );
+        if( !upload.partChunks.isEmpty() ) {
+            events.add( new Release( upload.partBytes ) );
+            upload.partChunks.clear();
+            upload.partBytes = 0;
+        }
+        CompletableFuture<String> uploadId = upload.uploadId;
+        upload.uploadId = null;
+        if( uploadId == null )
+            return;
+        uploadId.thenAccept( id -> {
+            try {
+                s3Client.abortMultipartUpload( new AbortMultipartUploadRequest( upload.bucketName, upload.key, id ) );
+            } catch( RuntimeException abortError ) {
+                log.error("Error aborting multipart upload - key={}, Error={}", upload.key, abortError.getMessage());
+            }
+        } );
+    }
+
+    /**
+     * Records the first error of an upload, which stops the reading of its file. Failed parts only record their
+     * error, since the part being filled belongs to the compression threads; the upload is aborted once it finishes.
+     */
+    private static void recordError( CompressedUpload upload, Throwable e ) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        synchronized( upload ) {
+            if( upload.error == null )
+                upload.error = cause;
+        }
+    }
+
+    private ObjectMetadata newObjectMetadata( long contentLength ) {
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setContentEncoding( compression );
+        if( contentLength >= 0 )
+            objectMetadata.setContentLength( contentLength );
+        return objectMetadata;
+    }
+
+    /**
+     * Reads a list of compressed chunks as one stream without copying them into a single buffer. Supports mark and
+     * reset, which the client needs to retry a request.
+     */
+    static class ChunksInputStream extends InputStream {
+
+        private final List<byte[]> chunks;
+        private int chunk;
+        private int offset;
+        private int markedChunk;
+        private int markedOffset;
+
+        ChunksInputStream( List<byte[]> chunks ) {
+            this.chunks = chunks;
+        }
+
+        @Override
+        public int read() {
+            byte[] b = new byte[ 1 ];
+            return read( b, 0, 1 ) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read( byte[] b, int off, int len ) {
+            if( len == 0 )
+                return 0;
+            while( chunk < chunks.size() && offset == chunks.get( chunk ).length ) {
+                chunk++;
+                offset = 0;
+            }
+            if( chunk == chunks.size() )
+                return -1;
+            int read = Math.min( len, chunks.get( chunk ).length - offset );
+            System.arraycopy( chunks.get( chunk ), offset, b, off, read );
+            offset += read;
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return chunk < chunks.size() ? chunks.get( chunk ).length - offset : 0;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public void mark( int readLimit ) {
+            markedChunk = chunk;
+            markedOffset = offset;
+        }
+
+        @Override
+        public void reset() {
+            chunk = markedChunk;
+            offset = markedOffset;
+        }
+    }
+
+    private static class Release {
+        private final long bytes;
+
+        private Release( long bytes ) {
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package org.warn.aws.s3.client;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.transfer.Copy;
+import com.amazonaws.services.s3.transfer.Transfer;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.Upload;
+import com.amazonaws.services.s3.transfer.internal.TransferStateChangeListener;
+import com.amazonaws.util.BinaryUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Uploads each distinct file content only once. Files are hashed on a pool with one thread per core, a bounded number
+ * of files ahead of the {@link UploadPipeline}, so hashing overlaps with uploading. The first file with a given
+ * content is uploaded; every later file with the same content is created with a server-side copy of that object once
+ * its upload has completed, so its bytes are not sent again. {@link TransferManager} sends the copy as CopyObject, or
+ * as UploadPartCopy requests for large objects. If the first upload fails, the next file with the same content is
+ * uploaded instead.
+ *
+ * Contents are only matched within one run. As in the pipelines, results are handed back to the submitting thread.
+ */
+class DeduplicatingUploader {
+
+    private static final int HASH_BUFFER_SIZE = 1024 * 1024;
+
+    interface UploadHandler {
+
+        /**
+         * Returns true if the upload succeeded, so that files with the same content can be copied from it.
+         */
+        boolean onCompletion( String key, File file, Upload upload ) throws InterruptedException;
+    }
+
+    interface CopyHandler {
+
+        /**
+         * Called with the reason the copy failed, or with null if it succeeded.
+         */
+        void onCompletion( String key, File file, String sourceKey, AmazonClientException error )
+                throws InterruptedException;
+    }
+
+    private static class PendingFile {
+        private final String key;
+        private final File file;
+        private final CompletableFuture<String> hash;
+
+        private PendingFile( String key, File file, CompletableFuture<String> hash ) {
+            this.key = key;
+            this.file = file;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Files with the same content: the one whose upload the others are copied from, and those waiting for it.
+     */
+    private static class Content {
+        private final String hash;
+        private final Deque<PendingFile> waitingFiles = new ArrayDeque<>();
+        private String sourceKey;
+        private boolean uploaded;
+
+        private Content( String hash ) {
+            this.hash = hash;
+        }
+    }
+
+    private class PendingCopy implements TransferStateChangeListener {
+
+        private final PendingFile pendingFile;
+        private final String sourceKey;
+        private final AtomicBoolean done = new AtomicBoolean();
+        private volatile Copy copy;
+
+        private PendingCopy( PendingFile pendingFile, String sourceKey ) {
+            this.pendingFile = pendingFile;
+            this.sourceKey = sourceKey;
+        }
+
+        @Override
+        public void transferStateChanged( Transfer transfer, Transfer.TransferState state ) {
+            if( state == Transfer.TransferState.Completed || state == Transfer.TransferState.Failed ||
+                    state == Transfer.TransferState.Canceled ) {
+                if( done.compareAndSet( false, true ) ) {
+                    copy = (Copy) transfer;
+                    completedCopies.add( this );
+                }
+            }
+        }
+    }
+
+    private final TransferManager transferManager;
+    private final UploadPipeline pipeline;
+    private final String bucketName;
+    private final ProgressListener progressListener;
+    private final UploadHandler uploadHandler;
+    private final CopyHandler copyHandler;
+    private final int maxInFlight;
+    private final ExecutorService hashExecutor;
+    private final Map<String, Content> contents = new HashMap<>();
+    private final Deque<PendingFile> hashingFiles = new ArrayDeque<>();
+    private final Deque<Content> settledContents = new ArrayDeque<>();
+    private final BlockingQueue<PendingCopy> completedCopies = new LinkedBlockingQueue<>();
+    private int copiesInFlight;
+
+    /**
+     * @param maxInFlight  number of copies kept in flight, and of files hashed ahead of the upload pipeline
+     */
+    DeduplicatingUploader( TransferManager transferManager, UploadPipeline pipeline, String bucketName,
+                           ProgressListener progressListener, int maxInFlight, UploadHandler uploadHandler,
+                           CopyHandler copyHandler ) {
+        this.transferManager = transferManager;
+        this.pipeline = pipeline;
+        this.bucketName = bucketName;
+        this.progressListener = progressListener;
+        this.maxInFlight = Math.max( 1, maxInFlight );
+        this.uploadHandler = uploadHandler;
+        this.copyHandler = copyHandler;
+        this.hashExecutor = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors(), r -> {
+            Thread thread = new Thread( r, "hashing" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+    }
+
+    void submit( String key, File file ) throws InterruptedException {
+        hashingFiles.add( new PendingFile( key, file, CompletableFuture.supplyAsync( () -> hash( file ),
+                hashExecutor ) ) );
+        while( hashingFiles.size() > maxInFlight )
+            process( hashingFiles.poll() );
+        processSettledContents();
+        processCompletedCopies();
+    }
+
+    void awaitCompletion() throws InterruptedException {
+        try {
+            while( !hashingFiles.isEmpty() ) {
+                process( hashingFiles.poll() );
+                processSettledContents();
+            }
+            while( true ) {
+                pipeline.awaitCompletion();
+                if( settledContents.isEmpty() )
+                    break;
+                processSettledContents();
+            }
+            while( copiesInFlight > 0 )
+                completeCopy( completedCopies.take() );
+        } finally {
+            hashExecutor.shutdownNow();
+        }
+    }
+
+    private void process( PendingFile pendingFile ) throws InterruptedException {
+        String hash;
+        try {
+            hash = pendingFile.hash.join();
+        } catch( CompletionException e ) {
+            // the file could not be read; its upload fails and reports why
+            upload( null, pendingFile );
+            return;
+        }
+        Content content = contents.get( hash );
+        if( content == null ) {
+            content = new Content( hash );
+            contents.put( hash, content );
+            upload( content, pendingFile );
+        } else if( content.uploaded ) {
+            copy( content.sourceKey, pendingFile );
+        } else {
+            content.waitingFiles.add( pendingFile );
+        }
+    }
+
+    private void upload( Content content, PendingFile pendingFile ) throws InterruptedException {
+        if( content != null )
+            content.sourceKey = pendingFile.key;
+        PutObjectRequest request = new PutObjectRequest( bucketName, pendingFile.key, pendingFile.file );
+        request.setGeneralProgressListener( progressListener );
+        pipeline.submit( request, upload -> {
+            boolean successful = uploadHandler.onCompletion( pendingFile.key, pendingFile.file, upload );
+            if( content == null )
+                return;
+            content.uploaded = successful;
+            if( !successful || !content.waitingFiles.isEmpty() )
+                settledContents.add( content );
+        } );
+    }
+
+    /**
+     * Copies the waiting files of contents whose upload succeeded, and uploads the next waiting file of contents
+     * whose upload failed. Runs outside of the completion handlers, which only record the result.
+     */
+    private void processSettledContents() throws InterruptedException {
+        Content content;
+        while( ( content = settledContents.poll() ) != null ) {
+            if( content.uploaded ) {
+                while( !content.waitingFiles.isEmpty() )
+                    copy( content.sourceKey, content.waitingFiles.poll() );
+            } else if( !content.waitingFiles.isEmpty() ) {
+                upload( content, content.waitingFiles.poll() );
+            } else {
+                contents.remove( content.hash );
+            }
+        }
+    }
+
+    private void copy( String sourceKey, PendingFile pendingFile ) throws InterruptedException {
+        while( copiesInFlight >= maxInFlight )
+            completeCopy( completedCopies.take() );
+        PendingCopy pendingCopy = new PendingCopy( pendingFile, sourceKey );
+        try {
+            // the source object's metadata is read before the copy starts, so some errors are thrown right here
+            transferManager.copy( new CopyObjectRequest( bucketName, sourceKey, bucketName, pendingFile.key ),
+                    pendingCopy );
+        } catch( AmazonClientException e ) {
+            copyHandler.onCompletion( pendingFile.key, pendingFile.file, sourceKey, e );
+            return;
+        }
+        copiesInFlight++;
+    }
+
+    private void processCompletedCopies() throws InterruptedException {
+        PendingCopy pendingCopy;
+        while( ( pendingCopy = completedCopies.poll() ) != null )
+            completeCopy( pendingCopy );
+    }
+
+    private void completeCopy( PendingCopy pendingCopy ) throws InterruptedException {
+        copiesInFlight--;
+        Copy copy = pendingCopy.copy;
+        AmazonClientException error = null;
+        if( copy.getState() != Transfer.TransferState.Completed ) {
+            error = copy.waitForException(); // returns at once, the copy is done
+            if( error == null )
+                error = new AmazonClientException( copy.getState().toString() );
+        }
+        copyHandler.onCompletion( pendingCopy.pendingFile.key, pendingCopy.pendingFile.file, pendingCopy.sourceKey,
+                error );
+    }
+
+    /**
+     * Returns the SHA-256 of the file's content followed by its size.
+     */
+    private static String hash( File file ) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance( "SHA-256" );
+        } catch( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException( e ); // every JVM supports SHA-256
+        }
+        byte[] buffer = new byte[ HASH_BUFFER_SIZE ];
+        long size = 0;
+        try( InputStream in = Files.newInputStream( file.toPath() ) ) {
+            int read;
+            while( ( read = in.read( buffer ) ) > 0 ) {
+                digest.update( buffer, 0, read );
+                size += read;
+            }
+        } catch( IOException e ) {
+            throw new UncheckedIOException( e );
+        }
+        return BinaryUtils.toHex( digest.digest() ) + "-" + size;
+    }
+}
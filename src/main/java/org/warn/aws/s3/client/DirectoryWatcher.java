@@ -0,0 +1,225 @@
+package org.warn.aws.s3.client;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a directory tree and reports files once they have stopped changing. Events from a {@link WatchService}
+ * mark files as pending, with each burst of events drained in one go, and a pending file is reported when its size
+ * and modification time have stayed the same for the settle interval. The whole tree is also scanned periodically
+ * and whenever events were lost, which covers file systems whose events are unreliable, such as network mounts.
+ * The number of pending files is bounded; changes beyond the limit are left to the next scan.
+ */
+@Slf4j
+class DirectoryWatcher implements Closeable {
+
+    interface FileHandler {
+
+        /**
+         * Returns true if the file is new or has changed since it was last uploaded.
+         */
+        boolean isChanged( Path file, long size, long lastModified );
+
+        void onSettled( Path file, long size, long lastModified ) throws InterruptedException;
+
+        /**
+         * Called on every pass of the watch loop, which runs at least every {@link #POLL_INTERVAL_MILLIS}.
+         */
+        void onIdle() throws InterruptedException, IOException;
+    }
+
+    private static final long POLL_INTERVAL_MILLIS = 250;
+    private static final int MAX_PENDING_FILES = 100_000;
+
+    private static class PendingFile {
+        private long size;
+        private long lastModified;
+        private long observedAtNanos;
+
+        private PendingFile( long size, long lastModified ) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.observedAtNanos = System.nanoTime();
+        }
+    }
+
+    private final Path root;
+    private final long settleNanos;
+    private final long scanIntervalNanos;
+    private final FileHandler handler;
+    private final WatchService watchService;
+    private final Map<Path, PendingFile> pendingFiles = new LinkedHashMap<>();
+    private boolean eventsAvailable = true;
+    private boolean rescanNeeded = true;
+    private long lastScanNanos;
+
+    DirectoryWatcher( Path root, long settleSeconds, long scanIntervalSeconds, FileHandler handler )
+            throws IOException {
+        this.root = root;
+        this.settleNanos = TimeUnit.SECONDS.toNanos( settleSeconds );
+        this.scanIntervalNanos = TimeUnit.SECONDS.toNanos( scanIntervalSeconds );
+        this.handler = handler;
+        this.watchService = root.getFileSystem().newWatchService();
+    }
+
+    /**
+     * Watches the tree until the thread is interrupted. The first pass scans the whole tree, so files that changed
+     * while nothing was watching are picked up as well.
+     */
+    void run() throws InterruptedException, IOException {
+        log.info("Watching directory - path={}", root);
+        while( true ) {
+            long now = System.nanoTime();
+            if( ( rescanNeeded && pendingFiles.size() < MAX_PENDING_FILES / 2 ) ||
+                    now - lastScanNanos >= scanIntervalNanos )
+                scan();
+
+            WatchKey watchKey = watchService.poll( POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS );
+            while( watchKey != null ) {
+                processEvents( watchKey );
+                watchKey = watchService.poll();
+            }
+            checkPendingFiles();
+            handler.onIdle();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+
+    private void processEvents( WatchKey watchKey ) throws IOException {
+        Path directory = (Path) watchKey.watchable();
+        for( WatchEvent<?> event: watchKey.pollEvents() ) {
+            if( event.kind() == StandardWatchEventKinds.OVERFLOW ) {
+                rescanNeeded = true;
+                continue;
+            }
+            Path path = directory.resolve( (Path) event.context() );
+            if( Files.isDirectory( path, LinkOption.NOFOLLOW_LINKS ) ) {
+                // files may have been created in it before it was registered
+                walk( path );
+                continue;
+            }
+            markPending( path );
+        }
+        watchKey.reset();
+    }
+
+    /**
+     * Registers every directory in the tree and marks files that need uploading as pending.
+     */
+    private void scan() throws IOException {
+        rescanNeeded = false;
+        lastScanNanos = System.nanoTime();
+        walk( root );
+    }
+
+    private void walk( Path start ) throws IOException {
+        Files.walkFileTree( start, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory( Path directory, BasicFileAttributes attributes ) {
+                register( directory );
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile( Path file, BasicFileAttributes attributes ) {
+                if( attributes.isRegularFile() && !pendingFiles.containsKey( file ) && handler.isChanged( file,
+                        attributes.size(), attributes.lastModifiedTime().toMillis() ) )
+                    addPending( file, attributes );
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed( Path file, IOException e ) {
+                // deleted while walking, or unreadable; a later scan tries again
+                return FileVisitResult.CONTINUE;
+            }
+        } );
+    }
+
+    private void register( Path directory ) {
+        if( !eventsAvailable )
+            return;
+        try {
+            directory.register( watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY );
+        } catch( IOException e ) {
+            // e.g. the inotify watch limit was reached
+            eventsAvailable = false;
+            log.warn("Cannot watch directory, falling back to scanning every {} s - path={}, Message={}",
+                    TimeUnit.NANOSECONDS.toSeconds( scanIntervalNanos ), directory, e.getMessage());
+        }
+    }
+
+    private void markPending( Path file ) throws IOException {
+        if( pendingFiles.containsKey( file ) )
+            return; // the next check sees the change
+        try {
+            BasicFileAttributes attributes = Files.readAttributes( file, BasicFileAttributes.class,
+                    LinkOption.NOFOLLOW_LINKS );
+            if( attributes.isRegularFile() )
+                addPending( file, attributes );
+        } catch( NoSuchFileException e ) {
+            // already deleted or renamed
+        }
+    }
+
+    private void addPending( Path file, BasicFileAttributes attributes ) {
+        if( pendingFiles.size() >= MAX_PENDING_FILES ) {
+            rescanNeeded = true;
+            return;
+        }
+        pendingFiles.put( file, new PendingFile( attributes.size(), attributes.lastModifiedTime().toMillis() ) );
+    }
+
+    private void checkPendingFiles() throws InterruptedException, IOException {
+        long now = System.nanoTime();
+        Iterator<Map.Entry<Path, PendingFile>> iterator = pendingFiles.entrySet().iterator();
+        while( iterator.hasNext() ) {
+            Map.Entry<Path, PendingFile> entry = iterator.next();
+            Path file = entry.getKey();
+            PendingFile pendingFile = entry.getValue();
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes( file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS );
+            } catch( NoSuchFileException e ) {
+                iterator.remove();
+                continue;
+            }
+            long size = attributes.size();
+            long lastModified = attributes.lastModifiedTime().toMillis();
+            if( size != pendingFile.size || lastModified != pendingFile.lastModified ) {
+                pendingFile.size = size;
+                pendingFile.lastModified = lastModified;
+                pendingFile.observedAtNanos = now;
+                continue;
+            }
+            if( now - pendingFile.observedAtNanos < settleNanos )
+                continue;
+            iterator.remove();
+            if( handler.isChanged( file, size, lastModified ) )
+                handler.onSettled( file, size, lastModified );
+        }
+    }
+}
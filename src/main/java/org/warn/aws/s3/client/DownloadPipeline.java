@@ -0,0 +1,294 @@
+package org.warn.aws.s3.client;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import lombok.extern.slf4j.Slf4j;
+import org.warn.aws.s3.metrics.RunJournal;
+import org.warn.aws.s3.metrics.TransferMetrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+
+/**
+ * Downloads objects with concurrent ranged GETs. Each object is split into parts that are written straight into a
+ * preallocated local file with positional writes, so no part is ever held in memory as a whole. Parts go to a temporary
+ * file next to the target, which is moved into place once every part is written, so a failed download leaves an
+ * existing file untouched. Up to a fixed number of parts are in flight across all objects, small objects taking one
+ * part each, and completed downloads are handed back to the submitting thread, as in {@link UploadPipeline}.
+ */
+@Slf4j
+class DownloadPipeline {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_PART_ATTEMPTS = 3;
+    private static final String TEMP_FILE_SUFFIX = ".download";
+
+    interface CompletionHandler {
+        void onCompletion( Download download ) throws InterruptedException;
+    }
+
+    static class Download {
+
+        private final String bucketName;
+        private final String key;
+        private final String eTag;
+        private final long size;
+        private final Path localFile;
+        private final Path tempFile;
+        private final CompletionHandler handler;
+        private final AtomicInteger remainingParts = new AtomicInteger();
+        private final long startNanos = System.nanoTime();
+        private RunJournal.Entry journalEntry;
+        private FileChannel channel;
+        private volatile Exception error;
+
+        private Download( String bucketName, String key, String eTag, long size, Path localFile,
+                          CompletionHandler handler ) {
+            this.bucketName = bucketName;
+            this.key = key;
+            this.eTag = eTag;
+            this.size = size;
+            this.localFile = localFile;
+            this.tempFile = localFile.resolveSibling( "." + localFile.getFileName() + TEMP_FILE_SUFFIX );
+            this.handler = handler;
+        }
+
+        String getBucketName() {
+            return bucketName;
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        Path getLocalFile() {
+            return localFile;
+        }
+
+        /**
+         * The first error of any part, or null if every part was downloaded.
+         */
+        Exception getError() {
+            return error;
+        }
+
+        private void fail( Exception e ) {
+            if( error == null )
+                error = e;
+        }
+    }
+
+    private static class CompletedPart {
+        private final Download download;
+        private final boolean last;
+
+        private CompletedPart( Download download, boolean last ) {
+            this.download = download;
+            this.last = last;
+        }
+    }
+
+    private final AmazonS3 s3Client;
+    private final ExecutorService executorService;
+    private final TransferMetrics metrics;
+    private final BandwidthLimiter bandwidthLimiter;
+    private final LongConsumer progressListener;
+    private final int maxInFlight;
+    private final long partSize;
+    private final BlockingQueue<CompletedPart> completedParts = new LinkedBlockingQueue<>();
+    private int inFlight;
+    private volatile boolean cancelled;
+
+    DownloadPipeline( AmazonS3 s3Client, ExecutorService executorService, TransferMetrics metrics,
+                      BandwidthLimiter bandwidthLimiter, LongConsumer progressListener, int maxInFlight,
+                      long partSize ) {
+        this.s3Client = s3Client;
+        this.executorService = executorService;
+        this.metrics = metrics;
+        this.bandwidthLimiter = bandwidthLimiter;
+        this.progressListener = progressListener;
+        this.maxInFlight = maxInFlight;
+        this.partSize = partSize;
+    }
+
+    /**
+     * Starts downloading an object into the given file, blocking only while the part limit is reached. The eTag, if
+     * given, pins every ranged GET to the same version of the object.
+     */
+    void submit( String bucketName, String key, String eTag, long size, Path localFile, CompletionHandler handler )
+            throws InterruptedException {
+        Download download = new Download( bucketName, key, eTag, size, localFile, handler );
+        download.journalEntry = metrics.startJournalEntry( RunJournal.OPERATION_DOWNLOAD, bucketName, key, size );
+        long parts = Math.max( 1, ( size + partSize - 1 ) / partSize );
+        download.remainingParts.set( (int) parts );
+        try {
+            if( localFile.getParent() != null )
+                Files.createDirectories( localFile.getParent() );
+            download.channel = FileChannel.open( download.tempFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING );
+            // preallocate, so parts can be written at their offsets in any order
+            if( size > 0 )
+                download.channel.write( ByteBuffer.wrap( new byte[ 1 ] ), size - 1 );
+        } catch( IOException e ) {
+            download.fail( e );
+            download.remainingParts.set( 1 );
+            awaitCapacity();
+            inFlight++;
+            completedParts.add( new CompletedPart( download, true ) );
+            return;
+        }
+
+        for( long part = 0; part < parts; part++ ) {
+            long start = part * partSize;
+            long end = Math.min( size, start + partSize ) - 1;
+            awaitCapacity();
+            inFlight++;
+            executorService.execute( () -> downloadPart( download, start, end ) );
+        }
+    }
+
+    void awaitCompletion() throws InterruptedException {
+        try {
+            while( inFlight > 0 )
+                complete( completedParts.take() );
+        } catch( InterruptedException e ) {
+            cancelled = true;
+            throw e;
+        }
+    }
+
+    private void awaitCapacity() throws InterruptedException {
+        try {
+            while( inFlight >= maxInFlight )
+                complete( completedParts.take() );
+        } catch( InterruptedException e ) {
+            cancelled = true;
+            throw e;
+        }
+        CompletedPart completed;
+        while( ( completed = completedParts.poll() ) != null )
+            complete( completed );
+    }
+
+    private void complete( CompletedPart completedPart ) throws InterruptedException {
+        inFlight--;
+        if( !completedPart.last )
+            return;
+
+        Download download = completedPart.download;
+        try {
+            if( download.channel != null )
+                download.channel.close();
+            if( download.error == null )
+                moveIntoPlace( download );
+        } catch( IOException e ) {
+            download.fail( e );
+        }
+        if( download.error != null ) {
+            try {
+                Files.deleteIfExists( download.tempFile );
+            } catch( IOException e ) {
+                log.warn("Error deleting partial download - file={}, Message={}", download.tempFile, e.getMessage());
+            }
+        }
+        metrics.recordObjectLatency( System.nanoTime() - download.startNanos );
+        try {
+            download.handler.onCompletion( download );
+        } finally {
+            metrics.finishJournalEntry( download.journalEntry, download.error );
+        }
+    }
+
+    private static void moveIntoPlace( Download download ) throws IOException {
+        try {
+            Files.move( download.tempFile, download.localFile, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING );
+        } catch( AtomicMoveNotSupportedException e ) {
+            Files.move( download.tempFile, download.localFile, StandardCopyOption.REPLACE_EXISTING );
+        }
+    }
+
+    private void downloadPart( Download download, long start, long end ) {
+        try {
+            if( download.error == null && download.size > 0 )
+                downloadRange( download, start, end );
+        } catch( Exception e ) {
+            download.fail( e );
+        } finally {
+            boolean last = download.remainingParts.decrementAndGet() == 0;
+            completedParts.add( new CompletedPart( download, last ) );
+        }
+    }
+
+    /**
+     * Copies one byte range of the object into the local file. A connection lost mid-part is retried from the last
+     * byte written; errors returned by S3 have already been retried by the client and are not retried again.
+     */
+    private void downloadRange( Download download, long start, long end ) throws IOException {
+        long startNanos = System.nanoTime();
+        long position = start;
+        byte[] buffer = new byte[ BUFFER_SIZE ];
+        ByteBuffer byteBuffer = ByteBuffer.wrap( buffer );
+        for( int attempt = 1; ; attempt++ ) {
+            GetObjectRequest request = new GetObjectRequest( download.bucketName, download.key )
+                    .withRange( position, end );
+            if( download.eTag != null )
+                request.setMatchingETagConstraints( Collections.singletonList( download.eTag ) );
+            try {
+                S3Object object = s3Client.getObject( request );
+                if( object == null ) // the ETag constraint failed
+                    throw new IOException( "Object changed during download - key=" + download.key );
+
+                S3ObjectInputStream in = object.getObjectContent();
+                try {
+                    int read;
+                    while( position <= end && ( read = in.read( buffer ) ) > 0 ) {
+                        if( cancelled || download.error != null )
+                            throw new IOException( "Download cancelled - key=" + download.key );
+                        bandwidthLimiter.acquire( read );
+                        byteBuffer.clear().limit( read );
+                        while( byteBuffer.hasRemaining() )
+                            position += download.channel.write( byteBuffer, position );
+                        progressListener.accept( read );
+                    }
+                    if( position <= end )
+                        throw new IOException( "Unexpected end of object content - key=" + download.key );
+                } catch( IOException | RuntimeException e ) {
+                    in.abort();
+                    throw e;
+                } finally {
+                    in.close();
+                }
+                metrics.recordPart( System.nanoTime() - startNanos );
+                return;
+
+            } catch( IOException | SdkClientException e ) {
+                if( e instanceof AmazonServiceException || cancelled || download.error != null ||
+                        attempt >= MAX_PART_ATTEMPTS )
+                    throw e;
+                log.warn("Retrying ranged GET - key={}, offset={}, attempt={}, Error={}",
+                        download.key, position, attempt + 1, e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package org.warn.aws.s3.client;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.RequestHandler2;
+import lombok.extern.slf4j.Slf4j;
+import org.warn.aws.s3.metrics.ExecutionGauges;
+import org.warn.aws.util.Constants;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads that transfers run on, and an HTTP connection pool sized to match them. Either a bounded pool of
+ * platform threads, or a virtual thread per task on Java 21 and later, which lets thousands of requests wait on the
+ * network without an OS thread each. Virtual threads are created through reflection, since the tool is built for
+ * Java 11; on older runtimes the engine falls back to the platform pool.
+ */
+@Slf4j
+public class ExecutionEngine implements ExecutionGauges {
+
+    private final String type;
+    private final ExecutorService executorService;
+    private final int maxConnections;
+    private final int socketBufferSize;
+    private final AtomicInteger requestsInFlight = new AtomicInteger();
+    private final AtomicInteger peakRequestsInFlight = new AtomicInteger();
+
+    private ExecutionEngine( String type, ExecutorService executorService, int maxConnections,
+                             int socketBufferSize ) {
+        this.type = type;
+        this.executorService = executorService;
+        this.maxConnections = maxConnections;
+        this.socketBufferSize = socketBufferSize;
+    }
+
+    /**
+     * @param type              {@link Constants#ENGINE_PLATFORM} or {@link Constants#ENGINE_VIRTUAL}
+     * @param threads           size of the platform thread pool; not used for virtual threads
+     * @param maxConnections    size of the HTTP connection pool, or 0 to match the threads
+     * @param socketBufferSize  send and receive buffer size hint in bytes, or 0 for the OS default
+     */
+    public static ExecutionEngine create( String type, int threads, int maxConnections, int socketBufferSize ) {
+        if( Constants.ENGINE_VIRTUAL.equals( type ) ) {
+            try {
+                ExecutorService virtualThreads = (ExecutorService) Executors.class
+                        .getMethod( "newVirtualThreadPerTaskExecutor" ).invoke( null );
+                return new ExecutionEngine( type, new CountingExecutorService( virtualThreads ),
+                        maxConnections > 0 ? maxConnections : Constants.DEFAULT_VIRTUAL_MAX_CONNECTIONS,
+                        socketBufferSize );
+            } catch( ReflectiveOperationException | UnsupportedOperationException e ) {
+                log.warn("Virtual threads are not available on Java {}, using a pool of {} platform threads",
+                        System.getProperty( "java.version" ), threads);
+            }
+        }
+        // a fixed pool, like Executors.newFixedThreadPool, that the adaptive controller can resize
+        ExecutorService threadPool = new ThreadPoolExecutor( threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>() );
+        return new ExecutionEngine( Constants.ENGINE_PLATFORM, threadPool,
+                maxConnections > 0 ? maxConnections : threads, socketBufferSize );
+    }
+
+    /**
+     * Wraps an executor service created elsewhere, keeping the client's default connection pool.
+     */
+    public static ExecutionEngine of( ExecutorService executorService ) {
+        return new ExecutionEngine( Constants.ENGINE_PLATFORM, executorService,
+                ClientConfiguration.DEFAULT_MAX_CONNECTIONS, 0 );
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public ExecutorService getExecutorService() {
+        return executorService;
+    }
+
+    ClientConfiguration newClientConfiguration() {
+        ClientConfiguration clientConfiguration = new ClientConfiguration().withMaxConnections( maxConnections );
+        if( socketBufferSize > 0 )
+            clientConfiguration.setSocketBufferSizeHints( socketBufferSize, socketBufferSize );
+        return clientConfiguration;
+    }
+
+    /**
+     * Returns a request handler that counts the requests in flight on a client. Add it to every client that runs on
+     * this engine.
+     */
+    RequestHandler2 newRequestTracker() {
+        return new RequestHandler2() {
+
+            @Override
+            public void beforeAttempt( HandlerBeforeAttemptContext context ) {
+                peakRequestsInFlight.accumulateAndGet( requestsInFlight.incrementAndGet(), Math::max );
+            }
+
+            @Override
+            public void afterAttempt( HandlerAfterAttemptContext context ) {
+                requestsInFlight.decrementAndGet();
+            }
+        };
+    }
+
+    /**
+     * Returns the highest number of requests in flight since the last call, and starts counting again.
+     */
+    int resetPeakRequestsInFlight() {
+        return peakRequestsInFlight.getAndSet( requestsInFlight.get() );
+    }
+
+    @Override
+    public int getQueuedTasks() {
+        if( executorService instanceof ThreadPoolExecutor )
+            return ( (ThreadPoolExecutor) executorService ).getQueue().size();
+        if( executorService instanceof CountingExecutorService )
+            return ( (CountingExecutorService) executorService ).queuedTasks.get();
+        return 0;
+    }
+
+    @Override
+    public int getActiveTasks() {
+        if( executorService instanceof ThreadPoolExecutor )
+            return ( (ThreadPoolExecutor) executorService ).getActiveCount();
+        if( executorService instanceof CountingExecutorService )
+            return ( (CountingExecutorService) executorService ).activeTasks.get();
+        return 0;
+    }
+
+    @Override
+    public int getThreads() {
+        if( executorService instanceof ThreadPoolExecutor )
+            return ( (ThreadPoolExecutor) executorService ).getPoolSize();
+        return getActiveTasks();
+    }
+
+    @Override
+    public int getRequestsInFlight() {
+        return requestsInFlight.get();
+    }
+
+    @Override
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    @Override
+    public String toString() {
+        return "engine=" + type + ", threads=" + getThreads() + ", activeTasks=" + getActiveTasks() +
+                ", queuedTasks=" + getQueuedTasks() + ", requestsInFlight=" + getRequestsInFlight() + "/" +
+                maxConnections;
+    }
+
+    /**
+     * Counts the tasks waiting for and running on an executor service that has no queue of its own to inspect.
+     */
+    private static class CountingExecutorService extends AbstractExecutorService {
+
+        private final ExecutorService executorService;
+        private final AtomicInteger queuedTasks = new AtomicInteger();
+        private final AtomicInteger activeTasks = new AtomicInteger();
+
+        private CountingExecutorService( ExecutorService executorService ) {
+            this.executorService = executorService;
+        }
+
+        @Override
+        public void execute( Runnable task ) {
+            queuedTasks.incrementAndGet();
+            try {
+                executorService.execute( () -> {
+                    queuedTasks.decrementAndGet();
+                    activeTasks.incrementAndGet();
+                    try {
+                        task.run();
+                    } finally {
+                        activeTasks.decrementAndGet();
+                    }
+                } );
+            } catch( RuntimeException e ) {
+                queuedTasks.decrementAndGet();
+                throw e;
+            }
+        }
+
+        @Override
+        public void shutdown() {
+            executorService.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return executorService.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return executorService.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return executorService.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination( long timeout, TimeUnit unit ) throws InterruptedException {
+            return executorService.awaitTermination( timeout, unit );
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package org.warn.aws.s3.client;
+
+import com.amazonaws.event.ProgressListener;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import lombok.extern.slf4j.Slf4j;
+import org.warn.aws.s3.metrics.RunJournal;
+import org.warn.aws.s3.metrics.TransferMetrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads each file to several buckets while reading it from disk only once. The file is read part by part into
+ * buffers shared by all destinations; each buffer is sent to every destination at the same time and is released
+ * when the last of them has sent it, so the file is read once however many destinations there are. Files of up to
+ * one part are sent with a single PUT, larger ones as a multipart upload at every destination.
+ *
+ * Every destination has its own client and metrics and succeeds or fails on its own: a destination that fails an
+ * upload aborts its multipart upload while the others carry on. Memory is bounded by a byte budget covering the
+ * shared buffers, and reading blocks while the budget is used up. As in {@link UploadPipeline}, results are handed
+ * back to the submitting thread.
+ */
+@Slf4j
+class FanOutUploadPipeline {
+
+    private static final int MAX_PARTS = 10_000;
+
+    interface CompletionHandler {
+        void onCompletion( FanOutUpload upload ) throws InterruptedException;
+    }
+
+    /**
+     * A bucket that every file is uploaded to, with the client for its region.
+     */
+    static class Destination {
+
+        private final String bucketName;
+        private final AmazonS3 s3Client;
+        private final TransferMetrics metrics;
+        private final ProgressListener progressListener;
+
+        Destination( String bucketName, AmazonS3 s3Client, TransferMetrics metrics,
+                     ProgressListener progressListener ) {
+            this.bucketName = bucketName;
+            this.s3Client = s3Client;
+            this.metrics = metrics;
+            this.progressListener = progressListener;
+        }
+
+        String getBucketName() {
+            return bucketName;
+        }
+
+        AmazonS3 getS3Client() {
+            return s3Client;
+        }
+
+        TransferMetrics getMetrics() {
+            return metrics;
+        }
+    }
+
+    /**
+     * The upload of one file to one destination.
+     */
+    static class Target {
+
+        private final Destination destination;
+        private final List<CompletableFuture<PartETag>> parts = new ArrayList<>();
+        private RunJournal.Entry journalEntry;
+        private CompletableFuture<Void> initiated;
+        private volatile String uploadId;
+        private volatile String eTag;
+        private volatile Throwable error;
+
+        private Target( Destination destination ) {
+            this.destination = destination;
+        }
+
+        Destination getDestination() {
+            return destination;
+        }
+
+        String getETag() {
+            return eTag;
+        }
+
+        /**
+         * The first error that stopped the upload to this destination, or null if it completed.
+         */
+        Throwable getError() {
+            return error;
+        }
+    }
+
+    static class FanOutUpload {
+
+        private final String key;
+        private final File file;
+        private final long size;
+        private final CompletionHandler handler;
+        private final List<Target> targets = new ArrayList<>();
+        private final long startNanos = System.nanoTime();
+        private volatile IOException readError;
+
+        private FanOutUpload( String key, File file, long size, CompletionHandler handler ) {
+            this.key = key;
+            this.file = file;
+            this.size = size;
+            this.handler = handler;
+        }
+
+        String getKey() {
+            return key;
+        }
+
+        File getFile() {
+            return file;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        List<Target> getTargets() {
+            return targets;
+        }
+
+        private boolean isFailedEverywhere() {
+            for( Target target: targets ) {
+                if( target.error == null )
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Part of a file, read once and sent to every destination. Its bytes are returned to the budget when the last
+     * destination is done with it.
+     */
+    private class SharedBuffer {
+
+        private final byte[] data;
+        private final AtomicInteger references;
+
+        private SharedBuffer( byte[] data, int references ) {
+            this.data = data;
+            this.references = new AtomicInteger( references );
+        }
+
+        private void release() {
+            if( references.decrementAndGet() == 0 )
+                events.add( new Release( data.length ) );
+        }
+    }
+
+    private static class Release {
+        private final long bytes;
+
+        private Release( long bytes ) {
+            this.bytes = bytes;
+        }
+    }
+
+    private final List<Destination> destinations;
+    private final ExecutorService executorService;
+    private final TransferMetrics metrics;
+    private final long minPartSize;
+    private final long maxBufferedBytes;
+    private final BlockingQueue<Object> events = new LinkedBlockingQueue<>();
+    private long bufferedBytes;
+    private int inFlight;
+
+    /**
+     * @param maxInFlight  number of parts that may be buffered at once
+     */
+    FanOutUploadPipeline( List<Destination> destinations, ExecutorService executorService, TransferMetrics metrics,
+                          long minPartSize, int maxInFlight ) {
+        this.destinations = destinations;
+        this.executorService = executorService;
+        this.metrics = metrics;
+        this.minPartSize = minPartSize;
+        this.maxBufferedBytes = Math.max( 2L, maxInFlight ) * minPartSize;
+    }
+
+    void submit( String key, File file, CompletionHandler handler ) throws InterruptedException {
+        long size = file.length();
+        long partSize = Math.max( minPartSize, size / MAX_PARTS + 1 );
+        FanOutUpload upload = new FanOutUpload( key, file, size, handler );
+        for( Destination destination: destinations ) {
+            Target target = new Target( destination );
+            target.journalEntry = metrics.startJournalEntry( RunJournal.OPERATION_UPLOAD, destination.bucketName, key,
+                    size );
+            upload.targets.add( target );
+        }
+        inFlight++;
+
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        try( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ) ) {
+            if( size <= partSize ) {
+                SharedBuffer buffer = read( channel, (int) size );
+                for( Target target: upload.targets )
+                    results.add( CompletableFuture.runAsync( () -> put( upload, target, buffer ), executorService ) );
+            } else {
+                for( Target target: upload.targets )
+                    target.initiated = CompletableFuture.runAsync( () -> initiate( upload, target ), executorService );
+                long position = 0;
+                while( position < size && !upload.isFailedEverywhere() ) {
+                    SharedBuffer buffer = read( channel, (int) Math.min( partSize, size - position ) );
+                    position += buffer.data.length;
+                    for( Target target: upload.targets )
+                        sendPart( upload, target, buffer );
+                }
+            }
+        } catch( IOException e ) {
+            upload.readError = e;
+        }
+        if( results.isEmpty() ) {
+            for( Target target: upload.targets )
+                results.add( finish( upload, target ) );
+        }
+
+        List<CompletableFuture<Void>> targetResults = new ArrayList<>();
+        for( int i = 0; i < results.size(); i++ ) {
+            Target target = upload.targets.get( i );
+            targetResults.add( results.get( i ).handle( ( ignored, e ) -> {
+                if( e != null )
+                    fail( upload, target, e );
+                target.destination.metrics.recordObjectLatency( System.nanoTime() - upload.startNanos );
+                return null;
+            } ) );
+        }
+        CompletableFuture.allOf( targetResults.toArray( new CompletableFuture[ 0 ] ) )
+                .whenComplete( ( ignored, e ) -> events.add( upload ) );
+        drainEvents();
+    }
+
+    void awaitCompletion() throws InterruptedException {
+        while( inFlight > 0 )
+            handle( events.take() );
+    }
+
+    private SharedBuffer read( FileChannel channel, int length ) throws IOException, InterruptedException {
+        awaitBudget( length );
+        ByteBuffer byteBuffer = ByteBuffer.allocate( length );
+        while( byteBuffer.hasRemaining() ) {
+            if( channel.read( byteBuffer ) < 0 )
+                throw new EOFException( "File was truncated while it was being uploaded" );
+        }
+        bufferedBytes += length;
+        return new SharedBuffer( byteBuffer.array(), destinations.size() );
+    }
+
+    private void awaitBudget( long bytes ) throws InterruptedException {
+        while( bufferedBytes > 0 && bufferedBytes + bytes > maxBufferedBytes )
+            handle( events.take() );
+        drainEvents();
+    }
+
+    private void drainEvents() throws InterruptedException {
+        Object event;
+        while( ( event = events.poll() ) != null )
+            handle( event );
+    }
+
+    private void handle( Object event ) throws InterruptedException {
+        if( event instanceof Release ) {
+            bufferedBytes -= ( (Release) event ).bytes;
+            return;
+        }
+        FanOutUpload upload = (FanOutUpload) event;
+        inFlight--;
+        metrics.recordObjectLatency( System.nanoTime() - upload.startNanos );
+        try {
+            upload.handler.onCompletion( upload );
+        } finally {
+            for( Target target: upload.targets )
+                metrics.finishJournalEntry( target.journalEntry, target.error );
+        }
+    }
+
+    private void put( FanOutUpload upload, Target target, SharedBuffer buffer ) {
+        try {
+            PutObjectRequest request = new PutObjectRequest( target.destination.bucketName, upload.key,
+                    new ByteArrayInputStream( buffer.data ), newObjectMetadata( buffer.data.length ) );
+            request.setGeneralProgressListener( target.destination.progressListener );
+            target.eTag = target.destination.s3Client.putObject( request ).getETag();
+        } finally {
+            buffer.release();
+        }
+    }
+
+    private void initiate( FanOutUpload upload, Target target ) {
+        InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest( target.destination.bucketName,
+                upload.key, new ObjectMetadata() );
+        target.uploadId = target.destination.s3Client.initiateMultipartUpload( request ).getUploadId();
+    }
+
+    /**
+     * Sends the part once the destination's multipart upload has been initiated. Destinations that have already
+     * failed the upload skip the part and only release their reference to the buffer.
+     */
+    private void sendPart( FanOutUpload upload, Target target, SharedBuffer buffer ) {
+        int partNumber = target.parts.size() + 1;
+        target.parts.add( target.initiated.handleAsync( ( ignored, initiateError ) -> {
+            try {
+                if( initiateError != null || target.error != null )
+                    return null;
+                UploadPartRequest request = new UploadPartRequest()
+                        .withBucketName( target.destination.bucketName )
+                        .withKey( upload.key )
+                        .withUploadId( target.uploadId )
+                        .withPartNumber( partNumber )
+                        .withPartSize( buffer.data.length )
+                        .withInputStream( new ByteArrayInputStream( buffer.data ) );
+                request.setGeneralProgressListener( target.destination.progressListener );
+                return target.destination.s3Client.uploadPart( request ).getPartETag();
+            } catch( RuntimeException e ) {
+                if( target.error == null )
+                    target.error = e;
+                throw e;
+            } finally {
+                buffer.release();
+            }
+        }, executorService ) );
+    }
+
+    /**
+     * Completes the destination's multipart upload once all of its parts have been sent, without blocking a
+     * transfer thread while they are.
+     */
+    private CompletableFuture<Void> finish( FanOutUpload upload, Target target ) {
+        List<CompletableFuture<?>> steps = new ArrayList<>( target.parts );
+        if( target.initiated != null )
+            steps.add( target.initiated );
+        return CompletableFuture.allOf( steps.toArray( new CompletableFuture[ 0 ] ) ).thenRunAsync( () -> {
+            if( upload.readError != null )
+                throw new CompletionException( upload.readError );
+            if( target.error != null )
+                throw new CompletionException( target.error );
+            List<PartETag> partETags = new ArrayList<>();
+            for( CompletableFuture<PartETag> part: target.parts )
+                partETags.add( part.join() );
+            target.eTag = target.destination.s3Client.completeMultipartUpload( new CompleteMultipartUploadRequest(
+                    target.destination.bucketName, upload.key, target.uploadId, partETags ) ).getETag();
+        }, executorService );
+    }
+
+    /**
+     * Records the first error of an upload to one destination and aborts its multipart upload there, so the parts
+     * already stored are not left behind.
+     */
+    private void fail( FanOutUpload upload, Target target, Throwable e ) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        if( target.error == null )
+            target.error = cause;
+        String uploadId = target.uploadId;
+        target.uploadId = null;
+        if( uploadId == null )
+            return;
+        try {
+            target.destination.s3Client.abortMultipartUpload( new AbortMultipartUploadRequest(
+                    target.destination.bucketName, upload.key, uploadId ) );
+        } catch( RuntimeException abortError ) {
+            log.error("Error aborting multipart upload - bucketName={}, key={}, Error={}",
+                    target.destination.bucketName, upload.key, abortError.getMessage());
+        }
+    }
+
+    private ObjectMetadata newObjectMetadata( long contentLength ) {
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setContentLength( contentLength );
+        return objectMetadata;
+    }
+}
@@ -0,0 +1,143 @@
+package org.warn.aws.s3.client;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import lombok.extern.slf4j.Slf4j;
+import org.warn.aws.s3.model.S3ListingRecord;
+import org.warn.aws.util.ConfigConstants;
+import org.warn.aws.util.Constants;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a bucket listing as CSV, JSON lines or plain keys, optionally gzipped. Each shard of the
+ * {@link BucketLister} streams its objects to its own part file next to the output. Once the listing is complete,
+ * the parts are appended to the output in key order and deleted. A gzipped part is a complete gzip member, and
+ * concatenated members are a valid gzip file, so parts are appended without being decompressed.
+ *
+ * CSV and plain keys hold one object per line, so keys with line breaks are left out of them with a warning rather
+ * than written as a different key; JSON lines escape them.
+ */
+@Slf4j
+class ListingWriter implements BucketLister.SinkFactory {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path outputFile;
+    private final String format;
+    private final boolean gzip;
+    private final AtomicInteger partCount = new AtomicInteger();
+
+    ListingWriter( Path outputFile, String format, boolean gzip ) {
+        this.outputFile = outputFile;
+        this.format = format;
+        this.gzip = gzip;
+    }
+
+    @Override
+    public BucketLister.ObjectSink open( int shardNumber ) throws IOException {
+        Files.createDirectories( outputFile.toAbsolutePath().getParent() );
+        partCount.accumulateAndGet( shardNumber + 1, Math::max );
+        Writer writer = newWriter( Files.newOutputStream( getPartFile( shardNumber ) ) );
+        return new BucketLister.ObjectSink() {
+            @Override
+            public void accept( S3ObjectSummary summary ) throws IOException {
+                String line = format( summary );
+                if( line != null )
+                    writer.write( line );
+            }
+
+            @Override
+            public void close() throws IOException {
+                writer.close();
+            }
+        };
+    }
+
+    /**
+     * Appends the parts of the listed shards to the output in the order given, starting with the CSV header row.
+     */
+    void assemble( List<BucketLister.Shard> shards ) throws IOException {
+        try( FileChannel output = FileChannel.open( outputFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING ) ) {
+            if( Constants.LISTING_FORMAT_CSV.equals( format ) ) {
+                ByteArrayOutputStream header = new ByteArrayOutputStream();
+                try( Writer writer = newWriter( header ) ) {
+                    writer.write( ConfigConstants.LISTING_CSV_HEADER_ROW );
+                }
+                ByteBuffer buffer = ByteBuffer.wrap( header.toByteArray() );
+                while( buffer.hasRemaining() )
+                    output.write( buffer );
+            }
+            for( BucketLister.Shard shard: shards ) {
+                if( shard.getObjects() > 0 )
+                    append( getPartFile( shard.getNumber() ), output );
+            }
+        } finally {
+            discard();
+        }
+    }
+
+    /**
+     * Deletes the part files, also those of a listing that failed and will not be assembled.
+     */
+    void discard() throws IOException {
+        for( int i = 0; i < partCount.get(); i++ )
+            Files.deleteIfExists( getPartFile( i ) );
+    }
+
+    /**
+     * Returns the listing line of an object, or null if its key cannot be written in the listing's format.
+     */
+    private String format( S3ObjectSummary summary ) {
+        if( !Constants.LISTING_FORMAT_JSONL.equals( format ) && hasLineBreak( summary.getKey() ) ) {
+            log.warn("Key with a line break left out of the listing, list it with --format=jsonl - key={}",
+                    summary.getKey().replace( "\r", "\\r" ).replace( "\n", "\\n" ));
+            return null;
+        }
+        if( Constants.LISTING_FORMAT_KEYS.equals( format ) )
+            return summary.getKey() + "\n";
+        S3ListingRecord record = new S3ListingRecord( summary.getKey(), summary.getSize(),
+                summary.getLastModified() != null ? summary.getLastModified().toInstant().toString() : null,
+                summary.getETag(), summary.getStorageClass() );
+        if( Constants.LISTING_FORMAT_JSONL.equals( format ) )
+            return record.toJsonString();
+        return record.toCsvString( ConfigConstants.ERROR_LOGS_CSV_DELIMITER );
+    }
+
+    private static boolean hasLineBreak( String key ) {
+        return key.indexOf( '\n' ) >= 0 || key.indexOf( '\r' ) >= 0;
+    }
+
+    private Writer newWriter( OutputStream out ) throws IOException {
+        if( gzip )
+            out = new GZIPOutputStream( out, BUFFER_SIZE );
+        return new BufferedWriter( new OutputStreamWriter( out, StandardCharsets.UTF_8 ), BUFFER_SIZE );
+    }
+
+    private Path getPartFile( int shardNumber ) {
+        return outputFile.resolveSibling( outputFile.getFileName() + ".part" + shardNumber );
+    }
+
+    private static void append( Path partFile, FileChannel output ) throws IOException {
+        try( FileChannel part = FileChannel.open( partFile, StandardOpenOption.READ ) ) {
+            long position = 0;
+            long size = part.size();
+            while( position < size )
+                position += part.transferTo( position, size - position, output );
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.warn.aws.s3.client;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An archive object being filled with small files. Members are stored back to back without any framing, so a
+ * member can be fetched on its own with a ranged GET using the offset and length recorded in the pack index.
+ */
+class PackArchive {
+
+    @Data
+    @AllArgsConstructor
+    static class Member {
+        private String localFilePath;
+        private String key;
+        private long offset;
+        private long length;
+    }
+
+    private final String key;
+    private final byte[] buffer;
+    private final List<Member> members = new ArrayList<>();
+    private int size;
+
+    PackArchive( String key, int capacity ) {
+        this.key = key;
+        this.buffer = new byte[ capacity ];
+    }
+
+    /**
+     * Appends a file to the archive. Returns false, leaving the archive unchanged, if the file does not fit.
+     */
+    boolean add( Path path, String memberKey, long fileSize ) throws IOException {
+        if( fileSize > buffer.length - size )
+            return false;
+
+        int offset = size;
+        try( InputStream in = Files.newInputStream( path ) ) {
+            int read;
+            while( size < buffer.length && ( read = in.read( buffer, size, buffer.length - size ) ) > 0 )
+                size += read;
+        }
+        members.add( new Member( path.toAbsolutePath().toString(), memberKey, offset, size - offset ) );
+        return true;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    List<Member> getMembers() {
+        return members;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return members.isEmpty();
+    }
+
+    InputStream newInputStream() {
+        return new ByteArrayInputStream( buffer, 0, size );
+    }
+}
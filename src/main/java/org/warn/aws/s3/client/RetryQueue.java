@@ -0,0 +1,96 @@
+package org.warn.aws.s3.client;
+
+import org.warn.aws.s3.model.S3OperationRecord;
+
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds objects waiting to be uploaded again. Attempt n of an object becomes ready after a random delay between zero
+ * and min(maxDelay, baseDelay * 2^(n-2)) - exponential backoff with full jitter, so that objects which failed together,
+ * e.g. while S3 was throttling, do not all come back at the same moment. The first attempt is ready immediately.
+ */
+class RetryQueue {
+
+    static class Attempt implements Delayed {
+
+        private final S3OperationRecord record;
+        private final int number;
+        private final long readyAtNanos;
+
+        private Attempt( S3OperationRecord record, int number, long readyAtNanos ) {
+            this.record = record;
+            this.number = number;
+            this.readyAtNanos = readyAtNanos;
+        }
+
+        S3OperationRecord getRecord() {
+            return record;
+        }
+
+        int getNumber() {
+            return number;
+        }
+
+        @Override
+        public long getDelay( TimeUnit unit ) {
+            return unit.convert( readyAtNanos - System.nanoTime(), TimeUnit.NANOSECONDS );
+        }
+
+        @Override
+        public int compareTo( Delayed other ) {
+            return Long.compare( readyAtNanos, ( (Attempt) other ).readyAtNanos );
+        }
+    }
+
+    private final DelayQueue<Attempt> attempts = new DelayQueue<>();
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    RetryQueue( long baseDelayMillis, long maxDelayMillis ) {
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Queues the given attempt of an object, delayed according to the number of attempts made before it.
+     */
+    void add( S3OperationRecord record, int attemptNumber ) {
+        long delayMillis = ThreadLocalRandom.current().nextLong( getMaxDelayMillis( attemptNumber ) + 1 );
+        attempts.add( new Attempt( record, attemptNumber,
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( delayMillis ) ) );
+    }
+
+    /**
+     * Returns the longest delay of the given attempt, which its random delay is drawn up to.
+     */
+    long getMaxDelayMillis( int attemptNumber ) {
+        if( attemptNumber <= 1 )
+            return 0;
+        return Math.min( maxDelayMillis, baseDelayMillis << Math.min( attemptNumber - 2, 30 ) );
+    }
+
+    /**
+     * Returns an attempt whose delay has passed, or null if there is none.
+     */
+    Attempt poll() {
+        return attempts.poll();
+    }
+
+    /**
+     * Waits for the attempt that becomes ready first.
+     */
+    Attempt take() throws InterruptedException {
+        return attempts.take();
+    }
+
+    boolean isEmpty() {
+        return attempts.isEmpty();
+    }
+
+    int size() {
+        return attempts.size();
+    }
+}
@@ -2,238 +2,1556 @@ package org.warn.aws.s3.client;
 
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.event.ProgressEvent;
 import com.amazonaws.event.ProgressListener;
+import com.amazonaws.event.SyncProgressListener;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
 import com.amazonaws.services.s3.model.ObjectMetadata;
-import com.amazonaws.services.s3.transfer.MultipleFileUpload;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.transfer.Transfer;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
 import com.amazonaws.services.s3.transfer.Upload;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang3.tuple.Pair;
+import org.warn.aws.s3.metrics.LatencyHistogram;
+import org.warn.aws.s3.metrics.MetricsExporter;
+import org.warn.aws.s3.metrics.RequestMetricsHandler;
+import org.warn.aws.s3.metrics.RunJournal;
+import org.warn.aws.s3.metrics.TransferMetrics;
+import org.warn.aws.s3.model.S3ListingRecord;
 import org.warn.aws.s3.model.S3OperationRecord;
+import org.warn.aws.s3.model.S3TransferOptions;
 import org.warn.aws.util.ConfigConstants;
 import org.warn.aws.util.Constants;
-import org.warn.aws.util.DataTransferUtil;
 import org.warn.aws.util.ErrorHandler;
+import org.warn.aws.util.FailureLog;
+import org.warn.aws.util.ManifestReader;
 import org.warn.aws.util.ValidationsUtil;
 import org.warn.utils.file.FileHelper;
-import org.warn.utils.file.FileOperations;
 import org.warn.utils.perf.PerformanceLogger;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.time.LocalDateTime;
-import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
 
 @Slf4j
 public class S3ClientWrapper {
 
+    private final AWSCredentialsProvider credentialsProvider;
+    private final Regions region;
+    private final String endpoint; // null for AWS
+    private final ExecutionEngine executionEngine;
     private final ExecutorService executorService;
     private final TransferManager transferManager;
+    private final AdaptiveTransferController transferController;
+    private UploadJournal uploadJournal;
 
-    private LocalDateTime timeAtLastPrintout = LocalDateTime.now();
-    private AtomicLong bytesAtLastPrintout = new AtomicLong();
-    private AtomicReference<Float> minTransferRate = new AtomicReference<>( Float.MAX_VALUE );
-    private AtomicReference<Float> maxTransferRate = new AtomicReference<>( 0.0f );
+    // replaced at the start of every operation, so each one reports only its own transfers
+    private volatile TransferMetrics metrics = new TransferMetrics();
+    private final ChecksumVerifier checksumVerifier = new ChecksumVerifier();
+    private final BandwidthLimiter bandwidthLimiter = new BandwidthLimiter();
+    private MetricsExporter metricsExporter;
+
+    /**
+     * What an operation sets up besides its metrics. Uploads also use the upload journal, and the adaptive
+     * controller when asked for; downloads share the run journal and bandwidth limit with them.
+     */
+    private enum OperationType { UPLOAD, DOWNLOAD, LISTING }
+
+    private interface Operation {
+        void run() throws InterruptedException, IOException;
+    }
+
+    private interface DirectoryFileHandler {
+        void accept( Path path, String s3FileKey ) throws InterruptedException, IOException;
+    }
 
     public S3ClientWrapper( String accessKey, String secretKey, Regions region, ExecutorService executorService ) {
+        this( accessKey, secretKey, region, null, executorService );
+    }
+
+    /**
+     * Creates a wrapper for an S3-compatible endpoint, e.g. a local stand-in used for benchmarks. When an endpoint is
+     * given, path-style access is used and transfer acceleration is left off, since neither applies outside AWS.
+     */
+    public S3ClientWrapper( String accessKey, String secretKey, Regions region, String endpoint,
+                            ExecutorService executorService ) {
+        this( accessKey, secretKey, region, endpoint, ExecutionEngine.of( executorService ) );
+    }
+
+    /**
+     * Creates a wrapper whose transfers run on the given engine, with a connection pool sized to match it.
+     */
+    public S3ClientWrapper( String accessKey, String secretKey, Regions region, String endpoint,
+                            ExecutionEngine executionEngine ) {
         AWSCredentials credentials = new BasicAWSCredentials( accessKey, secretKey );
-        AmazonS3 s3Client = AmazonS3ClientBuilder
-                .standard()
-                .withCredentials( new AWSStaticCredentialsProvider( credentials ) )
-                .withRegion( region )
-                .withAccelerateModeEnabled( true )
+        this.credentialsProvider = new AWSStaticCredentialsProvider( credentials );
+        this.region = region;
+        this.endpoint = endpoint;
+        this.executionEngine = executionEngine;
+        ExecutorService executorService = executionEngine.getExecutorService();
+        AdaptiveTransferController.ThrottleDetector throttleDetector = new AdaptiveTransferController.ThrottleDetector();
+        AmazonS3 s3Client = newS3ClientBuilder( region )
+                .withRequestHandlers( throttleDetector, new RequestMetricsHandler( () -> metrics ), checksumVerifier,
+                        bandwidthLimiter, executionEngine.newRequestTracker() )
                 .build();
         this.executorService = executorService;
         this.transferManager = TransferManagerBuilder.standard()
                 .withS3Client( s3Client )
-                .withMultipartUploadThreshold( (long) (100 * 1024 * 1024) )
+                .withMultipartUploadThreshold( Constants.DEFAULT_MULTIPART_THRESHOLD )
                 .withExecutorFactory( () -> executorService )
                 .build();
+        this.transferController = new AdaptiveTransferController( transferManager.getConfiguration(), executorService,
+                throttleDetector );
     }
 
-    public void putObject( String bucketName, String localFilePath, String s3PathPrefix, String optionType ) {
+    private AmazonS3ClientBuilder newS3ClientBuilder( Regions region ) {
+        AmazonS3ClientBuilder s3ClientBuilder = AmazonS3ClientBuilder
+                .standard()
+                .withCredentials( credentialsProvider )
+                .withClientConfiguration( executionEngine.newClientConfiguration() );
+        if( endpoint == null )
+            s3ClientBuilder.withRegion( region ).withAccelerateModeEnabled( true );
+        else
+            s3ClientBuilder.withEndpointConfiguration( new AwsClientBuilder.EndpointConfiguration( endpoint, region.getName() ) )
+                    .withPathStyleAccessEnabled( true );
+        return s3ClientBuilder;
+    }
+
+    public void putObject( String bucketName, String localFilePath, String s3PathPrefix, String optionType,
+                           S3TransferOptions transferOptions ) {
         PerformanceLogger performanceLogger = new PerformanceLogger();
         performanceLogger.start();
-        AtomicLong totalBytes = new AtomicLong();
         AtomicInteger successfulCount = new AtomicInteger();
-        List<S3OperationRecord> failedUploads = Collections.synchronizedList( new ArrayList<>() );
+        FailureLog failedUploads = newFailureLog( ConfigConstants.FAILED_S3_UPLOADS_CSV );
         Path initialPath = Paths.get( localFilePath );
 
-        try {
+        runOperation( OperationType.UPLOAD, bucketName, localFilePath, initialPath, transferOptions,
+                failedUploads, () -> {
+            if( !transferOptions.getFanOutDestinations().isEmpty() ) {
+                uploadFanOut( bucketName, s3PathPrefix, localFilePath, optionType, transferOptions, successfulCount,
+                        failedUploads );
+            } else if( transferOptions.getCompression() != null && !transferOptions.isPackSmallFiles() ) {
+                uploadCompressed( bucketName, s3PathPrefix, localFilePath, optionType, transferOptions, successfulCount,
+                        failedUploads );
+            } else {
+                switch( optionType ) {
+                    case Constants.OPTION_FILE:
+                        uploadSingleFile( bucketName, s3PathPrefix, initialPath.toFile(), transferOptions,
+                                successfulCount, failedUploads );
+                        break;
+
+                    case Constants.OPTION_DIRECTORY:
+                        if( transferOptions.isPackSmallFiles() )
+                            uploadDirectoryPacked( bucketName, s3PathPrefix, initialPath, transferOptions, successfulCount, failedUploads );
+                        else if( transferOptions.isDeduplicate() )
+                            uploadDirectoryDeduplicated( bucketName, s3PathPrefix, initialPath, transferOptions, successfulCount, failedUploads );
+                        else
+                            uploadDirectory( bucketName, s3PathPrefix, initialPath, transferOptions, successfulCount, failedUploads );
+                        if( transferOptions.isPrune() )
+                            pruneDirectory( bucketName, getDirectoryKeyPrefix( s3PathPrefix, initialPath ), initialPath,
+                                    transferOptions );
+                        break;
+
+                    case Constants.OPTION_LIST:
+                        uploadFromList( bucketName, s3PathPrefix, localFilePath, transferOptions, successfulCount,
+                                failedUploads );
+                        break;
+
+                    default:
+                        ValidationsUtil.handleUnsupported( Constants.MSG_UNSUPPORTED_OPTION, optionType );
+                }
+            }
+        } );
+
+        postProcessing( failedUploads, successfulCount, performanceLogger );
+    }
+
+    public void syncDirectory( String bucketName, String localFilePath, String s3PathPrefix,
+                               S3TransferOptions transferOptions ) {
+        PerformanceLogger performanceLogger = new PerformanceLogger();
+        performanceLogger.start();
+        AtomicInteger successfulCount = new AtomicInteger();
+        AtomicInteger unchangedCount = new AtomicInteger();
+        FailureLog failedUploads = newFailureLog( ConfigConstants.FAILED_S3_UPLOADS_CSV );
+        Path initialPath = Paths.get( localFilePath );
+
+        runOperation( OperationType.UPLOAD, bucketName, localFilePath, initialPath, transferOptions, failedUploads,
+                () -> uploadChangedFiles( bucketName, s3PathPrefix, initialPath, transferOptions,
+                        successfulCount, unchangedCount, failedUploads ) );
+
+        log.info("Unchanged Object(s): {}", unchangedCount.get());
+        postProcessing( failedUploads, successfulCount, performanceLogger );
+    }
+
+    /**
+     * Uploads files as they are added to or changed in the directory, until the thread is interrupted. A file is
+     * uploaded once it has stopped changing for the settle interval, through the same pipeline and verification as
+     * sync, and is recorded in the same sync index, so a later sync or watch of the directory skips it.
+     */
+    public void watchDirectory( String bucketName, String localFilePath, String s3PathPrefix,
+                                S3TransferOptions transferOptions ) {
+        PerformanceLogger performanceLogger = new PerformanceLogger();
+        performanceLogger.start();
+        AtomicInteger successfulCount = new AtomicInteger();
+        FailureLog failedUploads = newFailureLog( ConfigConstants.FAILED_S3_UPLOADS_CSV );
+        Path initialPath = Paths.get( localFilePath );
+
+        runOperation( OperationType.UPLOAD, bucketName, localFilePath, initialPath, transferOptions, failedUploads,
+                () -> uploadWatchedFiles( bucketName, s3PathPrefix, initialPath, transferOptions,
+                        successfulCount, failedUploads ) );
+
+        postProcessing( failedUploads, successfulCount, performanceLogger );
+    }
+
+    public void getObject( String bucketName, String keyOrPrefix, String localFilePath, String optionType,
+                           S3TransferOptions transferOptions ) {
+        PerformanceLogger performanceLogger = new PerformanceLogger();
+        performanceLogger.start();
+        AtomicInteger successfulCount = new AtomicInteger();
+        FailureLog failedDownloads = newFailureLog( ConfigConstants.FAILED_S3_DOWNLOADS_CSV );
+        Path initialPath = Paths.get( localFilePath );
+
+        runOperation( OperationType.DOWNLOAD, bucketName, localFilePath, initialPath, transferOptions,
+                failedDownloads, () -> {
+            DownloadPipeline pipeline = new DownloadPipeline( transferManager.getAmazonS3Client(), executorService,
+                    metrics, bandwidthLimiter, bytes -> recordProgress( bytes, "Download" ),
+                    transferOptions.getMaxInFlightUploads(), transferOptions.getPartSize() );
             switch( optionType ) {
                 case Constants.OPTION_FILE:
-                    uploadSingleFile( bucketName, s3PathPrefix, initialPath.toFile(), totalBytes, successfulCount, failedUploads);
+                    downloadSingleObject( bucketName, keyOrPrefix, initialPath, pipeline, successfulCount,
+                            failedDownloads );
                     break;
 
                 case Constants.OPTION_DIRECTORY:
-                    uploadDirectory( bucketName, s3PathPrefix, initialPath, totalBytes, successfulCount, failedUploads);
+                    downloadPrefix( bucketName, keyOrPrefix, initialPath, pipeline, successfulCount, failedDownloads );
                     break;
 
                 case Constants.OPTION_LIST:
-                    uploadFromList( bucketName, s3PathPrefix, localFilePath, totalBytes, successfulCount, failedUploads );
+                    downloadListing( bucketName, Paths.get( keyOrPrefix ), initialPath, pipeline, successfulCount,
+                            failedDownloads );
                     break;
 
                 default:
                     ValidationsUtil.handleUnsupported( Constants.MSG_UNSUPPORTED_OPTION, optionType );
                     return;
             }
+            pipeline.awaitCompletion();
+        } );
+
+        postProcessing( failedDownloads, successfulCount, performanceLogger );
+    }
+
+    /**
+     * Writes every object under the prefix to a listing file, sorted by key, listing many key ranges of the prefix
+     * at once. The listing can be read back by get in -l mode.
+     */
+    public void listObjects( String bucketName, String prefix, String outputFilePath,
+                             S3TransferOptions transferOptions ) {
+        PerformanceLogger performanceLogger = new PerformanceLogger();
+        performanceLogger.start();
+        Path outputFile = Paths.get( outputFilePath ).toAbsolutePath();
+        ListingWriter listingWriter = new ListingWriter( outputFile, transferOptions.getListingFormat(),
+                Constants.COMPRESSION_GZIP.equals( transferOptions.getCompression() ) );
+        BucketLister bucketLister = new BucketLister( transferManager.getAmazonS3Client(), executorService,
+                bucketName, prefix, transferOptions.getMaxInFlightUploads(), listingWriter );
+        runOperation( OperationType.LISTING, bucketName, outputFilePath, outputFile, transferOptions,
+                new FailureLog( null ), () -> {
+            try {
+                List<BucketLister.Shard> shards = bucketLister.list( transferOptions.getDelimiter() );
+                listingWriter.assemble( shards );
+                logListingSummary( outputFile, shards, performanceLogger );
+            } finally {
+                listingWriter.discard();
+            }
+        } );
+    }
+
+    /**
+     * Runs an operation with new metrics, between the setup and teardown its type needs, and reports its errors.
+     * The failure log is closed once the operation is over.
+     */
+    private void runOperation( OperationType type, String bucketName, String localFilePath, Path initialPath,
+        S3TransferOptions transferOptions, FailureLog failureLog, Operation operation ) {
+
+        metrics = new TransferMetrics();
+        boolean adaptive = type == OperationType.UPLOAD && transferOptions.isAdaptive();
+        try {
+            if( type == OperationType.UPLOAD )
+                uploadJournal = UploadJournal.open( getUploadJournalFile() );
+            if( transferOptions.isExportMetrics() )
+                metricsExporter = new MetricsExporter( metrics, executionEngine, getHomePath( ConfigConstants.METRICS_DIR ),
+                        transferOptions.getMetricsInterval() );
+            if( type == OperationType.UPLOAD )
+                checksumVerifier.setEnabled( !transferOptions.isSkipVerify() );
+            if( type != OperationType.LISTING ) {
+                openRunJournal( transferOptions );
+                if( transferOptions.getBandwidthSchedule() != null )
+                    bandwidthLimiter.start( transferOptions.getBandwidthSchedule() );
+            }
+            if( adaptive )
+                transferController.start( transferOptions.getMaxInFlightUploads() );
+            if( type == OperationType.UPLOAD && transferOptions.isResume() )
+                log.info("Unfinished multipart uploads of earlier runs - count={}",
+                        uploadJournal.getPendingEntries().size());
+
+            operation.run();
+
         } catch( AmazonS3Exception e ) {
-            ErrorHandler.handleAmazonS3Exception( e, bucketName, localFilePath, initialPath, failedUploads );
+            ErrorHandler.handleAmazonS3Exception( e, bucketName, localFilePath, initialPath, failureLog );
 
         } catch( AmazonClientException e ) {
-            ErrorHandler.handleAmazonClientException( e, bucketName, localFilePath, initialPath, failedUploads );
+            ErrorHandler.handleAmazonClientException( e, bucketName, localFilePath, initialPath, failureLog );
 
         } catch (InterruptedException e) {
             ErrorHandler.handleInterruptedException(e, initialPath);
 
+        } catch( IOException e ) {
+            ErrorHandler.handleIOException( e, initialPath );
+
         } finally {
-            transferManager.shutdownNow();
+            failureLog.close();
+            closeUploadJournal();
+            closeMetricsExporter();
+            closeRunJournal();
+            bandwidthLimiter.close();
+            if( adaptive )
+                transferController.stop();
+        }
+    }
+
+    private void logListingSummary( Path outputFile, List<BucketLister.Shard> shards,
+                                    PerformanceLogger performanceLogger ) {
+        performanceLogger.printStatistics();
+        long objects = 0;
+        long bytes = 0;
+        for( BucketLister.Shard shard: shards ) {
+            objects += shard.getObjects();
+            bytes += shard.getBytes();
         }
+        long elapsedSeconds = Math.max( 1, metrics.getElapsedSeconds() );
+
+        log.info("S3 Listing Summary");
+        log.info("---------------------------------------");
+        log.info("Listed Object(s): {}, Total Size: {}", objects, FileHelper.printFileSizeUserFriendly( bytes ) );
+        log.info("Listing: {}", outputFile);
+        log.info("Shards: {}, Listing Rate: {} object(s)/s", shards.size(), objects / elapsedSeconds );
+        log.info("Requests: {}, Retries: {}, Failed Requests: {}",
+                metrics.getRequests(), metrics.getRetries(), metrics.getFailedRequests() );
+        log.info("Execution: {}, Peak Requests In Flight: {}", executionEngine,
+                executionEngine.resetPeakRequestsInFlight() );
+        log.info("---------------------------------------");
+    }
+
+    /**
+     * Deletes a single object (-f), every object under a prefix (-d), or the objects named in a listing or a failed
+     * deletes CSV (-l), with multi-object deletes of up to 1,000 keys. Keys are streamed from the listing, so memory
+     * does not grow with their number.
+     */
+    public void deleteObjects( String bucketName, String keyPrefixOrListing, String optionType,
+                               S3TransferOptions transferOptions ) {
+        PerformanceLogger performanceLogger = new PerformanceLogger();
+        performanceLogger.start();
+        FailureLog failedDeletes = newFailureLog( ConfigConstants.FAILED_S3_DELETES_CSV );
+        Path initialPath = Paths.get( keyPrefixOrListing );
+
+        runOperation( OperationType.LISTING, bucketName, keyPrefixOrListing, initialPath, transferOptions,
+                failedDeletes, () -> {
+            BatchDeleter batchDeleter = new BatchDeleter( transferManager.getAmazonS3Client(), executorService,
+                    bucketName, key -> true, metrics, failedDeletes, transferOptions.getMaxInFlightUploads(),
+                    transferOptions.isDryRun() );
+            switch( optionType ) {
+                case Constants.OPTION_FILE:
+                    batchDeleter.add( keyPrefixOrListing );
+                    break;
+
+                case Constants.OPTION_DIRECTORY:
+                    // a prefix names a directory, so rm -d logs/2020 leaves logs/2020-old alone
+                    String keyPrefix = keyPrefixOrListing.isEmpty() ? "" :
+                            ValidationsUtil.formatPath( keyPrefixOrListing );
+                    log.info("Deleting every object under s3://{}/{}{}", bucketName, keyPrefix,
+                            transferOptions.isDryRun() ? " (dry run)" : "");
+                    new BucketLister( transferManager.getAmazonS3Client(), executorService, bucketName,
+                            keyPrefix, transferOptions.getMaxInFlightUploads(), batchDeleter ).list( null );
+                    break;
+
+                case Constants.OPTION_LIST:
+                    deleteListedObjects( initialPath, batchDeleter );
+                    break;
+
+                default:
+                    ValidationsUtil.handleUnsupported( Constants.MSG_UNSUPPORTED_OPTION, optionType );
+                    return;
+            }
+            batchDeleter.awaitCompletion();
+        } );
 
-        postProcessing( failedUploads, successfulCount, totalBytes, performanceLogger );
+        logDeleteSummary( failedDeletes, performanceLogger, transferOptions.isDryRun() );
     }
 
-    private void uploadFromList( String bucketName, String s3PathPrefix, String localFilePath, AtomicLong totalBytes,
-        AtomicInteger successfulCount, List<S3OperationRecord> failedUploads ) throws InterruptedException {
-        List<String> fileNames = FileOperations.readLines(localFilePath);
-        for(String fileName: fileNames) {
-            uploadSingleFile( bucketName, s3PathPrefix, new File(fileName), totalBytes, successfulCount, failedUploads);
+    /**
+     * Streams the keys of a listing written by the ls operation, in any of its formats, or of a failed deletes CSV,
+     * into the deleter.
+     */
+    private void deleteListedObjects( Path listingFile, BatchDeleter batchDeleter )
+            throws IOException, InterruptedException {
+        String listingHeaderRow = ConfigConstants.LISTING_CSV_HEADER_ROW.trim();
+        String failureLogHeaderRow = ConfigConstants.FAILURE_LOG_CSV_HEADER_ROW.trim();
+        boolean failureLog = false;
+        try( ManifestReader manifestReader = ManifestReader.open( listingFile ) ) {
+            String line;
+            while( ( line = manifestReader.readLine() ) != null ) {
+                if( line.equals( listingHeaderRow ) )
+                    continue;
+                if( line.equals( failureLogHeaderRow ) ) {
+                    failureLog = true;
+                    continue;
+                }
+                try {
+                    batchDeleter.add( failureLog ?
+                            S3OperationRecord.fromCsvString( line, ConfigConstants.ERROR_LOGS_CSV_DELIMITER ).getKey() :
+                            S3ListingRecord.fromLine( line, ConfigConstants.ERROR_LOGS_CSV_DELIMITER ).getKey() );
+                } catch( IllegalArgumentException e ) {
+                    log.warn("Skipping malformed listing record - file={}, line={}", listingFile, line);
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the objects under the key prefix whose files are no longer in the local directory, listing the prefix
+     * in parallel shards like the ls operation. Failed deletes are written to their own CSV, so that the failed
+     * uploads CSV can still be retried.
+     */
+    private void pruneDirectory( String bucketName, String keyPrefix, Path initialPath,
+                                 S3TransferOptions transferOptions ) throws IOException, InterruptedException {
+        Path localDir = initialPath.toAbsolutePath().normalize();
+        long deletesBefore = metrics.getDeletes();
+        FailureLog failedDeletes = newFailureLog( ConfigConstants.FAILED_S3_DELETES_CSV );
+        BatchDeleter batchDeleter = new BatchDeleter( transferManager.getAmazonS3Client(), executorService,
+                bucketName, key -> {
+                    try {
+                        Path localFile = localDir.resolve( key.substring( keyPrefix.length() ) ).normalize();
+                        return localFile.startsWith( localDir ) && !Files.exists( localFile );
+                    } catch( InvalidPathException e ) {
+                        return false; // a key that cannot have been uploaded from this directory
+                    }
+                }, metrics, failedDeletes, transferOptions.getMaxInFlightUploads(), false );
+        try {
+            log.info("Pruning s3://{}/{} - deleting objects without a local file in {}",
+                    bucketName, keyPrefix, localDir);
+            new BucketLister( transferManager.getAmazonS3Client(), executorService, bucketName, keyPrefix,
+                    transferOptions.getMaxInFlightUploads(), batchDeleter ).list( null );
+        } finally {
+            failedDeletes.close();
+        }
+        log.info("Pruned Object(s): {}, Failed Deletes: {}", metrics.getDeletes() - deletesBefore, failedDeletes.size());
+        if( failedDeletes.size() > 0 )
+            log.info("Failed Deletes Log: {}", failedDeletes.getFile());
+    }
+
+    private void logDeleteSummary( FailureLog failedDeletes, PerformanceLogger performanceLogger, boolean dryRun ) {
+        performanceLogger.printStatistics();
+        long elapsedSeconds = Math.max( 1, metrics.getElapsedSeconds() );
+
+        log.info("S3 Delete Summary");
+        log.info("---------------------------------------");
+        log.info(dryRun ? "Object(s) To Delete (dry run): {}" : "Deleted Object(s): {}", metrics.getDeletes());
+        log.info("Failed Object(s): {}", failedDeletes.size());
+        if( failedDeletes.size() > 0 )
+            log.info("Failed Object(s) Log: {}", failedDeletes.getFile());
+        log.info("Delete Rate: {} object(s)/s", metrics.getDeletes() / elapsedSeconds );
+        log.info("Requests: {}, Retries: {}, Failed Requests: {}",
+                metrics.getRequests(), metrics.getRetries(), metrics.getFailedRequests() );
+        log.info("Execution: {}, Peak Requests In Flight: {}", executionEngine,
+                executionEngine.resetPeakRequestsInFlight() );
+        log.info("---------------------------------------");
+    }
+
+    /**
+     * Uploads again the objects recorded in one or more failed uploads CSVs. Records are deduplicated by bucket and
+     * key, keeping the latest, and uploaded concurrently; failed attempts are queued again with exponential backoff
+     * and jitter. Objects still failing after the last attempt are written to this run's failed uploads CSV.
+     */
+    public void retryFailedUploads( List<String> failureLogPaths, S3TransferOptions transferOptions ) {
+        PerformanceLogger performanceLogger = new PerformanceLogger();
+        performanceLogger.start();
+        AtomicInteger successfulCount = new AtomicInteger();
+        FailureLog failedUploads = newFailureLog( ConfigConstants.FAILED_S3_UPLOADS_CSV );
+        Path initialPath = Paths.get( failureLogPaths.get( 0 ) );
+
+        runOperation( OperationType.UPLOAD, "N/A", initialPath.toString(), initialPath, transferOptions,
+                failedUploads, () -> {
+            RetryQueue retryQueue = new RetryQueue( Constants.RETRY_BASE_DELAY_MS, Constants.RETRY_MAX_DELAY_MS );
+            queueFailedUploads( failureLogPaths, retryQueue );
+            retryUploads( retryQueue, transferOptions, successfulCount, failedUploads );
+        } );
+
+        postProcessing( failedUploads, successfulCount, performanceLogger );
+    }
+
+    /**
+     * Reads the failure records and queues the latest record of each object for a first attempt. Records without
+     * an object key, e.g. failures to read a whole directory, cannot be uploaded again and are skipped.
+     */
+    private void queueFailedUploads( List<String> failureLogPaths, RetryQueue retryQueue ) throws IOException {
+        Map<String, S3OperationRecord> records = new LinkedHashMap<>();
+        AtomicInteger skippedCount = new AtomicInteger();
+        for( String failureLogPath: failureLogPaths ) {
+            FailureLog.read( Paths.get( failureLogPath ), record -> {
+                if( "N/A".equals( record.getKey() ) ) {
+                    skippedCount.getAndIncrement();
+                    return;
+                }
+                String objectId = record.getBucketName() + "/" + record.getKey();
+                records.remove( objectId ); // keep the order of the latest failure
+                records.put( objectId, record );
+            } );
+        }
+        log.info("Loaded failed uploads - objects={}, skippedWithoutKey={}", records.size(), skippedCount.get());
+        for( S3OperationRecord record: records.values() )
+            retryQueue.add( record, 1 );
+    }
+
+    private void retryUploads( RetryQueue retryQueue, S3TransferOptions transferOptions, AtomicInteger successfulCount,
+        FailureLog failedUploads ) throws InterruptedException {
+
+        UploadPipeline pipeline = newUploadPipeline( transferOptions );
+        Map<String, CompressedUploadPipeline> compressedPipelines = new HashMap<>();
+        ProgressListener progressListener = getProgressListener();
+        try {
+            while( true ) {
+                RetryQueue.Attempt attempt = retryQueue.poll();
+                if( attempt == null ) {
+                    if( retryQueue.isEmpty() ) {
+                        // uploads still in flight queue another attempt when they fail
+                        pipeline.awaitCompletion();
+                        for( CompressedUploadPipeline compressedPipeline: compressedPipelines.values() )
+                            compressedPipeline.awaitCompletion();
+                        if( retryQueue.isEmpty() )
+                            break;
+                        continue;
+                    }
+                    attempt = retryQueue.take();
+                }
+                submitRetry( attempt, retryQueue, pipeline, compressedPipelines, progressListener, transferOptions,
+                        successfulCount, failedUploads );
+            }
+        } finally {
+            try {
+                pipeline.awaitCompletion();
+                for( CompressedUploadPipeline compressedPipeline: compressedPipelines.values() )
+                    compressedPipeline.awaitCompletion();
+            } finally {
+                for( CompressedUploadPipeline compressedPipeline: compressedPipelines.values() )
+                    compressedPipeline.close();
+            }
+        }
+    }
+
+    private void submitRetry( RetryQueue.Attempt attempt, RetryQueue retryQueue, UploadPipeline pipeline,
+        Map<String, CompressedUploadPipeline> compressedPipelines, ProgressListener progressListener,
+        S3TransferOptions transferOptions, AtomicInteger successfulCount, FailureLog failedUploads )
+        throws InterruptedException {
+
+        S3OperationRecord record = attempt.getRecord();
+        String bucketName = record.getBucketName();
+        String s3FileKey = record.getKey();
+        File file = new File( record.getLocalFilePath() );
+        if( !file.isFile() ) {
+            log.error("S3 upload FAILED - file={}, Error=Local file not found", record.getLocalFilePath());
+            failedUploads.add( new S3OperationRecord( bucketName, s3FileKey, record.getLocalFilePath(),
+                    record.getFileSize(), "Local file not found" ) );
+            metrics.recordObjectResult( false );
+            return;
+        }
+        boolean lastAttempt = attempt.getNumber() >= transferOptions.getRetryAttempts();
+        // failures of attempts that will be retried are only logged, not recorded
+        FailureLog attemptFailures = lastAttempt ? failedUploads : new FailureLog( null );
+        log.info("Retrying upload - key={}, attempt={}", s3FileKey, attempt.getNumber());
+
+        String compression = CompressedUploadPipeline.getCompression( s3FileKey );
+        if( compression != null && !compression.equals( CompressedUploadPipeline.getCompression( file.getName() ) ) ) {
+            // the object was compressed from the local file while uploading
+            CompressedUploadPipeline compressedPipeline = compressedPipelines.computeIfAbsent( compression,
+                    c -> new CompressedUploadPipeline( transferManager.getAmazonS3Client(), executorService, metrics,
+                            progressListener, c, transferManager.getConfiguration().getMinimumUploadPartSize(),
+                            transferOptions.getMaxInFlightUploads() ) );
+            compressedPipeline.submit( bucketName, s3FileKey, file, upload -> {
+                if( !handleCompressedUploadCompletion( upload, successfulCount, attemptFailures ) && !lastAttempt )
+                    retryQueue.add( record, attempt.getNumber() + 1 );
+            } );
+            return;
+        }
+
+        PutObjectRequest request = new PutObjectRequest( bucketName, s3FileKey, file );
+        request.setGeneralProgressListener( progressListener );
+        pipeline.submit( request, upload -> {
+            if( !handleUploadCompletion( bucketName, s3FileKey, file, upload, successfulCount, attemptFailures ) &&
+                    !lastAttempt )
+                retryQueue.add( record, attempt.getNumber() + 1 );
+        } );
+    }
+
+    private void uploadFromList( String bucketName, String s3PathPrefix, String localFilePath,
+        S3TransferOptions transferOptions, AtomicInteger successfulCount,
+        FailureLog failedUploads ) throws InterruptedException, IOException {
+
+        UploadPipeline pipeline = newUploadPipeline( transferOptions );
+        ProgressListener progressListener = getProgressListener();
+        try( ManifestReader manifestReader = new ManifestReader( Paths.get( localFilePath ) ) ) {
+            manifestReader.forEachLine( fileName -> {
+                File file = new File(fileName);
+                String s3FileKey = getS3FileKey( s3PathPrefix, file );
+                PutObjectRequest request = new PutObjectRequest( bucketName, s3FileKey, file );
+                request.setGeneralProgressListener( progressListener );
+                pipeline.submit( request, upload -> handleUploadCompletion( bucketName, s3FileKey, file, upload,
+                        successfulCount, failedUploads ) );
+            } );
+        } finally {
+            // let uploads that were already started finish, even if the list could not be read to the end
+            pipeline.awaitCompletion();
         }
     }
 
-    private void uploadDirectory( String bucketName, String s3PathPrefix, Path initialPath, AtomicLong totalBytes,
-        AtomicInteger successfulCount, List<S3OperationRecord> failedUploads ) throws InterruptedException {
+    /**
+     * Uploads the file, directory or list of files compressed with the configured codec. Keys get the codec's
+     * suffix, and objects are stored with a matching Content-Encoding.
+     */
+    private void uploadCompressed( String bucketName, String s3PathPrefix, String localFilePath, String optionType,
+        S3TransferOptions transferOptions, AtomicInteger successfulCount,
+        FailureLog failedUploads ) throws InterruptedException, IOException {
 
+        Path initialPath = Paths.get( localFilePath );
+        CompressedUploadPipeline pipeline = new CompressedUploadPipeline( transferManager.getAmazonS3Client(),
+                executorService, metrics, getProgressListener(), transferOptions.getCompression(),
+                transferManager.getConfiguration().getMinimumUploadPartSize(), transferOptions.getMaxInFlightUploads() );
+        String keySuffix = pipeline.getKeySuffix();
+        CompressedUploadPipeline.CompletionHandler completionHandler =
+                upload -> handleCompressedUploadCompletion( upload, successfulCount, failedUploads );
+        try {
+            switch( optionType ) {
+                case Constants.OPTION_FILE:
+                    File file = initialPath.toFile();
+                    pipeline.submit( bucketName, getS3FileKey( s3PathPrefix, file ) + keySuffix, file,
+                            completionHandler );
+                    break;
+
+                case Constants.OPTION_DIRECTORY:
+                    walkDirectory( initialPath, getDirectoryKeyPrefix( s3PathPrefix, initialPath ),
+                            ( path, s3FileKey ) -> pipeline.submit( bucketName, s3FileKey + keySuffix, path.toFile(),
+                                    completionHandler ) );
+                    break;
+
+                case Constants.OPTION_LIST:
+                    try( ManifestReader manifestReader = new ManifestReader( initialPath ) ) {
+                        manifestReader.forEachLine( fileName -> {
+                            File listedFile = new File( fileName );
+                            pipeline.submit( bucketName, getS3FileKey( s3PathPrefix, listedFile ) + keySuffix,
+                                    listedFile, completionHandler );
+                        } );
+                    }
+                    break;
+
+                default:
+                    ValidationsUtil.handleUnsupported( Constants.MSG_UNSUPPORTED_OPTION, optionType );
+            }
+        } finally {
+            try {
+                pipeline.awaitCompletion();
+            } finally {
+                pipeline.close();
+            }
+        }
+    }
+
+    /**
+     * Uploads the file, directory or list of files to the bucket and to every fan-out destination, reading each file
+     * once. Each destination gets a client for its region, and its own metrics and summary; a file that fails at one
+     * destination is recorded in the failed uploads CSV with that destination's bucket.
+     */
+    private void uploadFanOut( String bucketName, String s3PathPrefix, String localFilePath, String optionType,
+        S3TransferOptions transferOptions, AtomicInteger successfulCount,
+        FailureLog failedUploads ) throws InterruptedException, IOException {
+
+        Map<String, Regions> destinationRegions = new LinkedHashMap<>();
+        destinationRegions.put( bucketName, region );
+        transferOptions.getFanOutDestinations().forEach( ( destinationBucket, destinationRegion ) ->
+                destinationRegions.putIfAbsent( destinationBucket, destinationRegion != null ? destinationRegion : region ) );
+        List<FanOutUploadPipeline.Destination> destinations = new ArrayList<>();
+        try {
+            for( Map.Entry<String, Regions> entry: destinationRegions.entrySet() )
+                destinations.add( newFanOutDestination( entry.getKey(), entry.getValue() ) );
+            log.info("Fan-out destinations - {}", destinationRegions);
+
+            Path initialPath = Paths.get( localFilePath );
+            FanOutUploadPipeline pipeline = new FanOutUploadPipeline( destinations, executorService, metrics,
+                    transferManager.getConfiguration().getMinimumUploadPartSize(),
+                    transferOptions.getMaxInFlightUploads() );
+            FanOutUploadPipeline.CompletionHandler completionHandler =
+                    upload -> handleFanOutCompletion( upload, successfulCount, failedUploads );
+            try {
+                switch( optionType ) {
+                    case Constants.OPTION_FILE:
+                        File file = initialPath.toFile();
+                        pipeline.submit( getS3FileKey( s3PathPrefix, file ), file, completionHandler );
+                        break;
+
+                    case Constants.OPTION_DIRECTORY:
+                        walkDirectory( initialPath, getDirectoryKeyPrefix( s3PathPrefix, initialPath ),
+                                ( path, s3FileKey ) -> pipeline.submit( s3FileKey, path.toFile(),
+                                        completionHandler ) );
+                        break;
+
+                    case Constants.OPTION_LIST:
+                        try( ManifestReader manifestReader = new ManifestReader( initialPath ) ) {
+                            manifestReader.forEachLine( fileName -> {
+                                File listedFile = new File( fileName );
+                                pipeline.submit( getS3FileKey( s3PathPrefix, listedFile ), listedFile,
+                                        completionHandler );
+                            } );
+                        }
+                        break;
+
+                    default:
+                        ValidationsUtil.handleUnsupported( Constants.MSG_UNSUPPORTED_OPTION, optionType );
+                }
+            } finally {
+                pipeline.awaitCompletion();
+            }
+        } finally {
+            for( FanOutUploadPipeline.Destination destination: destinations ) {
+                logDestinationSummary( destination );
+                destination.getS3Client().shutdown();
+            }
+        }
+    }
+
+    private FanOutUploadPipeline.Destination newFanOutDestination( String bucketName, Regions destinationRegion ) {
+        TransferMetrics destinationMetrics = new TransferMetrics();
+        AmazonS3 s3Client = newS3ClientBuilder( destinationRegion )
+                .withRequestHandlers( new RequestMetricsHandler( () -> metrics, () -> destinationMetrics ),
+                        checksumVerifier, bandwidthLimiter, executionEngine.newRequestTracker() )
+                .build();
+        ProgressListener progressListener = new SyncProgressListener() {
+            @Override
+            public void progressChanged( ProgressEvent progressEvent ) {
+                long transferredBytes = progressEvent.getBytesTransferred();
+                if( transferredBytes > 0 ) {
+                    destinationMetrics.recordBytes( transferredBytes );
+                    recordProgress( transferredBytes, "Upload" );
+                }
+            }
+        };
+        return new FanOutUploadPipeline.Destination( bucketName, s3Client, destinationMetrics, progressListener );
+    }
+
+    private void logDestinationSummary( FanOutUploadPipeline.Destination destination ) {
+        TransferMetrics destinationMetrics = destination.getMetrics();
+        log.info("Destination {} - Successful Object(s): {}, Failed Object(s): {}, Data Transferred: {}, " +
+                "Transfer Rate: {} (Mbps), Requests: {}, Retries: {}, Failed Requests: {}",
+                destination.getBucketName(), destinationMetrics.getSuccessfulObjects(),
+                destinationMetrics.getFailedObjects(),
+                FileHelper.printFileSizeUserFriendly( destinationMetrics.getBytesTransferred() ),
+                String.format( "%.2f", destinationMetrics.getOverallRate() ), destinationMetrics.getRequests(),
+                destinationMetrics.getRetries(), destinationMetrics.getFailedRequests() );
+        logLatency( "Destination " + destination.getBucketName() + " Object Latency",
+                destinationMetrics.getObjectLatency() );
+    }
+
+    private UploadPipeline newUploadPipeline( S3TransferOptions transferOptions ) {
+        if( transferOptions.isAdaptive() )
+            return new UploadPipeline( transferManager, uploadJournal, metrics, transferController::getMaxInFlight,
+                    transferOptions.isResume() );
+        return new UploadPipeline( transferManager, uploadJournal, metrics, transferOptions.getMaxInFlightUploads(),
+                transferOptions.isResume() );
+    }
+
+    /**
+     * Shuts down the client, its connection pool and the executor service. Operations do not do this themselves, so
+     * one wrapper can run any number of them over the same warm connections.
+     */
+    public void shutdown() {
+        transferManager.shutdownNow();
+    }
+
+    /**
+     * Returns the metrics of the operation running, or of the last one once it has finished.
+     */
+    public TransferMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void closeMetricsExporter() {
+        if( metricsExporter == null )
+            return;
+        metricsExporter.close();
+        metricsExporter = null;
+    }
+
+    private void openRunJournal( S3TransferOptions transferOptions ) throws IOException {
+        if( transferOptions.isJournal() )
+            metrics.setJournal( new RunJournal( getHomePath( ConfigConstants.newRunFile(
+                    ConfigConstants.JOURNALS_DIR, ConfigConstants.RUN_JOURNAL_JSONL ) ) ) );
+    }
+
+    private void closeRunJournal() {
+        RunJournal runJournal = metrics.getJournal();
+        if( runJournal != null )
+            runJournal.close();
+    }
+
+    /**
+     * Opens the failure log of an operation starting now, so that every command of a batch gets its own.
+     */
+    private FailureLog newFailureLog( String suffix ) {
+        return new FailureLog( getHomePath( ConfigConstants.newRunFile( ConfigConstants.ERROR_LOGS_DIR, suffix ) ) );
+    }
+
+    private Path getUploadJournalFile() {
+        return getHomePath( ConfigConstants.UPLOAD_JOURNAL_FILE );
+    }
+
+    private Path getHomePath( String relativePath ) {
+        return Paths.get( System.getProperty( "user.home" ), relativePath );
+    }
+
+    private void closeUploadJournal() {
+        if( uploadJournal == null )
+            return;
+        try {
+            uploadJournal.close();
+        } catch( IOException e ) {
+            log.error("Error closing upload journal - Message={}", e.getMessage());
+        }
+        uploadJournal = null;
+    }
+
+    /**
+     * Walks the directory lazily and feeds each file into the upload pipeline, so that memory use depends on the
+     * number of uploads in flight rather than on the size of the tree. Each object is verified and reported as soon
+     * as its upload completes.
+     */
+    private void uploadDirectory( String bucketName, String s3PathPrefix, Path initialPath,
+        S3TransferOptions transferOptions, AtomicInteger successfulCount,
+        FailureLog failedUploads ) throws InterruptedException, IOException {
+
+        UploadPipeline pipeline = newUploadPipeline( transferOptions );
+        ProgressListener progressListener = getProgressListener();
+        try {
+            walkDirectory( initialPath, getDirectoryKeyPrefix( s3PathPrefix, initialPath ), ( path, s3FileKey ) -> {
+                File file = path.toFile();
+                PutObjectRequest request = new PutObjectRequest( bucketName, s3FileKey, file );
+                request.setGeneralProgressListener( progressListener );
+                pipeline.submit( request, upload -> handleUploadCompletion( bucketName, s3FileKey, file, upload,
+                        successfulCount, failedUploads ) );
+            } );
+        } finally {
+            pipeline.awaitCompletion();
+        }
+    }
+
+    /**
+     * Walks the directory like {@link #uploadDirectory}, but uploads each distinct file content once and creates the
+     * other files with that content as server-side copies.
+     */
+    private void uploadDirectoryDeduplicated( String bucketName, String s3PathPrefix, Path initialPath,
+        S3TransferOptions transferOptions, AtomicInteger successfulCount,
+        FailureLog failedUploads ) throws InterruptedException, IOException {
+
+        DeduplicatingUploader uploader = new DeduplicatingUploader( transferManager,
+                newUploadPipeline( transferOptions ), bucketName, getProgressListener(),
+                transferOptions.getMaxInFlightUploads(),
+                ( key, file, upload ) -> handleUploadCompletion( bucketName, key, file, upload, successfulCount,
+                        failedUploads ),
+                ( key, file, sourceKey, error ) -> handleCopyCompletion( bucketName, key, file, sourceKey, error,
+                        successfulCount, failedUploads ) );
+        try {
+            walkDirectory( initialPath, getDirectoryKeyPrefix( s3PathPrefix, initialPath ),
+                    ( path, s3FileKey ) -> uploader.submit( s3FileKey, path.toFile() ) );
+        } finally {
+            uploader.awaitCompletion();
+        }
+    }
+
+    private void uploadDirectoryPacked( String bucketName, String s3PathPrefix, Path initialPath,
+        S3TransferOptions transferOptions, AtomicInteger successfulCount,
+        FailureLog failedUploads ) throws InterruptedException, IOException {
+
+        String keyPrefix = getDirectoryKeyPrefix( s3PathPrefix, initialPath );
+        String packKeyPrefix = keyPrefix + Constants.PACK_KEY_DIR + System.currentTimeMillis() + "-";
+        int packCapacity = transferOptions.getPackTargetSize();
+        AtomicInteger packCount = new AtomicInteger();
+        AtomicInteger packedFileCount = new AtomicInteger();
+
+        UploadPipeline pipeline = newUploadPipeline( transferOptions );
+        // every archive in flight holds its whole buffer, so archives get a smaller limit of their own
+        UploadPipeline archivePipeline = new UploadPipeline( transferManager, uploadJournal, metrics,
+                Math.min( transferOptions.getMaxInFlightUploads(), Constants.MAX_IN_FLIGHT_PACK_ARCHIVES ),
+                transferOptions.isResume() );
+        ProgressListener progressListener = getProgressListener();
+        Path packIndexFile = Files.createTempFile( "aws-tools-pack-index", ".csv" );
+        try( Writer packIndex = Files.newBufferedWriter( packIndexFile, StandardCharsets.UTF_8 ) ) {
+
+            packIndex.write( ConfigConstants.PACK_INDEX_CSV_HEADER_ROW );
+            AtomicReference<PackArchive> archive = new AtomicReference<>(
+                    new PackArchive( getPackKey( packKeyPrefix, packCount ), packCapacity ) );
+            walkDirectory( initialPath, keyPrefix, ( path, s3FileKey ) -> {
+                File file = path.toFile();
+                long fileSize = file.length();
+
+                if( fileSize >= transferOptions.getPackFileThreshold() || fileSize > packCapacity ) {
+                    PutObjectRequest request = new PutObjectRequest( bucketName, s3FileKey, file );
+                    request.setGeneralProgressListener( progressListener );
+                    pipeline.submit( request, upload -> handleUploadCompletion( bucketName, s3FileKey, file, upload,
+                            successfulCount, failedUploads ) );
+                    return;
+                }
+
+                if( !archive.get().add( path, s3FileKey, fileSize ) ) {
+                    submitPackArchive( bucketName, archive.get(), archivePipeline, packIndex, progressListener,
+                            successfulCount, failedUploads );
+                    archive.set( new PackArchive( getPackKey( packKeyPrefix, packCount ), packCapacity ) );
+                    archive.get().add( path, s3FileKey, fileSize );
+                }
+                packedFileCount.getAndIncrement();
+            } );
+            if( !archive.get().isEmpty() )
+                submitPackArchive( bucketName, archive.get(), archivePipeline, packIndex, progressListener,
+                        successfulCount, failedUploads );
+        } finally {
+            archivePipeline.awaitCompletion();
+            pipeline.awaitCompletion();
+        }
+
+        if( packedFileCount.get() == 0 ) {
+            Files.deleteIfExists( packIndexFile );
+            return;
+        }
+        // sent like any other file, so that it is verified and its checksum entry is cleared
+        String packIndexKey = packKeyPrefix + Constants.PACK_INDEX_SUFFIX;
+        PutObjectRequest request = new PutObjectRequest( bucketName, packIndexKey, packIndexFile.toFile() );
+        AtomicBoolean indexUploaded = new AtomicBoolean();
+        pipeline.submit( request, upload -> indexUploaded.set( handlePackIndexCompletion( bucketName, packIndexKey,
+                packIndexFile, upload ) ) );
+        pipeline.awaitCompletion();
+        if( indexUploaded.get() ) {
+            Files.deleteIfExists( packIndexFile );
+            log.info("Packed {} small file(s) into {} archive(s) - index={}",
+                    packedFileCount.get(), packCount.get(), packIndexKey);
+        }
+    }
+
+    /**
+     * Verifies the uploaded pack index. If it did not make it, the local copy is kept, since the archives cannot be
+     * unpacked without it.
+     */
+    private boolean handlePackIndexCompletion( String bucketName, String packIndexKey, Path packIndexFile,
+        Upload upload ) throws InterruptedException {
+
+        String error;
+        if( upload.getState() == Transfer.TransferState.Completed ) {
+            error = checksumVerifier.verify( bucketName, packIndexKey, upload.waitForUploadResult().getETag() );
+        } else {
+            checksumVerifier.discard( bucketName, packIndexKey );
+            AmazonClientException e = upload.waitForException();
+            error = e != null ? e.getMessage() : upload.getState().toString();
+        }
+        if( error != null )
+            log.error("S3 upload FAILED - packIndex={}, localCopy={}, Error={}", packIndexKey, packIndexFile, error);
+        return error == null;
+    }
+
+    private void submitPackArchive( String bucketName, PackArchive archive, UploadPipeline pipeline, Writer packIndex,
+        ProgressListener progressListener, AtomicInteger successfulCount, FailureLog failedUploads )
+        throws InterruptedException, IOException {
+
+        String delimiter = ConfigConstants.ERROR_LOGS_CSV_DELIMITER;
+        for( PackArchive.Member member: archive.getMembers() ) {
+            packIndex.write( S3OperationRecord.toCsvField( member.getLocalFilePath(), delimiter ) + delimiter +
+                    S3OperationRecord.toCsvField( member.getKey(), delimiter ) + delimiter +
+                    S3OperationRecord.toCsvField( archive.getKey(), delimiter ) + delimiter +
+                    member.getOffset() + delimiter + member.getLength() + "\n" );
+        }
+
+        ObjectMetadata objectMetadata = new ObjectMetadata();
+        objectMetadata.setContentLength( archive.size() );
+        PutObjectRequest request = new PutObjectRequest( bucketName, archive.getKey(), archive.newInputStream(),
+                objectMetadata );
+        request.setGeneralProgressListener( progressListener );
+        pipeline.submit( request, upload -> handlePackArchiveCompletion( bucketName, archive, upload,
+                successfulCount, failedUploads ) );
+    }
+
+    private void handlePackArchiveCompletion( String bucketName, PackArchive archive, Upload upload,
+        AtomicInteger successfulCount, FailureLog failedUploads ) throws InterruptedException {
+
+        boolean archiveUploaded = upload.getState() == Transfer.TransferState.Completed &&
+                upload.getProgress().getBytesTransferred() == archive.size();
+        String checksumError = null;
+        if( archiveUploaded ) {
+            checksumError = checksumVerifier.verify( bucketName, archive.getKey(), upload.waitForUploadResult().getETag() );
+        } else {
+            checksumVerifier.discard( bucketName, archive.getKey() );
+            AmazonClientException e = upload.waitForException();
+            log.error("S3 upload FAILED - archive={}, files={}, Error={}", archive.getKey(),
+                    archive.getMembers().size(), e != null ? e.getMessage() : upload.getState());
+        }
+
+        // each packed file is reported on its own, as if it had been uploaded individually
+        for( PackArchive.Member member: archive.getMembers() ) {
+            long fileSizeLocal = new File( member.getLocalFilePath() ).length();
+            long fileSizeS3 = archiveUploaded ? member.getLength() : 0;
+            checkUploadStatus( bucketName, member.getKey(), member.getLocalFilePath(), fileSizeLocal, fileSizeS3,
+                    checksumError, successfulCount, failedUploads );
+        }
+    }
+
+    private String getPackKey( String packKeyPrefix, AtomicInteger packCount ) {
+        return packKeyPrefix + String.format( "%06d", packCount.incrementAndGet() ) + Constants.PACK_ARCHIVE_SUFFIX;
+    }
+
+    private String getDirectoryKeyPrefix( String s3PathPrefix, Path initialPath ) {
         String directoryName = initialPath.subpath( 2, initialPath.getNameCount() ).toString();
         if( s3PathPrefix != null )
-            directoryName = ValidationsUtil.formatPath( s3PathPrefix );
-        List<Pair<File, ObjectMetadata>> uploadMetadata = new ArrayList<>();
+            directoryName = s3PathPrefix;
+        return ValidationsUtil.formatPath( directoryName );
+    }
+
+    private void uploadChangedFiles( String bucketName, String s3PathPrefix, Path initialPath,
+        S3TransferOptions transferOptions, AtomicInteger successfulCount,
+        AtomicInteger unchangedCount, FailureLog failedUploads ) throws InterruptedException, IOException {
+
+        String keyPrefix = getDirectoryKeyPrefix( s3PathPrefix, initialPath );
+        SyncIndex syncIndex = SyncIndex.load( getSyncIndexFile( bucketName, keyPrefix, initialPath ) );
+        log.info("Loaded sync index - entries={}", syncIndex.getPreviousEntries().size());
+        if( transferOptions.isReconcile() )
+            reconcileSyncIndex( bucketName, keyPrefix, syncIndex );
+
+        UploadPipeline pipeline = newUploadPipeline( transferOptions );
+        ProgressListener progressListener = getProgressListener();
+        try {
+            walkDirectory( initialPath, keyPrefix, ( path, s3FileKey ) -> {
+                File file = path.toFile();
+                long fileSize = file.length();
+                long lastModified = file.lastModified();
+                if( syncIndex.isUnchanged( s3FileKey, fileSize, lastModified ) ) {
+                    unchangedCount.getAndIncrement();
+                    return;
+                }
+
+                PutObjectRequest request = new PutObjectRequest( bucketName, s3FileKey, file );
+                request.setGeneralProgressListener( progressListener );
+                pipeline.submit( request, upload -> {
+                    if( handleUploadCompletion( bucketName, s3FileKey, file, upload, successfulCount, failedUploads ) )
+                        syncIndex.recordUpload( s3FileKey, fileSize, lastModified, upload.waitForUploadResult().getETag() );
+                } );
+            } );
+        } finally {
+            pipeline.awaitCompletion();
+            // keep the progress made so far, so an interrupted sync does not start over
+            syncIndex.save();
+            log.info("Saved sync index - entries={}", syncIndex.size());
+        }
+    }
+
+    private void uploadWatchedFiles( String bucketName, String s3PathPrefix, Path initialPath,
+        S3TransferOptions transferOptions, AtomicInteger successfulCount,
+        FailureLog failedUploads ) throws InterruptedException, IOException {
+
+        String keyPrefix = getDirectoryKeyPrefix( s3PathPrefix, initialPath );
+        SyncIndex syncIndex = SyncIndex.load( getSyncIndexFile( bucketName, keyPrefix, initialPath ) );
+        log.info("Loaded sync index - entries={}", syncIndex.getPreviousEntries().size());
+
+        UploadPipeline pipeline = newUploadPipeline( transferOptions );
+        ProgressListener progressListener = getProgressListener();
+        Set<String> inFlightKeys = new HashSet<>();
+        long saveIntervalNanos = TimeUnit.SECONDS.toNanos( transferOptions.getScanIntervalSeconds() );
+        DirectoryWatcher.FileHandler fileHandler = new DirectoryWatcher.FileHandler() {
+
+            private boolean indexChanged;
+            private long lastSaveNanos = System.nanoTime();
+
+            @Override
+            public boolean isChanged( Path path, long size, long lastModified ) {
+                String s3FileKey = getDirectoryFileKey( keyPrefix, initialPath, path );
+                return !inFlightKeys.contains( s3FileKey ) && !syncIndex.isUnchanged( s3FileKey, size, lastModified );
+            }
+
+            @Override
+            public void onSettled( Path path, long size, long lastModified ) throws InterruptedException {
+                File file = path.toFile();
+                String s3FileKey = getDirectoryFileKey( keyPrefix, initialPath, path );
+                PutObjectRequest request = new PutObjectRequest( bucketName, s3FileKey, file );
+                request.setGeneralProgressListener( progressListener );
+                inFlightKeys.add( s3FileKey );
+                pipeline.submit( request, upload -> {
+                    inFlightKeys.remove( s3FileKey );
+                    if( handleUploadCompletion( bucketName, s3FileKey, file, upload, successfulCount, failedUploads ) ) {
+                        // the size and time the file had when it settled, so a change during the upload is noticed
+                        syncIndex.recordUpload( s3FileKey, size, lastModified, upload.waitForUploadResult().getETag() );
+                        indexChanged = true;
+                    }
+                } );
+            }
+
+            @Override
+            public void onIdle() throws InterruptedException, IOException {
+                pipeline.processCompleted();
+                if( indexChanged && System.nanoTime() - lastSaveNanos >= saveIntervalNanos ) {
+                    syncIndex.save();
+                    indexChanged = false;
+                    lastSaveNanos = System.nanoTime();
+                }
+            }
+        };
+
+        try( DirectoryWatcher watcher = new DirectoryWatcher( initialPath, transferOptions.getSettleSeconds(),
+                transferOptions.getScanIntervalSeconds(), fileHandler ) ) {
+            watcher.run();
+        } finally {
+            pipeline.awaitCompletion();
+            syncIndex.save();
+            log.info("Saved sync index - entries={}", syncIndex.size());
+        }
+    }
+
+    /**
+     * Walks the directory lazily, handing each file to the handler with its key under the prefix, so that memory use
+     * does not grow with the size of the tree.
+     */
+    private void walkDirectory( Path initialPath, String keyPrefix, DirectoryFileHandler handler )
+            throws InterruptedException, IOException {
+        try( Stream<Path> paths = Files.walk( initialPath ) ) {
+            Iterator<Path> iterator = paths.filter( Files::isRegularFile ).iterator();
+            while( iterator.hasNext() ) {
+                Path path = iterator.next();
+                handler.accept( path, getDirectoryFileKey( keyPrefix, initialPath, path ) );
+            }
+        }
+    }
+
+    private String getDirectoryFileKey( String keyPrefix, Path initialPath, Path path ) {
+        return keyPrefix + initialPath.relativize( path ).toString().replace( File.separatorChar, '/' );
+    }
+
+    private void reconcileSyncIndex( String bucketName, String keyPrefix, SyncIndex syncIndex ) {
+        Map<String, SyncIndex.Entry> indexedEntries = syncIndex.getPreviousEntries();
+        Set<String> listedKeys = new HashSet<>();
+        ListObjectsV2Request request = new ListObjectsV2Request()
+                .withBucketName( bucketName )
+                .withPrefix( keyPrefix );
+        ListObjectsV2Result result;
+        do {
+            result = transferManager.getAmazonS3Client().listObjectsV2( request );
+            for( S3ObjectSummary summary: result.getObjectSummaries() ) {
+                SyncIndex.Entry entry = indexedEntries.get( summary.getKey() );
+                if( entry == null )
+                    continue;
+                listedKeys.add( summary.getKey() );
+                if( entry.getSize() != summary.getSize() || !Objects.equals( entry.getETag(), summary.getETag() ) )
+                    syncIndex.invalidate( summary.getKey() );
+            }
+            request.setContinuationToken( result.getNextContinuationToken() );
+        } while( result.isTruncated() );
+
+        int indexedCount = indexedEntries.size();
+        indexedEntries.keySet().retainAll( listedKeys );
+        log.info("Reconciled sync index with bucket - indexed={}, stale={}",
+                indexedCount, indexedCount - indexedEntries.size());
+    }
+
+    private Path getSyncIndexFile( String bucketName, String keyPrefix, Path initialPath ) {
+        String indexName = UUID.nameUUIDFromBytes( ( bucketName + "|" + keyPrefix + "|" + initialPath.toAbsolutePath() )
+                .getBytes( StandardCharsets.UTF_8 ) ).toString();
+        return Paths.get( System.getProperty( "user.home" ), ConfigConstants.SYNC_INDEX_DIR, indexName + ".idx" );
+    }
+
+    private void uploadSingleFile( String bucketName, String s3PathPrefix, File file,
+        S3TransferOptions transferOptions, AtomicInteger successfulCount, FailureLog failedUploads )
+        throws InterruptedException {
+
+        String s3FileKey = getS3FileKey( s3PathPrefix, file );
+        PutObjectRequest request = new PutObjectRequest( bucketName, s3FileKey, file );
+        request.setGeneralProgressListener( getProgressListener() );
+
+        UploadPipeline pipeline = new UploadPipeline( transferManager, uploadJournal, metrics, 1,
+                transferOptions.isResume() );
+        pipeline.submit( request, upload -> handleUploadCompletion( bucketName, s3FileKey, file, upload,
+                successfulCount, failedUploads ) );
+        pipeline.awaitCompletion();
+    }
+
+    private void downloadSingleObject( String bucketName, String key, Path initialPath, DownloadPipeline pipeline,
+        AtomicInteger successfulCount, FailureLog failedDownloads ) throws InterruptedException {
+
+        ObjectMetadata objectMetadata = transferManager.getAmazonS3Client().getObjectMetadata( bucketName, key );
+        Path localFile = initialPath;
+        if( Files.isDirectory( initialPath ) )
+            localFile = initialPath.resolve( key.substring( key.lastIndexOf( '/' ) + 1 ) );
+        pipeline.submit( bucketName, key, objectMetadata.getETag(), objectMetadata.getContentLength(), localFile,
+                download -> checkDownloadStatus( download, successfulCount, failedDownloads ) );
+    }
+
+    /**
+     * Downloads every object under the prefix into the local directory, keeping the key structure below the prefix.
+     * Objects are submitted page by page as the listing proceeds.
+     */
+    private void downloadPrefix( String bucketName, String prefix, Path initialPath, DownloadPipeline pipeline,
+        AtomicInteger successfulCount, FailureLog failedDownloads ) throws InterruptedException {
+
+        Path localDir = initialPath.toAbsolutePath().normalize();
+        ListObjectsV2Request request = new ListObjectsV2Request()
+                .withBucketName( bucketName )
+                .withPrefix( prefix );
+        ListObjectsV2Result result;
+        do {
+            result = transferManager.getAmazonS3Client().listObjectsV2( request );
+            for( S3ObjectSummary summary: result.getObjectSummaries() ) {
+                String key = summary.getKey();
+                if( key.endsWith( "/" ) ) // folder placeholder
+                    continue;
+                submitDownload( bucketName, key, key.substring( prefix.length() ), summary.getETag(),
+                        summary.getSize(), localDir, pipeline, successfulCount, failedDownloads );
+            }
+            request.setContinuationToken( result.getNextContinuationToken() );
+        } while( result.isTruncated() );
+    }
 
-        MultipleFileUpload upload = transferManager.uploadDirectory(
-                bucketName, directoryName, initialPath.toFile(), true,
-                ( file1, objectMetadata ) -> uploadMetadata.add( Pair.of( file1, objectMetadata ) ) );
-        upload.addProgressListener( getProgressListener( totalBytes ) );
-        upload.waitForCompletion();
+    /**
+     * Downloads the objects of a listing written by the ls operation, in any of its formats, into the local
+     * directory, keeping their full keys as paths. Sizes and ETags are taken from the listing; a listing of keys only
+     * costs a HEAD request per object.
+     */
+    private void downloadListing( String bucketName, Path listingFile, Path initialPath, DownloadPipeline pipeline,
+        AtomicInteger successfulCount, FailureLog failedDownloads ) throws IOException, InterruptedException {
 
-        for( Pair<File, ObjectMetadata> pair: uploadMetadata ) {
-            File localFile = pair.getLeft();
-            ObjectMetadata objectMetadata = pair.getRight();
-            long fileSizeLocal = localFile.length();
-            long fileSizeS3 = objectMetadata.getContentLength();
-            checkUploadStatus( bucketName, ValidationsUtil.formatPath( directoryName ) + localFile.getName(), localFile.getAbsolutePath(),
-                    fileSizeLocal, fileSizeS3, successfulCount, failedUploads );
+        Path localDir = initialPath.toAbsolutePath().normalize();
+        String headerRow = ConfigConstants.LISTING_CSV_HEADER_ROW.trim();
+        try( ManifestReader manifestReader = ManifestReader.open( listingFile ) ) {
+            manifestReader.forEachLine( line -> {
+                if( line.equals( headerRow ) )
+                    return;
+                S3ListingRecord record;
+                try {
+                    record = S3ListingRecord.fromLine( line, ConfigConstants.ERROR_LOGS_CSV_DELIMITER );
+                } catch( IllegalArgumentException e ) {
+                    log.warn("Skipping malformed listing record - file={}, line={}", listingFile, line);
+                    return;
+                }
+                String key = record.getKey();
+                if( key.endsWith( "/" ) ) // folder placeholder
+                    return;
+                String eTag = record.getETag();
+                long size = record.getSize();
+                if( size < 0 || eTag == null ) {
+                    ObjectMetadata objectMetadata = transferManager.getAmazonS3Client()
+                            .getObjectMetadata( bucketName, key );
+                    eTag = objectMetadata.getETag();
+                    size = objectMetadata.getContentLength();
+                }
+                submitDownload( bucketName, key, key, eTag, size, localDir, pipeline, successfulCount,
+                        failedDownloads );
+            } );
         }
     }
 
-    private void uploadSingleFile( String bucketName, String s3PathPrefix, File file, AtomicLong totalBytes,
-        AtomicInteger successfulCount, List<S3OperationRecord> failedUploads ) throws InterruptedException {
+    private void submitDownload( String bucketName, String key, String relativeKey, String eTag, long size,
+        Path localDir, DownloadPipeline pipeline, AtomicInteger successfulCount, FailureLog failedDownloads )
+        throws InterruptedException {
 
+        Path localFile = localDir.resolve( relativeKey.replaceFirst( "^/+", "" ) ).normalize();
+        if( !localFile.startsWith( localDir ) ) {
+            log.error("S3 download FAILED - key={}, Error=Key resolves outside of the target directory", key);
+            failedDownloads.add( new S3OperationRecord( bucketName, key, localFile.toString(), size,
+                    "Key resolves outside of the target directory" ) );
+            metrics.recordObjectResult( false );
+            return;
+        }
+        pipeline.submit( bucketName, key, eTag, size, localFile,
+                download -> checkDownloadStatus( download, successfulCount, failedDownloads ) );
+    }
+
+    private void checkDownloadStatus( DownloadPipeline.Download download, AtomicInteger successfulCount,
+        FailureLog failedDownloads ) {
+
+        String localFilePath = download.getLocalFile().toString();
+        long fileSizeLocal = download.getError() == null ? download.getLocalFile().toFile().length() : 0;
+        if( download.getError() != null || fileSizeLocal != download.getSize() ) {
+            String errorMessage = download.getError() != null ? download.getError().getMessage() : "-";
+            failedDownloads.add( new S3OperationRecord( download.getBucketName(), download.getKey(), localFilePath,
+                    download.getSize(), errorMessage ) );
+            metrics.recordObjectResult( false );
+            if( download.getError() == null )
+                metrics.failJournalEntry( download.getBucketName(), download.getKey(), "Size mismatch - fileSizeLocal=" +
+                        fileSizeLocal + ", fileSizeS3=" + download.getSize() );
+            log.error("S3 download FAILED - key={}, fileSizeLocal={}, fileSizeS3={}, Error={}",
+                    download.getKey(), fileSizeLocal, download.getSize(), errorMessage);
+            return;
+        }
+        successfulCount.getAndIncrement();
+        metrics.recordObjectResult( true );
+        log.info("S3 download successful - key={}, file={}, fileSize={}",
+                download.getKey(), localFilePath, fileSizeLocal);
+    }
+
+    private String getS3FileKey( String s3PathPrefix, File file ) {
         Path initialPath = Paths.get( file.getAbsolutePath() );
         String s3FileKey = initialPath.subpath( 2, initialPath.getNameCount() ).toString();
         if( s3PathPrefix != null )
             s3FileKey = ValidationsUtil.formatPath( s3PathPrefix ) + file.getName();
+        return s3FileKey;
+    }
 
-        Upload upload = transferManager.upload( bucketName, s3FileKey, file );
-        upload.addProgressListener( getProgressListener( totalBytes ) );
-        upload.waitForCompletion();
+    private boolean handleUploadCompletion( String bucketName, String s3FileKey, File file, Upload upload,
+        AtomicInteger successfulCount, FailureLog failedUploads ) throws InterruptedException {
+
+        if( upload.getState() == Transfer.TransferState.Completed ) {
+            long fileSizeLocal = file.length();
+            long fileSizeS3 = upload.getProgress().getBytesTransferred();
+            String checksumError = checksumVerifier.verify( bucketName, s3FileKey,
+                    upload.waitForUploadResult().getETag() );
+            return checkUploadStatus( bucketName, s3FileKey, file.getAbsolutePath(), fileSizeLocal, fileSizeS3,
+                    checksumError, successfulCount, failedUploads );
+        }
 
-        long fileSizeLocal = file.length();
-        long fileSizeS3 = upload.getProgress().getBytesTransferred();
-        checkUploadStatus( bucketName, s3FileKey, file.getAbsolutePath(), fileSizeLocal, fileSizeS3,
-                successfulCount, failedUploads );
+        checksumVerifier.discard( bucketName, s3FileKey );
+        metrics.recordObjectResult( false );
+        AmazonClientException e = upload.waitForException();
+        Path filePath = Paths.get( file.getAbsolutePath() );
+        if( e instanceof AmazonS3Exception )
+            ErrorHandler.handleAmazonS3Exception( (AmazonS3Exception) e, bucketName, s3FileKey, file.getAbsolutePath(),
+                    file.length(), filePath, failedUploads );
+        else if( e != null )
+            ErrorHandler.handleAmazonClientException( e, bucketName, s3FileKey, file.getAbsolutePath(), file.length(),
+                    filePath, failedUploads );
+        else
+            failedUploads.add( new S3OperationRecord( bucketName, s3FileKey, file.getAbsolutePath(), file.length(),
+                    upload.getState().toString() ) );
+        return false;
     }
 
-    private ProgressListener getProgressListener( final AtomicLong totalBytes ) {
-        return ( progressEvent ) -> {
-            long transferredBytes = progressEvent.getBytesTransferred();
-            if( transferredBytes > 0 ) {
-                totalBytes.getAndAdd(transferredBytes);
+    private void handleCopyCompletion( String bucketName, String key, File file, String sourceKey,
+        AmazonClientException e, AtomicInteger successfulCount, FailureLog failedUploads ) {
 
-                // log progress every 30 seconds
-                LocalDateTime now = LocalDateTime.now();
-                long timeSinceLastOutput = ChronoUnit.SECONDS.between( timeAtLastPrintout, now );
-                if( timeSinceLastOutput > 30 ) {
+        if( e == null ) {
+            successfulCount.getAndIncrement();
+            metrics.recordObjectResult( true );
+            metrics.recordCopy( file.length() );
+            log.info("S3 copy successful - file={}, key={}, sourceKey={}", file.getAbsolutePath(), key, sourceKey);
+            return;
+        }
 
-                    float transferRate =  DataTransferUtil.calculateTransferRate(
-                            totalBytes.get() - bytesAtLastPrintout.get(),  timeSinceLastOutput );
-                    log.info("S3 Upload Transfer Progress: {}, Transfer Rate: {} (Mbps), ThreadId: {}",
-                            FileHelper.printFileSizeUserFriendly( totalBytes.get() ), String.format("%.2f", transferRate),
-                            Thread.currentThread().getId() );
+        metrics.recordObjectResult( false );
+        Path filePath = Paths.get( file.getAbsolutePath() );
+        if( e instanceof AmazonS3Exception )
+            ErrorHandler.handleAmazonS3Exception( (AmazonS3Exception) e, bucketName, key, file.getAbsolutePath(),
+                    file.length(), filePath, failedUploads );
+        else
+            ErrorHandler.handleAmazonClientException( e, bucketName, key, file.getAbsolutePath(), file.length(),
+                    filePath, failedUploads );
+    }
 
-                    timeAtLastPrintout = now;
-                    bytesAtLastPrintout.set( totalBytes.get() );
+    private boolean handleCompressedUploadCompletion( CompressedUploadPipeline.CompressedUpload upload,
+        AtomicInteger successfulCount, FailureLog failedUploads ) {
+
+        String localFilePath = upload.getFile().getAbsolutePath();
+        Throwable e = upload.getError();
+        if( e == null ) {
+            String checksumError = checksumVerifier.verify( upload.getBucketName(), upload.getKey(), upload.getETag() );
+            boolean successful = checkUploadStatus( upload.getBucketName(), upload.getKey(), localFilePath,
+                    upload.getFile().length(), upload.getUncompressedSize(), checksumError, successfulCount,
+                    failedUploads );
+            if( successful )
+                log.info("Compressed - key={}, size={}, compressedSize={}",
+                        upload.getKey(), upload.getUncompressedSize(), upload.getCompressedSize());
+            return successful;
+        }
 
-                    if( transferRate < minTransferRate.get() )
-                        minTransferRate.set( transferRate );
-                    if( transferRate > maxTransferRate.get() )
-                        maxTransferRate.set( transferRate );
+        checksumVerifier.discard( upload.getBucketName(), upload.getKey() );
+        metrics.recordObjectResult( false );
+        Path filePath = upload.getFile().toPath();
+        long fileSize = upload.getFile().length();
+        if( e instanceof AmazonS3Exception )
+            ErrorHandler.handleAmazonS3Exception( (AmazonS3Exception) e, upload.getBucketName(), upload.getKey(),
+                    localFilePath, fileSize, filePath, failedUploads );
+        else if( e instanceof AmazonClientException )
+            ErrorHandler.handleAmazonClientException( (AmazonClientException) e, upload.getBucketName(),
+                    upload.getKey(), localFilePath, fileSize, filePath, failedUploads );
+        else {
+            log.error("S3 upload FAILED - file={}, Error={}", localFilePath, e.getMessage());
+            failedUploads.add( new S3OperationRecord( upload.getBucketName(), upload.getKey(), localFilePath,
+                    fileSize, e.getMessage() ) );
+        }
+        return false;
+    }
+
+    /**
+     * Checks the upload of one file at every destination. Each destination is verified and counted separately.
+     */
+    private void handleFanOutCompletion( FanOutUploadPipeline.FanOutUpload upload, AtomicInteger successfulCount,
+        FailureLog failedUploads ) {
+
+        String localFilePath = upload.getFile().getAbsolutePath();
+        for( FanOutUploadPipeline.Target target: upload.getTargets() ) {
+            String bucketName = target.getDestination().getBucketName();
+            TransferMetrics destinationMetrics = target.getDestination().getMetrics();
+            Throwable e = target.getError();
+            if( e == null ) {
+                String checksumError = checksumVerifier.verify( bucketName, upload.getKey(), target.getETag() );
+                destinationMetrics.recordObjectResult( checkUploadStatus( bucketName, upload.getKey(), localFilePath,
+                        upload.getFile().length(), upload.getSize(), checksumError, successfulCount, failedUploads ) );
+                continue;
+            }
+
+            // recorded here rather than through ErrorHandler, which ends the run on errors such as a missing bucket
+            // or a wrong region, while the other destinations may be healthy
+            checksumVerifier.discard( bucketName, upload.getKey() );
+            metrics.recordObjectResult( false );
+            destinationMetrics.recordObjectResult( false );
+            String errorMessage = e instanceof AmazonS3Exception ? ( (AmazonS3Exception) e ).getErrorCode() + ": " +
+                    ( (AmazonS3Exception) e ).getErrorMessage() : e.getMessage();
+            log.error("S3 upload FAILED - bucketName={}, file={}, Error={}", bucketName, localFilePath, errorMessage);
+            failedUploads.add( new S3OperationRecord( bucketName, upload.getKey(), localFilePath, upload.getSize(),
+                    errorMessage ) );
+        }
+    }
+
+    /**
+     * Progress listeners are sync-safe, so the SDK calls them on the transfer threads rather than through its single
+     * publisher thread. This keeps up with thousands of concurrent transfers, and a transfer's progress is current by
+     * the time it completes.
+     */
+    private ProgressListener getProgressListener() {
+        return new SyncProgressListener() {
+            @Override
+            public void progressChanged( ProgressEvent progressEvent ) {
+                long transferredBytes = progressEvent.getBytesTransferred();
+                if( transferredBytes > 0 ) {
+                    recordProgress( transferredBytes, "Upload" );
+                    transferController.onProgress( metrics.getBytesTransferred() );
                 }
             }
         };
     }
 
-    private void checkUploadStatus( String bucketName, String key, String localFilePath, long fileSizeLocal,
-        long fileSizeS3, AtomicInteger successfulCount, List<S3OperationRecord> failedUploads ) {
+    private void recordProgress( long transferredBytes, String direction ) {
+        metrics.recordBytes( transferredBytes );
 
-        if( fileSizeLocal != fileSizeS3 ) {
-            failedUploads.add( new S3OperationRecord( bucketName, key, localFilePath, fileSizeLocal, "-" ) );
-            log.error("S3 upload FAILED - file={}, fileSizeLocal={}, fileSizeS3={}",
-                    localFilePath, fileSizeLocal, fileSizeS3);
-        } else {
-            successfulCount.getAndIncrement();
-            log.info("S3 upload successful - file={}, fileSizeLocal={}, fileSizeS3={}",
-                    localFilePath, fileSizeLocal, fileSizeS3);
+        // log progress every 30 seconds
+        float transferRate = metrics.closeRateInterval( Constants.PROGRESS_LOG_INTERVAL_SECONDS );
+        if( transferRate >= 0 ) {
+            long limitMbps = bandwidthLimiter.getLimitMbps();
+            log.info("S3 {} Transfer Progress: {}, Transfer Rate: {} (Mbps), Bandwidth Limit: {}, ThreadId: {}",
+                    direction, FileHelper.printFileSizeUserFriendly( metrics.getBytesTransferred() ),
+                    String.format("%.2f", transferRate), limitMbps > 0 ? limitMbps + " (Mbps)" : "none",
+                    Thread.currentThread().getId() );
+            log.info("Execution: {}", executionEngine);
         }
     }
 
-    private void postProcessing( List<S3OperationRecord> failedUploads, AtomicInteger successfulCount,
-                                 AtomicLong totalBytes, PerformanceLogger performanceLogger ) {
-
-        if( failedUploads.size() > 0 ) {
-            StringBuilder csv = new StringBuilder();
-            csv.append( ConfigConstants.FAILED_S3_UPLOADS_CSV_HEADER_ROW );
-            for( S3OperationRecord r: failedUploads ) {
-                csv.append( r.toCsvString( ConfigConstants.ERROR_LOGS_CSV_DELIMITER ) );
-            }
+    /**
+     * Marks an upload as successful only if the sizes match and the checksum computed while sending matches the
+     * ETag S3 returned.
+     */
+    private boolean checkUploadStatus( String bucketName, String key, String localFilePath, long fileSizeLocal,
+        long fileSizeS3, String checksumError, AtomicInteger successfulCount, FailureLog failedUploads ) {
 
-            // write failed records to error log
-            if( FileOperations.checkOrCreateDirInHomeDir( ConfigConstants.ERROR_LOGS_DIR ) ) {
-                FileOperations.appendToFileInHomeDir( csv.toString(), ConfigConstants.FAILED_S3_UPLOADS_CSV );
-            }
+        if( fileSizeLocal != fileSizeS3 || checksumError != null ) {
+            failedUploads.add( new S3OperationRecord( bucketName, key, localFilePath, fileSizeLocal,
+                    checksumError != null ? checksumError : "-" ) );
+            metrics.recordObjectResult( false );
+            metrics.failJournalEntry( bucketName, key, checksumError != null ? checksumError :
+                    "Size mismatch - fileSizeLocal=" + fileSizeLocal + ", fileSizeS3=" + fileSizeS3 );
+            log.error("S3 upload FAILED - file={}, fileSizeLocal={}, fileSizeS3={}, Error={}",
+                    localFilePath, fileSizeLocal, fileSizeS3, checksumError != null ? checksumError : "-");
+            return false;
         }
-        performanceLogger.printStatistics();
-        float transferRate = DataTransferUtil.calculateTransferRate( totalBytes.get(), performanceLogger.getLastCalculatedDuration() );
+        successfulCount.getAndIncrement();
+        metrics.recordObjectResult( true );
+        log.info("S3 upload successful - file={}, fileSizeLocal={}, fileSizeS3={}",
+                localFilePath, fileSizeLocal, fileSizeS3);
+        return true;
+    }
 
-        if( minTransferRate.get() == Float.MAX_VALUE || transferRate < minTransferRate.get() )
-            minTransferRate.set( transferRate );
+    private void postProcessing( FailureLog failedUploads, AtomicInteger successfulCount,
+                                 PerformanceLogger performanceLogger ) {
 
-        if( maxTransferRate.get() == 0.0 || transferRate > maxTransferRate.get() )
-            maxTransferRate.set( transferRate );
+        performanceLogger.printStatistics();
+        float transferRate = metrics.getOverallRate();
+        metrics.recordRate( transferRate );
 
-        log.info("S3 Upload Summary");
+        log.info("S3 Transfer Summary");
         log.info("---------------------------------------");
         log.info("Successful Object(s): {}", successfulCount.get());
         log.info("Failed Object(s): {}", failedUploads.size());
-        log.info("Total Data Transferred: {}", FileHelper.printFileSizeUserFriendly( totalBytes.get() ) );
+        if( failedUploads.size() > 0 )
+            log.info("Failed Object(s) Log: {}", failedUploads.getFile());
+        log.info("Total Data Transferred: {}", FileHelper.printFileSizeUserFriendly( metrics.getBytesTransferred() ) );
         log.info("Overall Transfer Rate: {} (Mbps)", String.format( "%.2f", transferRate ) );
-        log.info("Minimum Transfer Rate: {} (Mbps)", String.format( "%.2f", minTransferRate.get() ) );
-        log.info("Maximum Transfer Rate: {} (Mbps)", String.format( "%.2f", maxTransferRate.get() ) );
+        log.info("Minimum Transfer Rate: {} (Mbps)", String.format( "%.2f", metrics.getMinRate() ) );
+        log.info("Maximum Transfer Rate: {} (Mbps)", String.format( "%.2f", metrics.getMaxRate() ) );
+        log.info("Requests: {}, Retries: {}, Failed Requests: {}",
+                metrics.getRequests(), metrics.getRetries(), metrics.getFailedRequests() );
+        if( metrics.getUncompressedBytes() > 0 ) {
+            log.info("Compression: {} -> {}, Ratio: {}, CPU Time: {} s",
+                    FileHelper.printFileSizeUserFriendly( metrics.getUncompressedBytes() ),
+                    FileHelper.printFileSizeUserFriendly( metrics.getCompressedBytes() ),
+                    String.format( "%.2f", (double) metrics.getUncompressedBytes() / Math.max( 1, metrics.getCompressedBytes() ) ),
+                    String.format( "%.1f", metrics.getCompressionCpuNanos() / 1e9 ) );
+        }
+        if( metrics.getCopies() > 0 )
+            log.info("Deduplicated Copies: {}, Bytes Saved: {}", metrics.getCopies(),
+                    FileHelper.printFileSizeUserFriendly( metrics.getCopiedBytes() ) );
+        log.info("Execution: {}, Peak Requests In Flight: {}", executionEngine,
+                executionEngine.resetPeakRequestsInFlight() );
+        logLatency( "Object Latency", metrics.getObjectLatency() );
+        logLatency( "Part Latency", metrics.getPartLatency() );
+        RunJournal runJournal = metrics.getJournal();
+        if( runJournal != null )
+            log.info("Run Journal: {}, Dropped Entries: {}", runJournal.getFile(), runJournal.getDroppedEntries());
         log.info("---------------------------------------");
     }
 
+    private void logLatency( String name, LatencyHistogram histogram ) {
+        if( histogram.getCount() == 0 )
+            return;
+        log.info("{} (ms): p50={}, p99={}, p999={}, max={}", name,
+                String.format( "%.1f", histogram.getPercentileMicros( 0.5 ) / 1000.0 ),
+                String.format( "%.1f", histogram.getPercentileMicros( 0.99 ) / 1000.0 ),
+                String.format( "%.1f", histogram.getPercentileMicros( 0.999 ) / 1000.0 ),
+                String.format( "%.1f", histogram.getMaxMicros() / 1000.0 ) );
+    }
+
 }
@@ -0,0 +1,145 @@
+package org.warn.aws.s3.client;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Local record of what a previous sync uploaded, keyed by S3 object key. The index is stored as a flat binary file
+ * (a header followed by length-prefixed entries) that is memory-mapped and decoded in a single pass on load, and
+ * rewritten to a temporary file and moved into place on save so that an interrupted run never leaves it corrupt.
+ */
+class SyncIndex {
+
+    private static final int MAGIC = 0x53594e43; // "SYNC"
+    private static final int VERSION = 1;
+
+    @Data
+    @AllArgsConstructor
+    static class Entry {
+        private long size;
+        private long lastModified;
+        private String eTag;
+    }
+
+    private final Path indexFile;
+    private final Map<String, Entry> previousEntries;
+    private final Map<String, Entry> currentEntries = new HashMap<>();
+
+    private SyncIndex( Path indexFile, Map<String, Entry> previousEntries ) {
+        this.indexFile = indexFile;
+        this.previousEntries = previousEntries;
+    }
+
+    static SyncIndex load( Path indexFile ) throws IOException {
+        Map<String, Entry> entries = new HashMap<>();
+        if( !Files.exists( indexFile ) )
+            return new SyncIndex( indexFile, entries );
+
+        try( FileChannel channel = FileChannel.open( indexFile, StandardOpenOption.READ ) ) {
+            MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+            if( buffer.remaining() < 12 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION )
+                throw new IOException( "Unrecognized sync index format - " + indexFile );
+
+            int entryCount = buffer.getInt();
+            entries = new HashMap<>( (int) ( entryCount / 0.75f ) + 1 );
+            for( int i = 0; i < entryCount; i++ ) {
+                String key = readString( buffer );
+                long size = buffer.getLong();
+                long lastModified = buffer.getLong();
+                String eTag = readString( buffer );
+                entries.put( key, new Entry( size, lastModified, eTag ) );
+            }
+        } catch( BufferUnderflowException e ) {
+            throw new IOException( "Truncated sync index - " + indexFile, e );
+        }
+        return new SyncIndex( indexFile, entries );
+    }
+
+    /**
+     * Returns true if the file was uploaded by this or a previous run and has not changed since. Unchanged entries
+     * are carried over to the index that is written by {@link #save()}.
+     */
+    boolean isUnchanged( String key, long size, long lastModified ) {
+        Entry entry = currentEntries.get( key );
+        if( entry == null )
+            entry = previousEntries.get( key );
+        if( entry == null || entry.getSize() != size || entry.getLastModified() != lastModified )
+            return false;
+        currentEntries.put( key, entry );
+        return true;
+    }
+
+    void recordUpload( String key, long size, long lastModified, String eTag ) {
+        currentEntries.put( key, new Entry( size, lastModified, eTag ) );
+    }
+
+    /**
+     * Drops a previously indexed object, forcing it to be uploaded again. Used when the bucket no longer holds
+     * the object the index describes.
+     */
+    void invalidate( String key ) {
+        previousEntries.remove( key );
+    }
+
+    Map<String, Entry> getPreviousEntries() {
+        return previousEntries;
+    }
+
+    int size() {
+        return currentEntries.size();
+    }
+
+    /**
+     * Writes the entries for files seen during this run. Files that were deleted locally are dropped from the index.
+     */
+    void save() throws IOException {
+        Files.createDirectories( indexFile.getParent() );
+        Path tempFile = indexFile.resolveSibling( indexFile.getFileName() + ".tmp" );
+        try( DataOutputStream out = new DataOutputStream( new BufferedOutputStream(
+                Files.newOutputStream( tempFile ), 256 * 1024 ) ) ) {
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeInt( currentEntries.size() );
+            for( Map.Entry<String, Entry> e: currentEntries.entrySet() ) {
+                writeString( out, e.getKey() );
+                out.writeLong( e.getValue().getSize() );
+                out.writeLong( e.getValue().getLastModified() );
+                writeString( out, e.getValue().getETag() );
+            }
+        }
+        Files.move( tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+    }
+
+    private static String readString( MappedByteBuffer buffer ) {
+        int length = buffer.getInt();
+        if( length < 0 )
+            return null;
+        byte[] bytes = new byte[ length ];
+        buffer.get( bytes );
+        return new String( bytes, StandardCharsets.UTF_8 );
+    }
+
+    private static void writeString( DataOutputStream out, String value ) throws IOException {
+        if( value == null ) {
+            out.writeInt( -1 );
+            return;
+        }
+        byte[] bytes = value.getBytes( StandardCharsets.UTF_8 );
+        out.writeInt( bytes.length );
+        out.write( bytes );
+    }
+}
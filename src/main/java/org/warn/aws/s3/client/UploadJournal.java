@@ -0,0 +1,183 @@
+package org.warn.aws.s3.client;
+
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.services.s3.transfer.PersistableTransfer;
+import com.amazonaws.services.s3.transfer.PersistableUpload;
+import com.amazonaws.services.s3.transfer.internal.S3ProgressListener;
+import com.amazonaws.services.s3.transfer.internal.S3SyncProgressListener;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append-only journal of multipart uploads. When the SDK initiates a multipart upload it hands out a
+ * {@link PersistableUpload} holding the upload ID, which is appended here together with the local file's size and
+ * modified time; a second line is appended once the upload completes, fails or is canceled. Uploads without a
+ * second line were paused or cut short and can be continued with {@code TransferManager.resumeUpload}, which only
+ * sends the parts S3 does not already have. Keys and file paths are Base64 encoded, since either may contain tabs or
+ * line breaks.
+ */
+@Slf4j
+class UploadJournal implements Closeable {
+
+    private static final String STARTED = "S";
+    private static final String COMPLETED = "C";
+    private static final String SEPARATOR = "\t";
+
+    @Data
+    @AllArgsConstructor
+    static class Entry {
+        private String bucketName;
+        private String key;
+        private String localFilePath;
+        private long fileSize;
+        private long lastModified;
+        private String persistableUpload;
+    }
+
+    private final FileChannel channel;
+    private final List<Entry> pendingEntries;
+    private final Map<String, Entry> pendingEntriesByKey = new ConcurrentHashMap<>();
+    private final Set<String> startedUploads = ConcurrentHashMap.newKeySet();
+
+    private UploadJournal( FileChannel channel, List<Entry> pendingEntries ) {
+        this.channel = channel;
+        this.pendingEntries = pendingEntries;
+        for( Entry entry: pendingEntries ) {
+            pendingEntriesByKey.put( entry.getBucketName() + "/" + entry.getKey(), entry );
+            startedUploads.add( entry.getBucketName() + "/" + entry.getKey() );
+        }
+    }
+
+    /**
+     * Opens the journal, keeping only the uploads that never completed so the file does not grow across runs.
+     */
+    static UploadJournal open( Path journalFile ) throws IOException {
+        Files.createDirectories( journalFile.getParent() );
+        Map<String, Entry> pending = new LinkedHashMap<>();
+        if( Files.exists( journalFile ) ) {
+            try( BufferedReader reader = Files.newBufferedReader( journalFile, StandardCharsets.UTF_8 ) ) {
+                String line;
+                while( ( line = reader.readLine() ) != null ) {
+                    String[] fields = line.split( SEPARATOR );
+                    try {
+                        // the upload state is a JSON object, so a line cut short within it does not end in a brace
+                        if( STARTED.equals( fields[0] ) && fields.length == 7 && fields[6].endsWith( "}" ) ) {
+                            String key = decode( fields[2] );
+                            pending.put( fields[1] + "/" + key, new Entry( fields[1], key, decode( fields[3] ),
+                                    Long.parseLong( fields[4] ), Long.parseLong( fields[5] ), fields[6] ) );
+                        } else if( COMPLETED.equals( fields[0] ) && fields.length == 3 ) {
+                            pending.remove( fields[1] + "/" + decode( fields[2] ) );
+                        }
+                    } catch( IllegalArgumentException e ) {
+                        // not a journal line, skipped like the partly written ones below
+                    }
+                    // anything else is a line that was only partly written when the process died
+                }
+            }
+        }
+
+        Path tempFile = journalFile.resolveSibling( journalFile.getFileName() + ".tmp" );
+        try( Writer writer = Files.newBufferedWriter( tempFile, StandardCharsets.UTF_8 ) ) {
+            for( Entry entry: pending.values() )
+                writer.write( toStartedLine( entry ) );
+        }
+        Files.move( tempFile, journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+
+        FileChannel channel = FileChannel.open( journalFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND );
+        return new UploadJournal( channel, new ArrayList<>( pending.values() ) );
+    }
+
+    /**
+     * Returns the uploads that were left unfinished by earlier runs.
+     */
+    List<Entry> getPendingEntries() {
+        return pendingEntries;
+    }
+
+    /**
+     * Takes the entry an earlier run left unfinished for the given object, if it has not been resumed or finished
+     * since, so that an upload starting over can abort it first.
+     */
+    Entry takePendingEntry( String bucketName, String key ) {
+        Entry entry = pendingEntriesByKey.remove( bucketName + "/" + key );
+        return entry != null && startedUploads.contains( bucketName + "/" + key ) ? entry : null;
+    }
+
+    /**
+     * Returns a listener that records the multipart upload state of the given file as soon as the SDK has it.
+     */
+    S3ProgressListener newListener( String bucketName, String key, String localFilePath, long fileSize,
+                                    long lastModified ) {
+        // sync-safe, so that it does not move the upload's other progress listeners onto the SDK's publisher thread
+        return new S3SyncProgressListener() {
+            @Override
+            public void onPersistableTransfer( PersistableTransfer persistableTransfer ) {
+                startedUploads.add( bucketName + "/" + key );
+                append( toStartedLine( new Entry( bucketName, key, localFilePath, fileSize, lastModified,
+                        persistableTransfer.serialize() ) ) );
+            }
+
+            @Override
+            public void progressChanged( ProgressEvent progressEvent ) {
+            }
+        };
+    }
+
+    /**
+     * Marks a multipart upload as finished, whether it completed or was aborted, so it is not resumed. Uploads that
+     * went up in a single request were never journaled, so nothing is written for them.
+     */
+    void recordFinished( String bucketName, String key ) {
+        if( startedUploads.remove( bucketName + "/" + key ) )
+            append( COMPLETED + SEPARATOR + bucketName + SEPARATOR + encode( key ) + "\n" );
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static String toStartedLine( Entry entry ) {
+        return STARTED + SEPARATOR + entry.getBucketName() + SEPARATOR + encode( entry.getKey() ) + SEPARATOR +
+                encode( entry.getLocalFilePath() ) + SEPARATOR + entry.getFileSize() + SEPARATOR +
+                entry.getLastModified() + SEPARATOR + entry.getPersistableUpload() + "\n";
+    }
+
+    private static String encode( String value ) {
+        return Base64.getEncoder().encodeToString( value.getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    private static String decode( String value ) {
+        return new String( Base64.getDecoder().decode( value ), StandardCharsets.UTF_8 );
+    }
+
+    private synchronized void append( String line ) {
+        ByteBuffer buffer = ByteBuffer.wrap( line.getBytes( StandardCharsets.UTF_8 ) );
+        try {
+            while( buffer.hasRemaining() )
+                channel.write( buffer );
+        } catch( IOException e ) {
+            log.error( "Error writing upload journal - Message={}", e.getMessage() );
+        }
+    }
+}
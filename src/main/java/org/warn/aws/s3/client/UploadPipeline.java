@@ -0,0 +1,233 @@
+package org.warn.aws.s3.client;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.transfer.PauseResult;
+import com.amazonaws.services.s3.transfer.PauseStatus;
+import com.amazonaws.services.s3.transfer.PersistableTransfer;
+import com.amazonaws.services.s3.transfer.PersistableUpload;
+import com.amazonaws.services.s3.transfer.Transfer;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.Upload;
+import com.amazonaws.services.s3.transfer.internal.AbstractTransfer;
+import com.amazonaws.services.s3.transfer.internal.TransferStateChangeListener;
+import com.amazonaws.util.json.Jackson;
+import lombok.extern.slf4j.Slf4j;
+import org.warn.aws.s3.metrics.RunJournal;
+import org.warn.aws.s3.metrics.TransferMetrics;
+
+import java.io.File;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntSupplier;
+
+/**
+ * Keeps up to a fixed number of uploads in flight on the shared {@link TransferManager}. Submitting blocks only
+ * when the limit is reached, and completed uploads are handed back to the submitting thread in the order they
+ * finish, so result handling never runs on the transfer threads. A file whose multipart upload an earlier run left
+ * unfinished is continued where it stopped when resuming, and uploaded from the start otherwise.
+ */
+@Slf4j
+class UploadPipeline {
+
+    interface CompletionHandler {
+        void onCompletion( Upload upload ) throws InterruptedException;
+    }
+
+    private final TransferManager transferManager;
+    private final UploadJournal uploadJournal;
+    private final TransferMetrics metrics;
+    private final IntSupplier maxInFlight;
+    private final boolean resume;
+    private final BlockingQueue<PendingUpload> completedUploads = new LinkedBlockingQueue<>();
+    private final Set<PendingUpload> inFlightUploads = ConcurrentHashMap.newKeySet();
+    private int inFlight;
+    private boolean paused;
+
+    UploadPipeline( TransferManager transferManager, UploadJournal uploadJournal, TransferMetrics metrics,
+                    int maxInFlight, boolean resume ) {
+        this( transferManager, uploadJournal, metrics, () -> maxInFlight, resume );
+    }
+
+    /**
+     * Creates a pipeline whose in-flight limit is read before every submission, so it can be changed while the
+     * pipeline is running.
+     */
+    UploadPipeline( TransferManager transferManager, UploadJournal uploadJournal, TransferMetrics metrics,
+                    IntSupplier maxInFlight, boolean resume ) {
+        this.transferManager = transferManager;
+        this.uploadJournal = uploadJournal;
+        this.metrics = metrics;
+        this.maxInFlight = maxInFlight;
+        this.resume = resume;
+    }
+
+    void submit( PutObjectRequest request, CompletionHandler handler ) throws InterruptedException {
+        awaitCapacity();
+        File file = request.getFile();
+        long size = file != null ? file.length() :
+                request.getMetadata() != null ? request.getMetadata().getContentLength() : -1;
+        RunJournal.Entry journalEntry = metrics.startJournalEntry( RunJournal.OPERATION_UPLOAD,
+                request.getBucketName(), request.getKey(), size );
+        Upload upload;
+        if( file == null ) { // uploads from a stream cannot be resumed, so they are not journaled
+            upload = transferManager.upload( request );
+        } else {
+            UploadJournal.Entry pendingEntry = uploadJournal.takePendingEntry( request.getBucketName(),
+                    request.getKey() );
+            if( pendingEntry != null && resume && isUnchanged( pendingEntry, file ) ) {
+                // parts already stored in S3 are skipped, and the journal entry stays open until the upload is done
+                log.info("Resuming upload of earlier run - key={}", request.getKey());
+                upload = transferManager.resumeUpload(
+                        PersistableTransfer.deserializeFrom( pendingEntry.getPersistableUpload() ) );
+                upload.addProgressListener( request.getGeneralProgressListener() );
+            } else {
+                if( pendingEntry != null )
+                    abortStaleUpload( pendingEntry );
+                upload = transferManager.upload( request, uploadJournal.newListener( request.getBucketName(),
+                        request.getKey(), file.getAbsolutePath(), file.length(), file.lastModified() ) );
+            }
+        }
+        track( new PendingUpload( upload, request.getBucketName(), request.getKey(), journalEntry, handler ) );
+    }
+
+    void awaitCompletion() throws InterruptedException {
+        try {
+            while( inFlight > 0 && !paused )
+                complete( completedUploads.take() );
+        } catch( InterruptedException e ) {
+            pauseInFlight();
+            throw e;
+        }
+    }
+
+    /**
+     * Hands back the uploads that have completed so far, without waiting for more. For callers that may not submit
+     * again for a while.
+     */
+    void processCompleted() throws InterruptedException {
+        PendingUpload completed;
+        while( ( completed = completedUploads.poll() ) != null )
+            complete( completed );
+    }
+
+    private void awaitCapacity() throws InterruptedException {
+        try {
+            while( inFlight >= Math.max( 1, maxInFlight.getAsInt() ) )
+                complete( completedUploads.take() );
+        } catch( InterruptedException e ) {
+            pauseInFlight();
+            throw e;
+        }
+    }
+
+    private void track( PendingUpload pendingUpload ) throws InterruptedException {
+        Upload upload = pendingUpload.upload;
+        inFlight++;
+        inFlightUploads.add( pendingUpload );
+        ( (AbstractTransfer) upload ).addStateChangeListener( pendingUpload );
+        if( upload.isDone() ) // may have finished before the listener was registered
+            pendingUpload.transferStateChanged( upload, upload.getState() );
+
+        processCompleted();
+    }
+
+    private void complete( PendingUpload pendingUpload ) throws InterruptedException {
+        inFlight--;
+        inFlightUploads.remove( pendingUpload );
+        metrics.recordObjectLatency( System.nanoTime() - pendingUpload.startNanos );
+        Upload upload = pendingUpload.upload;
+        // the SDK aborts a multipart upload that fails or is canceled, so only a paused one can still be resumed
+        if( !pendingUpload.paused )
+            uploadJournal.recordFinished( pendingUpload.bucketName, pendingUpload.key );
+        try {
+            pendingUpload.handler.onCompletion( upload );
+        } finally {
+            boolean completed = upload.getState() == Transfer.TransferState.Completed;
+            metrics.finishJournalEntry( pendingUpload.journalEntry, completed ? null : getError( upload ) );
+        }
+    }
+
+    /**
+     * Aborts the multipart upload an earlier run left unfinished for an object that is now uploaded from the start,
+     * so that its parts do not stay stored, and billed, in S3.
+     */
+    private void abortStaleUpload( UploadJournal.Entry entry ) {
+        String bucketName = entry.getBucketName();
+        String key = entry.getKey();
+        try {
+            // PersistableUpload keeps the upload ID to itself, so it is read from the serialized form
+            String uploadId = Jackson.jsonNodeOf( entry.getPersistableUpload() ).path( "multipartUploadId" ).asText();
+            transferManager.getAmazonS3Client().abortMultipartUpload( new AbortMultipartUploadRequest( bucketName,
+                    key, uploadId ) );
+            log.info("Aborted unfinished upload of earlier run - key={}", key);
+        } catch( AmazonClientException | IllegalArgumentException e ) {
+            log.warn("Error aborting unfinished upload of earlier run - key={}, Error={}", key, e.getMessage());
+        }
+        uploadJournal.recordFinished( bucketName, key );
+    }
+
+    /**
+     * Tells whether the parts an earlier run stored in S3 still match the local file.
+     */
+    private static boolean isUnchanged( UploadJournal.Entry entry, File file ) {
+        return entry.getLocalFilePath().equals( file.getAbsolutePath() ) && file.length() == entry.getFileSize() &&
+                file.lastModified() == entry.getLastModified();
+    }
+
+    private static Throwable getError( Upload upload ) throws InterruptedException {
+        AmazonClientException e = upload.waitForException(); // returns at once, the upload is done
+        return e != null ? e : new AmazonClientException( upload.getState().toString() );
+    }
+
+    /**
+     * Pauses the multipart uploads still in flight instead of letting them fail, which would abort them on the S3
+     * side. Their journal entries stay open, so a later run with --resume picks them up where they stopped.
+     */
+    private void pauseInFlight() {
+        paused = true;
+        for( PendingUpload pendingUpload: inFlightUploads ) {
+            try {
+                PauseResult<PersistableUpload> result = pendingUpload.upload.tryPause( false );
+                pendingUpload.paused = result.getPauseStatus() == PauseStatus.SUCCESS;
+                log.info("Upload paused - key={}, status={}", pendingUpload.key, result.getPauseStatus());
+            } catch( AmazonClientException e ) {
+                log.error("Error pausing upload - key={}, Error={}", pendingUpload.key, e.getMessage());
+            }
+        }
+    }
+
+    private class PendingUpload implements TransferStateChangeListener {
+
+        private final Upload upload;
+        private final String bucketName;
+        private final String key;
+        private final RunJournal.Entry journalEntry;
+        private final CompletionHandler handler;
+        private final AtomicBoolean done = new AtomicBoolean();
+        private final long startNanos = System.nanoTime();
+        private volatile boolean paused;
+
+        private PendingUpload( Upload upload, String bucketName, String key, RunJournal.Entry journalEntry,
+                               CompletionHandler handler ) {
+            this.upload = upload;
+            this.bucketName = bucketName;
+            this.key = key;
+            this.journalEntry = journalEntry;
+            this.handler = handler;
+        }
+
+        @Override
+        public void transferStateChanged( Transfer transfer, Transfer.TransferState state ) {
+            if( state == Transfer.TransferState.Completed || state == Transfer.TransferState.Failed ||
+                    state == Transfer.TransferState.Canceled ) {
+                if( done.compareAndSet( false, true ) )
+                    completedUploads.add( this );
+            }
+        }
+    }
+}
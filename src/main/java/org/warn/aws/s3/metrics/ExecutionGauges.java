@@ -0,0 +1,26 @@
+package org.warn.aws.s3.metrics;
+
+/**
+ * Current load on the threads and connections that transfers run on.
+ */
+public interface ExecutionGauges {
+
+    /**
+     * Tasks submitted but not yet running.
+     */
+    int getQueuedTasks();
+
+    int getActiveTasks();
+
+    /**
+     * Threads currently alive to run tasks; with virtual threads, one per active task.
+     */
+    int getThreads();
+
+    /**
+     * HTTP requests being sent or waiting for a response, each of which holds a pooled connection.
+     */
+    int getRequestsInFlight();
+
+    int getMaxConnections();
+}
@@ -0,0 +1,252 @@
+package org.warn.aws.s3.metrics;
+
+import lombok.extern.slf4j.Slf4j;
+import org.warn.aws.util.ManifestReader;
+import org.warn.utils.file.FileHelper;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Summarizes a {@link RunJournal} after the run: latency, queue wait and throughput for each range of object sizes,
+ * and the aggregate transfer rate over the course of the run. The journal is streamed twice, once for the size
+ * ranges and once to spread each object's bytes over the time it was transferring, so memory does not grow with the
+ * number of objects.
+ */
+@Slf4j
+public class JournalReport {
+
+    private static final int TIMELINE_INTERVALS = 20;
+    private static final long[] SIZE_BOUNDS = { 64L * 1024, 1024L * 1024, 16L * 1024 * 1024, 128L * 1024 * 1024,
+            1024L * 1024 * 1024, Long.MAX_VALUE };
+    private static final String[] SIZE_NAMES = { "< 64 KB", "64 KB - 1 MB", "1 MB - 16 MB", "16 MB - 128 MB",
+            "128 MB - 1 GB", ">= 1 GB" };
+
+    /**
+     * The fields of one journal line that the report uses.
+     */
+    static class Record {
+        private long size;
+        private long start;
+        private long end;
+        private long queueWaitMicros;
+        private long durationMicros;
+        private long parts;
+        private long retries;
+        private boolean failed;
+    }
+
+    private static class SizeRange {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LatencyHistogram queueWait = new LatencyHistogram();
+        private long objects;
+        private long failed;
+        private long bytes;
+        private long parts;
+        private long retries;
+        private long transferMicros;
+    }
+
+    private final Path journalFile;
+    private final SizeRange[] sizeRanges = new SizeRange[ SIZE_BOUNDS.length ];
+    private final long[] timeline = new long[ TIMELINE_INTERVALS ];
+    private long firstStart = Long.MAX_VALUE;
+    private long lastEnd;
+    private long records;
+    private long malformedLines;
+
+    public JournalReport( Path journalFile ) {
+        this.journalFile = journalFile;
+        for( int i = 0; i < sizeRanges.length; i++ )
+            sizeRanges[i] = new SizeRange();
+    }
+
+    public void print() throws IOException {
+        Record record = new Record();
+        try( ManifestReader reader = ManifestReader.open( journalFile ) ) {
+            String line;
+            while( ( line = reader.readLine() ) != null ) {
+                if( !parse( line, record ) ) {
+                    malformedLines++;
+                    continue;
+                }
+                addToSizeRange( record );
+            }
+        }
+        if( records > 0 && lastEnd > firstStart ) {
+            try( ManifestReader reader = ManifestReader.open( journalFile ) ) {
+                String line;
+                while( ( line = reader.readLine() ) != null ) {
+                    if( parse( line, record ) )
+                        addToTimeline( record );
+                }
+            }
+        }
+        logReport();
+    }
+
+    private void addToSizeRange( Record record ) {
+        records++;
+        firstStart = Math.min( firstStart, record.start );
+        lastEnd = Math.max( lastEnd, record.end );
+        SizeRange range = sizeRanges[ getSizeRange( record.size ) ];
+        range.objects++;
+        range.retries += record.retries;
+        range.parts += record.parts;
+        range.queueWait.record( record.queueWaitMicros, TimeUnit.MICROSECONDS );
+        if( record.failed ) {
+            range.failed++;
+            return;
+        }
+        range.latency.record( record.durationMicros, TimeUnit.MICROSECONDS );
+        range.bytes += Math.max( 0, record.size );
+        range.transferMicros += Math.max( 1, record.durationMicros - record.queueWaitMicros );
+    }
+
+    /**
+     * Spreads the bytes of a completed object evenly over the time between its first request and its end.
+     */
+    private void addToTimeline( Record record ) {
+        if( record.failed || record.size <= 0 )
+            return;
+        double intervalMillis = (double) ( lastEnd - firstStart ) / TIMELINE_INTERVALS;
+        long transferStart = Math.min( record.end, record.start + record.queueWaitMicros / 1000 );
+        long transferEnd = Math.max( record.end, transferStart + 1 );
+        double bytesPerMilli = (double) record.size / ( transferEnd - transferStart );
+        int first = Math.max( 0, (int) ( ( transferStart - firstStart ) / intervalMillis ) - 1 );
+        for( int i = first; i < TIMELINE_INTERVALS; i++ ) {
+            double intervalStart = firstStart + i * intervalMillis;
+            if( intervalStart >= transferEnd )
+                break;
+            double overlap = Math.min( transferEnd, intervalStart + intervalMillis ) -
+                    Math.max( transferStart, intervalStart );
+            if( overlap > 0 )
+                timeline[i] += (long) ( overlap * bytesPerMilli );
+        }
+    }
+
+    private void logReport() {
+        log.info("Run Journal Report");
+        log.info("---------------------------------------");
+        log.info("Journal: {}", journalFile);
+        log.info("Objects: {}, Malformed Lines: {}, Duration: {} s", records, malformedLines,
+                String.format( "%.1f", records > 0 ? ( lastEnd - firstStart ) / 1000.0 : 0 ) );
+        for( int i = 0; i < sizeRanges.length; i++ ) {
+            SizeRange range = sizeRanges[i];
+            if( range.objects == 0 )
+                continue;
+            log.info("{}: Objects: {}, Failed: {}, Data: {}, Parts: {}, Retries: {}, Per-Object Rate: {} (Mbps)",
+                    SIZE_NAMES[i], range.objects, range.failed, FileHelper.printFileSizeUserFriendly( range.bytes ),
+                    range.parts, range.retries, String.format( "%.2f", getRate( range.bytes, range.transferMicros ) ));
+            log.info("{}: Queue Wait (ms): p50={}, p99={}; Latency (ms): p50={}, p99={}, max={}", SIZE_NAMES[i],
+                    toMillis( range.queueWait.getPercentileMicros( 0.5 ) ),
+                    toMillis( range.queueWait.getPercentileMicros( 0.99 ) ),
+                    toMillis( range.latency.getPercentileMicros( 0.5 ) ),
+                    toMillis( range.latency.getPercentileMicros( 0.99 ) ),
+                    toMillis( range.latency.getMaxMicros() ));
+        }
+        if( records > 0 && lastEnd > firstStart ) {
+            long intervalMicros = ( lastEnd - firstStart ) * 1000 / TIMELINE_INTERVALS;
+            StringBuilder rates = new StringBuilder();
+            for( long bytes: timeline )
+                rates.append( rates.length() > 0 ? ", " : "" ).append( String.format( "%.1f", getRate( bytes,
+                        intervalMicros ) ) );
+            log.info("Transfer Rate Over Run (Mbps, {} s intervals): {}",
+                    String.format( "%.1f", intervalMicros / 1e6 ), rates);
+        }
+        log.info("---------------------------------------");
+    }
+
+    private static int getSizeRange( long size ) {
+        int i = 0;
+        while( size >= SIZE_BOUNDS[i] )
+            i++;
+        return i;
+    }
+
+    private static float getRate( long bytes, long micros ) {
+        if( micros <= 0 )
+            return 0;
+        return ( bytes * 8f ) / ( 1024f * 1024f ) / ( micros / 1e6f ); // Mbps
+    }
+
+    private static String toMillis( long micros ) {
+        return String.format( "%.1f", micros / 1000.0 );
+    }
+
+    /**
+     * Reads the fields of a journal line into the record, skipping string values so that keys and error messages
+     * cannot be mistaken for fields. Returns false if the line is not a journal entry.
+     */
+    static boolean parse( String line, Record record ) {
+        if( !line.startsWith( "{" ) )
+            return false;
+        record.failed = false;
+        int fields = 0;
+        boolean outcome = false;
+        int i = 1;
+        while( i < line.length() ) {
+            int nameStart = line.indexOf( '"', i );
+            if( nameStart < 0 )
+                break;
+            int nameEnd = skipString( line, nameStart );
+            if( nameEnd - 1 <= nameStart || line.charAt( nameEnd - 1 ) != '"' )
+                return false; // cut short within the name
+            String name = line.substring( nameStart + 1, nameEnd - 1 );
+            i = line.indexOf( ':', nameEnd ) + 1;
+            if( i == 0 )
+                return false;
+            int valueStart = i;
+            if( i < line.length() && line.charAt( i ) == '"' ) {
+                i = skipString( line, i );
+                if( "outcome".equals( name ) ) {
+                    // the outcome is written last, so a line cut short after the counters has none
+                    outcome = i - 1 > valueStart && line.charAt( i - 1 ) == '"';
+                    record.failed = !line.startsWith( "\"ok\"", valueStart );
+                }
+            } else {
+                while( i < line.length() && ",}".indexOf( line.charAt( i ) ) < 0 )
+                    i++;
+                try {
+                    if( setField( record, name, line.substring( valueStart, i ).trim() ) )
+                        fields++;
+                } catch( NumberFormatException e ) {
+                    return false;
+                }
+            }
+            i = line.indexOf( ',', i );
+            if( i < 0 )
+                break;
+        }
+        return fields == 7 && outcome;
+    }
+
+    private static boolean setField( Record record, String name, String value ) {
+        switch( name ) {
+            case "size": record.size = Long.parseLong( value ); return true;
+            case "start": record.start = Long.parseLong( value ); return true;
+            case "end": record.end = Long.parseLong( value ); return true;
+            case "queueWaitMicros": record.queueWaitMicros = Long.parseLong( value ); return true;
+            case "durationMicros": record.durationMicros = Long.parseLong( value ); return true;
+            case "parts": record.parts = Long.parseLong( value ); return true;
+            case "retries": record.retries = Long.parseLong( value ); return true;
+            default: return false; // derived, or written by a later version
+        }
+    }
+
+    /**
+     * Returns the index after the closing quote of the JSON string starting at the given quote.
+     */
+    private static int skipString( String line, int start ) {
+        int i = start + 1;
+        while( i < line.length() ) {
+            char c = line.charAt( i++ );
+            if( c == '\\' )
+                i++;
+            else if( c == '"' )
+                return i;
+        }
+        return line.length();
+    }
+}
@@ -0,0 +1,84 @@
+package org.warn.aws.s3.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets: every power of two is split into 16 linear sub-buckets,
+ * so any recorded value is reported within about 6% of its true value. Recording is a single atomic increment,
+ * and the bucket array has a fixed size regardless of how many values are recorded.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = ( 64 - SUB_BUCKET_BITS + 1 ) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray( BUCKETS );
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator( Math::max, 0 );
+
+    public void record( long duration, TimeUnit unit ) {
+        long micros = Math.max( 0, unit.toMicros( duration ) );
+        counts.incrementAndGet( bucketIndex( micros ) );
+        count.increment();
+        sum.add( micros );
+        max.accumulate( micros );
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMaxMicros() {
+        return max.get();
+    }
+
+    public double getMeanMicros() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Returns the latency, in microseconds, below which the given fraction (0.0 - 1.0) of recorded values fall.
+     */
+    public long getPercentileMicros( double percentile ) {
+        long total = 0;
+        long[] snapshot = new long[ BUCKETS ];
+        for( int i = 0; i < BUCKETS; i++ ) {
+            snapshot[i] = counts.get( i );
+            total += snapshot[i];
+        }
+        if( total == 0 )
+            return 0;
+
+        long rank = (long) Math.ceil( percentile * total );
+        long seen = 0;
+        for( int i = 0; i < BUCKETS; i++ ) {
+            seen += snapshot[i];
+            if( seen >= rank && snapshot[i] > 0 )
+                return Math.min( bucketUpperBound( i ), max.get() );
+        }
+        return max.get();
+    }
+
+    static int bucketIndex( long value ) {
+        if( value < SUB_BUCKETS )
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros( value );
+        int subBucket = (int) ( value >>> ( exponent - SUB_BUCKET_BITS ) ) & ( SUB_BUCKETS - 1 );
+        return ( exponent - SUB_BUCKET_BITS + 1 ) * SUB_BUCKETS + subBucket;
+    }
+
+    static long bucketUpperBound( int index ) {
+        if( index < SUB_BUCKETS )
+            return index;
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        long lowerBound = ( 1L << exponent ) + ( subBucket << ( exponent - SUB_BUCKET_BITS ) );
+        return lowerBound + ( 1L << ( exponent - SUB_BUCKET_BITS ) ) - 1;
+    }
+}
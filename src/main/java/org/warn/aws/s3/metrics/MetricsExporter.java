@@ -0,0 +1,150 @@
+package org.warn.aws.s3.metrics;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically writes a {@link TransferMetrics} snapshot to {@code metrics.json} and {@code metrics.prom}
+ * (Prometheus text format, suitable for the node exporter's textfile collector) in the given directory. Files are
+ * replaced atomically so readers never see a partial snapshot. A final snapshot is written on close. When
+ * {@link ExecutionGauges} are given, the current queue depth, threads and requests in flight are written as well.
+ */
+@Slf4j
+public class MetricsExporter implements Closeable {
+
+    private static final String JSON_FILE = "metrics.json";
+    private static final String PROMETHEUS_FILE = "metrics.prom";
+    private static final double[] PERCENTILES = { 0.5, 0.99, 0.999 };
+    private static final String[] PERCENTILE_NAMES = { "p50", "p99", "p999" };
+
+    private final TransferMetrics metrics;
+    private final ExecutionGauges executionGauges; // null if not exported
+    private final Path directory;
+    private final ScheduledExecutorService scheduler;
+
+    public MetricsExporter( TransferMetrics metrics, Path directory, long intervalSeconds ) throws IOException {
+        this( metrics, null, directory, intervalSeconds );
+    }
+
+    public MetricsExporter( TransferMetrics metrics, ExecutionGauges executionGauges, Path directory,
+                            long intervalSeconds ) throws IOException {
+        this.metrics = metrics;
+        this.executionGauges = executionGauges;
+        this.directory = Files.createDirectories( directory );
+        this.scheduler = Executors.newSingleThreadScheduledExecutor( r -> {
+            Thread thread = new Thread( r, "metrics-exporter" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        scheduler.scheduleAtFixedRate( this::export, intervalSeconds, intervalSeconds, TimeUnit.SECONDS );
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        export();
+    }
+
+    private void export() {
+        try {
+            write( JSON_FILE, toJson() );
+            write( PROMETHEUS_FILE, toPrometheusText() );
+        } catch( IOException e ) {
+            log.error( "Error writing metrics - Directory={}, Message={}", directory, e.getMessage() );
+        }
+    }
+
+    private void write( String fileName, String content ) throws IOException {
+        Path tempFile = directory.resolve( fileName + ".tmp" );
+        Files.write( tempFile, content.getBytes( StandardCharsets.UTF_8 ) );
+        Files.move( tempFile, directory.resolve( fileName ), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE );
+    }
+
+    String toJson() {
+        StringBuilder json = new StringBuilder( "{\n" );
+        json.append( "  \"timestamp\": " ).append( System.currentTimeMillis() ).append( ",\n" );
+        json.append( "  \"elapsedSeconds\": " ).append( metrics.getElapsedSeconds() ).append( ",\n" );
+        json.append( "  \"bytesTransferred\": " ).append( metrics.getBytesTransferred() ).append( ",\n" );
+        json.append( "  \"requests\": " ).append( metrics.getRequests() ).append( ",\n" );
+        json.append( "  \"retries\": " ).append( metrics.getRetries() ).append( ",\n" );
+        json.append( "  \"failedRequests\": " ).append( metrics.getFailedRequests() ).append( ",\n" );
+        json.append( "  \"successfulObjects\": " ).append( metrics.getSuccessfulObjects() ).append( ",\n" );
+        json.append( "  \"failedObjects\": " ).append( metrics.getFailedObjects() ).append( ",\n" );
+        json.append( "  \"deletedObjects\": " ).append( metrics.getDeletes() ).append( ",\n" );
+        json.append( "  \"overallRateMbps\": " ).append( format( metrics.getOverallRate() ) ).append( ",\n" );
+        json.append( "  \"minRateMbps\": " ).append( format( metrics.getMinRate() ) ).append( ",\n" );
+        json.append( "  \"maxRateMbps\": " ).append( format( metrics.getMaxRate() ) ).append( ",\n" );
+        if( executionGauges != null ) {
+            json.append( "  \"queuedTasks\": " ).append( executionGauges.getQueuedTasks() ).append( ",\n" );
+            json.append( "  \"activeTasks\": " ).append( executionGauges.getActiveTasks() ).append( ",\n" );
+            json.append( "  \"threads\": " ).append( executionGauges.getThreads() ).append( ",\n" );
+            json.append( "  \"requestsInFlight\": " ).append( executionGauges.getRequestsInFlight() ).append( ",\n" );
+            json.append( "  \"maxConnections\": " ).append( executionGauges.getMaxConnections() ).append( ",\n" );
+        }
+        appendJsonHistogram( json, "objectLatencyMicros", metrics.getObjectLatency() ).append( ",\n" );
+        appendJsonHistogram( json, "partLatencyMicros", metrics.getPartLatency() ).append( ",\n" );
+        appendJsonHistogram( json, "requestLatencyMicros", metrics.getRequestLatency() ).append( "\n" );
+        return json.append( "}\n" ).toString();
+    }
+
+    String toPrometheusText() {
+        StringBuilder text = new StringBuilder();
+        appendPrometheusValue( text, "awstools_bytes_transferred_total", "counter", metrics.getBytesTransferred() );
+        appendPrometheusValue( text, "awstools_requests_total", "counter", metrics.getRequests() );
+        appendPrometheusValue( text, "awstools_retries_total", "counter", metrics.getRetries() );
+        appendPrometheusValue( text, "awstools_failed_requests_total", "counter", metrics.getFailedRequests() );
+        appendPrometheusValue( text, "awstools_successful_objects_total", "counter", metrics.getSuccessfulObjects() );
+        appendPrometheusValue( text, "awstools_failed_objects_total", "counter", metrics.getFailedObjects() );
+        appendPrometheusValue( text, "awstools_deleted_objects_total", "counter", metrics.getDeletes() );
+        if( executionGauges != null ) {
+            appendPrometheusValue( text, "awstools_queued_tasks", "gauge", executionGauges.getQueuedTasks() );
+            appendPrometheusValue( text, "awstools_active_tasks", "gauge", executionGauges.getActiveTasks() );
+            appendPrometheusValue( text, "awstools_threads", "gauge", executionGauges.getThreads() );
+            appendPrometheusValue( text, "awstools_requests_in_flight", "gauge", executionGauges.getRequestsInFlight() );
+            appendPrometheusValue( text, "awstools_max_connections", "gauge", executionGauges.getMaxConnections() );
+        }
+        appendPrometheusSummary( text, "awstools_object_latency_seconds", metrics.getObjectLatency() );
+        appendPrometheusSummary( text, "awstools_part_latency_seconds", metrics.getPartLatency() );
+        appendPrometheusSummary( text, "awstools_request_latency_seconds", metrics.getRequestLatency() );
+        return text.toString();
+    }
+
+    private StringBuilder appendJsonHistogram( StringBuilder json, String name, LatencyHistogram histogram ) {
+        json.append( "  \"" ).append( name ).append( "\": { \"count\": " ).append( histogram.getCount() )
+                .append( ", \"mean\": " ).append( format( histogram.getMeanMicros() ) );
+        for( int i = 0; i < PERCENTILES.length; i++ )
+            json.append( ", \"" ).append( PERCENTILE_NAMES[i] ).append( "\": " )
+                    .append( histogram.getPercentileMicros( PERCENTILES[i] ) );
+        return json.append( ", \"max\": " ).append( histogram.getMaxMicros() ).append( " }" );
+    }
+
+    private void appendPrometheusValue( StringBuilder text, String name, String type, long value ) {
+        text.append( "# TYPE " ).append( name ).append( ' ' ).append( type ).append( '\n' );
+        text.append( name ).append( ' ' ).append( value ).append( '\n' );
+    }
+
+    private void appendPrometheusSummary( StringBuilder text, String name, LatencyHistogram histogram ) {
+        text.append( "# TYPE " ).append( name ).append( " summary\n" );
+        for( double percentile: PERCENTILES )
+            text.append( name ).append( "{quantile=\"" ).append( percentile ).append( "\"} " )
+                    .append( format( histogram.getPercentileMicros( percentile ) / 1e6 ) ).append( '\n' );
+        text.append( name ).append( "_sum " )
+                .append( format( histogram.getMeanMicros() * histogram.getCount() / 1e6 ) ).append( '\n' );
+        text.append( name ).append( "_count " ).append( histogram.getCount() ).append( '\n' );
+    }
+
+    private static String format( double value ) {
+        return String.format( Locale.ROOT, "%.6f", value );
+    }
+}
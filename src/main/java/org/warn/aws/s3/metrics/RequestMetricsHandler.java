@@ -0,0 +1,63 @@
+package org.warn.aws.s3.metrics;
+
+import com.amazonaws.Request;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Request handler for the S3 client that times every HTTP attempt and counts retries. Successful
+ * {@code UploadPart} attempts are also recorded as part latencies, and every attempt is added to the object's
+ * {@link RunJournal} entry if the run is journaled.
+ */
+public class RequestMetricsHandler extends RequestHandler2 {
+
+    private static final HandlerContextKey<Long> ATTEMPT_START = new HandlerContextKey<>( "AttemptStartNanos" );
+    private static final HandlerContextKey<Integer> ATTEMPTS = new HandlerContextKey<>( "Attempts" );
+
+    private final List<Supplier<TransferMetrics>> metrics;
+
+    /**
+     * @param metrics  the metrics of the operation currently running on the client; every attempt is recorded in
+     *                 each of them, e.g. in the metrics of the whole operation and in those of one destination
+     */
+    @SafeVarargs
+    public RequestMetricsHandler( Supplier<TransferMetrics>... metrics ) {
+        this.metrics = Arrays.asList( metrics );
+    }
+
+    @Override
+    public void beforeAttempt( HandlerBeforeAttemptContext context ) {
+        Request<?> request = context.getRequest();
+        Integer attempts = request.getHandlerContext( ATTEMPTS );
+        request.addHandlerContext( ATTEMPTS, attempts == null ? 1 : attempts + 1 );
+        request.addHandlerContext( ATTEMPT_START, System.nanoTime() );
+    }
+
+    @Override
+    public void afterAttempt( HandlerAfterAttemptContext context ) {
+        Request<?> request = context.getRequest();
+        Long start = request.getHandlerContext( ATTEMPT_START );
+        if( start == null )
+            return;
+        long duration = System.nanoTime() - start;
+        boolean failed = context.getException() != null;
+        boolean retry = request.getHandlerContext( ATTEMPTS ) > 1;
+        boolean part = !failed && request.getOriginalRequest() instanceof UploadPartRequest;
+        for( Supplier<TransferMetrics> supplier: metrics ) {
+            TransferMetrics transferMetrics = supplier.get();
+            transferMetrics.recordRequest( duration, failed, retry );
+            if( part )
+                transferMetrics.recordPart( duration );
+            RunJournal journal = transferMetrics.getJournal();
+            if( journal != null )
+                journal.recordAttempt( request.getOriginalRequest(), start, failed, retry );
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package org.warn.aws.s3.metrics;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * JSON lines journal of one run, with an entry per object: size, start and end time, time spent queued before its
+ * first request, parts, retries, throughput, the thread of its last request and its outcome. Entries are started by
+ * the pipelines, filled in by {@link RequestMetricsHandler} as requests for the object complete, and finished once
+ * the object's result is known.
+ *
+ * Finished entries are handed to a background writer through a bounded queue. Handing over never blocks: if the
+ * writer falls behind and the queue is full, the entry is dropped and counted instead of slowing the transfer down.
+ * The writer formats each entry into a reused buffer, so the only allocation per object is the entry itself.
+ */
+@Slf4j
+public class RunJournal implements Closeable {
+
+    public static final String OPERATION_UPLOAD = "upload";
+    public static final String OPERATION_DOWNLOAD = "download";
+
+    private static final int QUEUE_CAPACITY = 16 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    private static final Entry END = new Entry( null, null, null, 0 );
+
+    private static final AtomicLongFieldUpdater<Entry> FIRST_ATTEMPT_NANOS =
+            AtomicLongFieldUpdater.newUpdater( Entry.class, "firstAttemptNanos" );
+    private static final AtomicIntegerFieldUpdater<Entry> PARTS =
+            AtomicIntegerFieldUpdater.newUpdater( Entry.class, "parts" );
+    private static final AtomicIntegerFieldUpdater<Entry> RETRIES =
+            AtomicIntegerFieldUpdater.newUpdater( Entry.class, "retries" );
+
+    /**
+     * The journal entry of one object, from the moment it is submitted until its result is known.
+     */
+    public static class Entry {
+
+        private final String operation;
+        private final String bucketName;
+        private final String key;
+        private final long size;
+        private final long startMillis = System.currentTimeMillis();
+        private final long startNanos = System.nanoTime();
+        private volatile long firstAttemptNanos;
+        private volatile int parts;
+        private volatile int retries;
+        private volatile String thread;
+        private volatile String error;
+        private long endNanos;
+
+        private Entry( String operation, String bucketName, String key, long size ) {
+            this.operation = operation;
+            this.bucketName = bucketName;
+            this.key = key;
+            this.size = size;
+        }
+
+        private void appendJson( StringBuilder json ) {
+            long durationMicros = ( endNanos - startNanos ) / 1000;
+            long queueWaitMicros = firstAttemptNanos == 0 ? 0 : ( firstAttemptNanos - startNanos ) / 1000;
+            long transferMicros = Math.max( 1, durationMicros - queueWaitMicros );
+            json.append( "{\"op\":" );
+            appendJsonString( json, operation );
+            json.append( ",\"bucket\":" );
+            appendJsonString( json, bucketName );
+            json.append( ",\"key\":" );
+            appendJsonString( json, key );
+            json.append( ",\"size\":" ).append( size )
+                    .append( ",\"start\":" ).append( startMillis )
+                    .append( ",\"end\":" ).append( startMillis + durationMicros / 1000 )
+                    .append( ",\"queueWaitMicros\":" ).append( queueWaitMicros )
+                    .append( ",\"durationMicros\":" ).append( durationMicros )
+                    .append( ",\"parts\":" ).append( parts )
+                    .append( ",\"retries\":" ).append( retries )
+                    .append( ",\"bytesPerSec\":" ).append( size > 0 ? size * 1_000_000 / transferMicros : 0 )
+                    .append( ",\"thread\":" );
+            appendJsonString( json, thread );
+            json.append( ",\"outcome\":" ).append( error == null ? "\"ok\"" : "\"failed\"" ).append( ",\"error\":" );
+            appendJsonString( json, error );
+            json.append( "}\n" );
+        }
+    }
+
+    private final Path file;
+    private final Writer writer;
+    private final Map<String, Entry> openEntries = new ConcurrentHashMap<>();
+    private final BlockingQueue<Entry> finishedEntries = new ArrayBlockingQueue<>( QUEUE_CAPACITY );
+    private final LongAdder droppedEntries = new LongAdder();
+    private final Thread writerThread;
+
+    /**
+     * Opens the journal file for appending, so that the commands of a batch share one journal, and starts the
+     * writer thread.
+     */
+    public RunJournal( Path file ) throws IOException {
+        this.file = file;
+        Files.createDirectories( file.toAbsolutePath().getParent() );
+        this.writer = new BufferedWriter( new OutputStreamWriter( Files.newOutputStream( file,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND ), StandardCharsets.UTF_8 ), WRITE_BUFFER_SIZE );
+        this.writerThread = new Thread( this::writeEntries, "run-journal-writer" );
+        this.writerThread.setDaemon( true );
+        this.writerThread.start();
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public long getDroppedEntries() {
+        return droppedEntries.sum();
+    }
+
+    /**
+     * Starts the entry of an object that has just been submitted.
+     *
+     * @param size  bytes, or -1 if not known up front
+     */
+    public Entry start( String operation, String bucketName, String key, long size ) {
+        Entry entry = new Entry( operation, bucketName, key, size );
+        openEntries.put( bucketName + "/" + key, entry );
+        return entry;
+    }
+
+    /**
+     * Marks an object as failed for a reason found after its transfer, such as a checksum mismatch.
+     */
+    public void fail( String bucketName, String key, String error ) {
+        Entry entry = openEntries.get( bucketName + "/" + key );
+        if( entry != null && entry.error == null )
+            entry.error = error;
+    }
+
+    /**
+     * Finishes an entry and hands it to the writer without blocking.
+     *
+     * @param error  why the transfer failed, or null if it completed
+     */
+    public void finish( Entry entry, Throwable error ) {
+        openEntries.remove( entry.bucketName + "/" + entry.key, entry );
+        entry.endNanos = System.nanoTime();
+        if( entry.error == null && error != null )
+            entry.error = error.getMessage() != null ? error.getMessage() : error.toString();
+        if( !finishedEntries.offer( entry ) )
+            droppedEntries.increment();
+    }
+
+    /**
+     * Records one HTTP attempt on behalf of the object it belongs to. Successful requests that carry object data
+     * count as parts.
+     */
+    void recordAttempt( AmazonWebServiceRequest request, long attemptStartNanos, boolean failed, boolean retry ) {
+        boolean part = false;
+        String bucketName;
+        String key;
+        if( request instanceof UploadPartRequest ) {
+            bucketName = ( (UploadPartRequest) request ).getBucketName();
+            key = ( (UploadPartRequest) request ).getKey();
+            part = true;
+        } else if( request instanceof PutObjectRequest ) {
+            bucketName = ( (PutObjectRequest) request ).getBucketName();
+            key = ( (PutObjectRequest) request ).getKey();
+            part = true;
+        } else if( request instanceof GetObjectRequest ) {
+            bucketName = ( (GetObjectRequest) request ).getBucketName();
+            key = ( (GetObjectRequest) request ).getKey();
+            part = true;
+        } else if( request instanceof InitiateMultipartUploadRequest ) {
+            bucketName = ( (InitiateMultipartUploadRequest) request ).getBucketName();
+            key = ( (InitiateMultipartUploadRequest) request ).getKey();
+        } else if( request instanceof CompleteMultipartUploadRequest ) {
+            bucketName = ( (CompleteMultipartUploadRequest) request ).getBucketName();
+            key = ( (CompleteMultipartUploadRequest) request ).getKey();
+        } else if( request instanceof CopyObjectRequest ) {
+            bucketName = ( (CopyObjectRequest) request ).getDestinationBucketName();
+            key = ( (CopyObjectRequest) request ).getDestinationKey();
+        } else {
+            return;
+        }
+        Entry entry = openEntries.get( bucketName + "/" + key );
+        if( entry == null )
+            return;
+        FIRST_ATTEMPT_NANOS.compareAndSet( entry, 0, attemptStartNanos );
+        if( retry )
+            RETRIES.incrementAndGet( entry );
+        if( part && !failed )
+            PARTS.incrementAndGet( entry );
+        entry.thread = Thread.currentThread().getName();
+    }
+
+    /**
+     * Waits for the writer to write the entries handed over so far, and closes the file.
+     */
+    @Override
+    public void close() {
+        try {
+            finishedEntries.put( END );
+            writerThread.join();
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+        if( droppedEntries.sum() > 0 )
+            log.warn("Run journal fell behind, entries dropped - file={}, dropped={}", file, droppedEntries.sum());
+    }
+
+    private void writeEntries() {
+        StringBuilder line = new StringBuilder( 512 );
+        char[] chars = new char[ 512 ];
+        boolean writeFailed = false;
+        try {
+            while( true ) {
+                Entry entry = finishedEntries.poll();
+                if( entry == null ) {
+                    if( !writeFailed )
+                        writeFailed = !flush();
+                    entry = finishedEntries.take();
+                }
+                if( entry == END )
+                    break;
+                if( writeFailed )
+                    continue; // keep draining, so that finishing entries and closing never block
+                line.setLength( 0 );
+                entry.appendJson( line );
+                if( chars.length < line.length() )
+                    chars = new char[ line.length() * 2 ];
+                line.getChars( 0, line.length(), chars, 0 );
+                try {
+                    writer.write( chars, 0, line.length() );
+                } catch( IOException e ) {
+                    writeFailed = true;
+                    log.error("Error writing run journal - file={}, Message={}", file, e.getMessage());
+                }
+            }
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                writer.close();
+            } catch( IOException e ) {
+                log.error("Error closing run journal - file={}, Message={}", file, e.getMessage());
+            }
+        }
+    }
+
+    private boolean flush() {
+        try {
+            writer.flush();
+            return true;
+        } catch( IOException e ) {
+            log.error("Error writing run journal - file={}, Message={}", file, e.getMessage());
+            return false;
+        }
+    }
+
+    private static void appendJsonString( StringBuilder json, String value ) {
+        if( value == null ) {
+            json.append( "null" );
+            return;
+        }
+        json.append( '"' );
+        for( int i = 0; i < value.length(); i++ ) {
+            char c = value.charAt( i );
+            if( c == '"' || c == '\\' ) {
+                json.append( '\\' ).append( c );
+            } else if( c < 0x20 ) {
+                json.append( "\\u00" ).append( Character.forDigit( c >> 4, 16 ) )
+                        .append( Character.forDigit( c & 0xf, 16 ) );
+            } else {
+                json.append( c );
+            }
+        }
+        json.append( '"' );
+    }
+}
@@ -0,0 +1,218 @@
+package org.warn.aws.s3.metrics;
+
+import org.warn.aws.util.DataTransferUtil;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms for one run. All counters are striped {@link LongAdder}s and all extremes are
+ * {@link LongAccumulator}s, so transfer threads never contend on a single variable or lose an update. The progress
+ * log, the metrics export and the run summary all read from here.
+ */
+public class TransferMetrics {
+
+    private static final long RATE_SCALE = 1000; // rates are accumulated in thousandths of a Mbps
+
+    private final long startNanos = System.nanoTime();
+    private final LongAdder bytesTransferred = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder failedRequests = new LongAdder();
+    private final LongAdder successfulObjects = new LongAdder();
+    private final LongAdder failedObjects = new LongAdder();
+    private final LongAdder uncompressedBytes = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+    private final LongAdder compressionCpuNanos = new LongAdder();
+    private final LongAdder copies = new LongAdder();
+    private final LongAdder copiedBytes = new LongAdder();
+    private final LongAdder deletes = new LongAdder();
+    private final LatencyHistogram objectLatency = new LatencyHistogram();
+    private final LatencyHistogram partLatency = new LatencyHistogram();
+    private final LatencyHistogram requestLatency = new LatencyHistogram();
+    private final LongAccumulator minRate = new LongAccumulator( Math::min, Long.MAX_VALUE );
+    private final LongAccumulator maxRate = new LongAccumulator( Math::max, 0 );
+    private final AtomicLong intervalStartNanos = new AtomicLong( startNanos );
+    private final AtomicLong bytesAtIntervalStart = new AtomicLong();
+    private volatile RunJournal journal;
+
+    public void recordBytes( long bytes ) {
+        bytesTransferred.add( bytes );
+    }
+
+    public void recordRequest( long durationNanos, boolean failed, boolean retry ) {
+        requests.increment();
+        requestLatency.record( durationNanos, TimeUnit.NANOSECONDS );
+        if( failed )
+            failedRequests.increment();
+        if( retry )
+            retries.increment();
+    }
+
+    public void recordPart( long durationNanos ) {
+        partLatency.record( durationNanos, TimeUnit.NANOSECONDS );
+    }
+
+    public void recordObjectLatency( long durationNanos ) {
+        objectLatency.record( durationNanos, TimeUnit.NANOSECONDS );
+    }
+
+    public void recordCompression( long bytesIn, long bytesOut, long cpuNanos ) {
+        uncompressedBytes.add( bytesIn );
+        compressedBytes.add( bytesOut );
+        compressionCpuNanos.add( cpuNanos );
+    }
+
+    /**
+     * Records an object created with a server-side copy instead of sending its bytes again.
+     */
+    public void recordCopy( long bytes ) {
+        copies.increment();
+        copiedBytes.add( bytes );
+    }
+
+    public void recordDeletes( long count ) {
+        deletes.add( count );
+    }
+
+    /**
+     * Starts the journal entry of a submitted object, if the run is journaled.
+     *
+     * @return the entry to finish once the object's result is known, or null
+     */
+    public RunJournal.Entry startJournalEntry( String operation, String bucketName, String key, long size ) {
+        RunJournal runJournal = journal;
+        return runJournal == null ? null : runJournal.start( operation, bucketName, key, size );
+    }
+
+    public void finishJournalEntry( RunJournal.Entry entry, Throwable error ) {
+        RunJournal runJournal = journal;
+        if( runJournal != null && entry != null )
+            runJournal.finish( entry, error );
+    }
+
+    public void failJournalEntry( String bucketName, String key, String error ) {
+        RunJournal runJournal = journal;
+        if( runJournal != null )
+            runJournal.fail( bucketName, key, error );
+    }
+
+    public void recordObjectResult( boolean successful ) {
+        if( successful )
+            successfulObjects.increment();
+        else
+            failedObjects.increment();
+    }
+
+    /**
+     * Closes the current rate interval if at least {@code intervalSeconds} have passed since it started, and returns
+     * its transfer rate in Mbps. Only the caller that wins the race closes the interval; everyone else, and every
+     * caller before the interval is over, gets -1.
+     */
+    public float closeRateInterval( long intervalSeconds ) {
+        long now = System.nanoTime();
+        long intervalStart = intervalStartNanos.get();
+        long elapsedSeconds = TimeUnit.NANOSECONDS.toSeconds( now - intervalStart );
+        if( elapsedSeconds < intervalSeconds || !intervalStartNanos.compareAndSet( intervalStart, now ) )
+            return -1;
+
+        long totalBytes = bytesTransferred.sum();
+        float rate = DataTransferUtil.calculateTransferRate( totalBytes - bytesAtIntervalStart.getAndSet( totalBytes ),
+                elapsedSeconds );
+        recordRate( rate );
+        return rate;
+    }
+
+    public void recordRate( float rate ) {
+        long scaledRate = (long) ( rate * RATE_SCALE );
+        minRate.accumulate( scaledRate );
+        maxRate.accumulate( scaledRate );
+    }
+
+    public long getBytesTransferred() {
+        return bytesTransferred.sum();
+    }
+
+    public long getUncompressedBytes() {
+        return uncompressedBytes.sum();
+    }
+
+    public long getCompressedBytes() {
+        return compressedBytes.sum();
+    }
+
+    public long getCompressionCpuNanos() {
+        return compressionCpuNanos.sum();
+    }
+
+    public long getCopies() {
+        return copies.sum();
+    }
+
+    public long getCopiedBytes() {
+        return copiedBytes.sum();
+    }
+
+    public long getDeletes() {
+        return deletes.sum();
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    public long getFailedRequests() {
+        return failedRequests.sum();
+    }
+
+    public long getSuccessfulObjects() {
+        return successfulObjects.sum();
+    }
+
+    public long getFailedObjects() {
+        return failedObjects.sum();
+    }
+
+    public long getElapsedSeconds() {
+        return TimeUnit.NANOSECONDS.toSeconds( System.nanoTime() - startNanos );
+    }
+
+    public float getOverallRate() {
+        return DataTransferUtil.calculateTransferRate( bytesTransferred.sum(), getElapsedSeconds() );
+    }
+
+    public float getMinRate() {
+        long rate = minRate.get();
+        return rate == Long.MAX_VALUE ? 0 : (float) rate / RATE_SCALE;
+    }
+
+    public float getMaxRate() {
+        return (float) maxRate.get() / RATE_SCALE;
+    }
+
+    public LatencyHistogram getObjectLatency() {
+        return objectLatency;
+    }
+
+    public LatencyHistogram getPartLatency() {
+        return partLatency;
+    }
+
+    public LatencyHistogram getRequestLatency() {
+        return requestLatency;
+    }
+
+    public RunJournal getJournal() {
+        return journal;
+    }
+
+    public void setJournal( RunJournal journal ) {
+        this.journal = journal;
+    }
+}
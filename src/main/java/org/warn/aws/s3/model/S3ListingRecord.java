@@ -0,0 +1,145 @@
+package org.warn.aws.s3.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * One object of a bucket listing, as written by the ls operation. Listings are written as CSV, as JSON lines or as
+ * plain keys, and any of the three can be read back with {@link #fromLine}.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class S3ListingRecord {
+
+    private String key;
+    private long size; // bytes, or -1 if the listing has keys only
+    private String lastModified; // ISO-8601, UTC
+    private String eTag;
+    private String storageClass;
+
+    /**
+     * @throws IllegalArgumentException if the key contains a line break, which a CSV line cannot hold
+     */
+    public String toCsvString( String delimiter ) {
+        if( key.indexOf( '\n' ) >= 0 || key.indexOf( '\r' ) >= 0 )
+            throw new IllegalArgumentException( "Key with a line break - " + toJsonField( key ) );
+        return S3OperationRecord.toCsvField( key, delimiter ) + delimiter + size + delimiter + lastModified +
+                delimiter + eTag + delimiter + storageClass + "\n";
+    }
+
+    public String toJsonString() {
+        return "{\"key\":" + toJsonField( key ) + ",\"size\":" + size + ",\"lastModified\":" +
+                toJsonField( lastModified ) + ",\"eTag\":" + toJsonField( eTag ) + ",\"storageClass\":" +
+                toJsonField( storageClass ) + "}\n";
+    }
+
+    /**
+     * Parses a line of a listing in any of its formats. A line that is neither a JSON object nor a CSV record is
+     * taken as a key on its own, with an unknown size.
+     *
+     * @throws IllegalArgumentException if a JSON line has no key
+     */
+    public static S3ListingRecord fromLine( String line, String delimiter ) {
+        if( line.startsWith( "{" ) )
+            return fromJsonString( line );
+        List<String> fields = S3OperationRecord.splitCsvLine( line, delimiter.charAt( 0 ) );
+        if( fields.size() == 5 ) {
+            try {
+                return new S3ListingRecord( fields.get( 0 ), Long.parseLong( fields.get( 1 ).trim() ),
+                        fields.get( 2 ), toNullable( fields.get( 3 ) ), toNullable( fields.get( 4 ) ) );
+            } catch( NumberFormatException e ) {
+                // a key that contains the delimiter
+            }
+        }
+        return new S3ListingRecord( line, -1, null, null, null );
+    }
+
+    private static S3ListingRecord fromJsonString( String line ) {
+        S3ListingRecord record = new S3ListingRecord( null, -1, null, null, null );
+        int i = 0;
+        while( ( i = line.indexOf( '"', i ) ) >= 0 ) {
+            StringBuilder name = new StringBuilder();
+            i = readJsonString( line, i, name );
+            i = line.indexOf( ':', i ) + 1;
+            while( i < line.length() && line.charAt( i ) == ' ' )
+                i++;
+            StringBuilder value = new StringBuilder();
+            if( i < line.length() && line.charAt( i ) == '"' ) {
+                i = readJsonString( line, i, value );
+            } else {
+                while( i < line.length() && ",}".indexOf( line.charAt( i ) ) < 0 )
+                    value.append( line.charAt( i++ ) );
+            }
+            String text = value.toString().trim();
+            switch( name.toString() ) {
+                case "key": record.setKey( text ); break;
+                case "size": record.setSize( Long.parseLong( text ) ); break;
+                case "lastModified": record.setLastModified( text ); break;
+                case "eTag": record.setETag( toNullable( text ) ); break;
+                case "storageClass": record.setStorageClass( toNullable( text ) ); break;
+                default: // written by a later version
+            }
+            i = line.indexOf( ',', i );
+            if( i < 0 )
+                break;
+        }
+        if( record.getKey() == null )
+            throw new IllegalArgumentException( "Invalid record - " + line );
+        return record;
+    }
+
+    /**
+     * Reads the JSON string starting at the opening quote into the builder, and returns the index after the closing
+     * quote.
+     */
+    private static int readJsonString( String line, int start, StringBuilder value ) {
+        int i = start + 1;
+        while( i < line.length() ) {
+            char c = line.charAt( i++ );
+            if( c == '"' )
+                return i;
+            if( c != '\\' || i == line.length() ) {
+                value.append( c );
+                continue;
+            }
+            char escaped = line.charAt( i++ );
+            switch( escaped ) {
+                case 'n': value.append( '\n' ); break;
+                case 'r': value.append( '\r' ); break;
+                case 't': value.append( '\t' ); break;
+                case 'b': value.append( '\b' ); break;
+                case 'f': value.append( '\f' ); break;
+                case 'u':
+                    value.append( (char) Integer.parseInt( line.substring( i, i + 4 ), 16 ) );
+                    i += 4;
+                    break;
+                default: value.append( escaped );
+            }
+        }
+        return i;
+    }
+
+    private static String toJsonField( String value ) {
+        if( value == null )
+            return "null";
+        StringBuilder json = new StringBuilder( value.length() + 2 ).append( '"' );
+        for( int i = 0; i < value.length(); i++ ) {
+            char c = value.charAt( i );
+            if( c == '"' || c == '\\' )
+                json.append( '\\' ).append( c );
+            else if( c < 0x20 )
+                json.append( String.format( "\\u%04x", (int) c ) );
+            else
+                json.append( c );
+        }
+        return json.append( '"' ).toString();
+    }
+
+    private static String toNullable( String value ) {
+        return "null".equals( value ) ? null : value;
+    }
+}
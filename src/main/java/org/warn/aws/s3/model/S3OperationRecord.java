@@ -4,6 +4,9 @@ import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
@@ -16,7 +19,63 @@ public class S3OperationRecord {
     private String errorMessage;
 
     public String toCsvString( String delimiter ) {
-        return bucketName + delimiter + key + delimiter + localFilePath + delimiter +
-                fileSize + delimiter + errorMessage + "\n";
+        return toCsvField( bucketName, delimiter ) + delimiter + toCsvField( key, delimiter ) + delimiter +
+                toCsvField( localFilePath, delimiter ) + delimiter + fileSize + delimiter +
+                toCsvField( errorMessage, delimiter ) + "\n";
+    }
+
+    /**
+     * Parses a line written by {@link #toCsvString}. Lines written before fields were quoted are read as well, as long
+     * as only the error message contains the delimiter.
+     *
+     * @throws IllegalArgumentException if the line is not a record
+     */
+    public static S3OperationRecord fromCsvString( String line, String delimiter ) {
+        List<String> fields = splitCsvLine( line, delimiter.charAt( 0 ) );
+        if( fields.size() < 5 )
+            throw new IllegalArgumentException( "Invalid record - " + line );
+        String errorMessage = String.join( delimiter, fields.subList( 4, fields.size() ) );
+        return new S3OperationRecord( fields.get( 0 ), fields.get( 1 ), fields.get( 2 ),
+                Long.parseLong( fields.get( 3 ).trim() ), errorMessage );
+    }
+
+    /**
+     * Quotes a field that contains the delimiter or a quote. Line breaks are replaced, so every record is one line.
+     */
+    public static String toCsvField( String value, String delimiter ) {
+        if( value == null )
+            return "null";
+        value = value.replace( '\r', ' ' ).replace( '\n', ' ' );
+        if( value.contains( delimiter ) || value.contains( "\"" ) )
+            return "\"" + value.replace( "\"", "\"\"" ) + "\"";
+        return value;
+    }
+
+    static List<String> splitCsvLine( String line, char delimiter ) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for( int i = 0; i < line.length(); i++ ) {
+            char c = line.charAt( i );
+            if( quoted ) {
+                if( c == '"' && i + 1 < line.length() && line.charAt( i + 1 ) == '"' ) {
+                    field.append( c );
+                    i++;
+                } else if( c == '"' ) {
+                    quoted = false;
+                } else {
+                    field.append( c );
+                }
+            } else if( c == '"' && field.length() == 0 ) {
+                quoted = true;
+            } else if( c == delimiter ) {
+                fields.add( field.toString() );
+                field.setLength( 0 );
+            } else {
+                field.append( c );
+            }
+        }
+        fields.add( field.toString() );
+        return fields;
     }
 }
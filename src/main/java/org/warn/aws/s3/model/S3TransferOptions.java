@@ -0,0 +1,40 @@
+package org.warn.aws.s3.model;
+
+import com.amazonaws.regions.Regions;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.warn.aws.util.Constants;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+@Data
+@NoArgsConstructor
+public class S3TransferOptions {
+
+    private int maxInFlightUploads = Constants.DEFAULT_MAX_IN_FLIGHT_UPLOADS;
+    private boolean adaptive;
+    private boolean reconcile;
+    private boolean resume;
+    private boolean exportMetrics;
+    private int metricsInterval = Constants.DEFAULT_METRICS_INTERVAL_SECONDS;
+    private boolean packSmallFiles;
+    private int packTargetSize = Constants.DEFAULT_PACK_TARGET_SIZE_MB * 1024 * 1024; // bytes
+    private int packFileThreshold = Constants.DEFAULT_PACK_FILE_THRESHOLD_KB * 1024; // bytes
+    private String compression; // null for none
+    private boolean deduplicate;
+    private boolean prune; // delete remote keys without a local file after put -d
+    private boolean journal; // write a per-object run journal for the report command
+    private boolean force; // allow rm -d with an empty prefix, which deletes the whole bucket
+    private boolean dryRun; // log the objects rm would delete instead of deleting them
+    private boolean skipVerify; // do not compare uploads with the ETag S3 returns
+    private Supplier<String> bandwidthSchedule; // re-read while transferring, null or an empty schedule for unlimited
+    private int retryAttempts = Constants.DEFAULT_RETRY_ATTEMPTS;
+    private int settleSeconds = Constants.DEFAULT_SETTLE_SECONDS;
+    private int scanIntervalSeconds = Constants.DEFAULT_SCAN_INTERVAL_SECONDS;
+    private long partSize = Constants.DEFAULT_DOWNLOAD_PART_SIZE_MB * 1024L * 1024; // bytes
+    private String listingFormat = Constants.LISTING_FORMAT_CSV;
+    private String delimiter; // null to split listings by key range only
+    private Map<String, Regions> fanOutDestinations = new LinkedHashMap<>(); // extra buckets for put; null region for the configured one
+}
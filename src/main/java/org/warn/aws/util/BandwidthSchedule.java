@@ -0,0 +1,84 @@
+package org.warn.aws.util;
+
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bandwidth limits by time of day, parsed from a comma separated list of {@code HH:mm-HH:mm=Mbps} windows and an
+ * optional plain {@code Mbps} default, e.g. {@code 08:00-18:00=100,400}. Windows may wrap around midnight, the first
+ * matching window wins, and a limit of 0 means unlimited.
+ */
+public class BandwidthSchedule {
+
+    private static class Window {
+        private final LocalTime start;
+        private final LocalTime end;
+        private final long limitMbps;
+
+        private Window( LocalTime start, LocalTime end, long limitMbps ) {
+            this.start = start;
+            this.end = end;
+            this.limitMbps = limitMbps;
+        }
+
+        private boolean contains( LocalTime time ) {
+            if( start.isBefore( end ) )
+                return !time.isBefore( start ) && time.isBefore( end );
+            return !time.isBefore( start ) || time.isBefore( end ); // wraps around midnight
+        }
+    }
+
+    private final List<Window> windows;
+    private final long defaultLimitMbps;
+
+    private BandwidthSchedule( List<Window> windows, long defaultLimitMbps ) {
+        this.windows = windows;
+        this.defaultLimitMbps = defaultLimitMbps;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the schedule is malformed
+     */
+    public static BandwidthSchedule parse( String schedule ) {
+        List<Window> windows = new ArrayList<>();
+        long defaultLimitMbps = 0;
+        try {
+            for( String entry: schedule.split( "," ) ) {
+                entry = entry.trim();
+                int separator = entry.indexOf( '=' );
+                if( separator < 0 ) {
+                    defaultLimitMbps = parseLimit( entry );
+                    continue;
+                }
+                String[] times = entry.substring( 0, separator ).split( "-" );
+                if( times.length != 2 )
+                    throw new IllegalArgumentException( "Invalid bandwidth window - " + entry );
+                windows.add( new Window( LocalTime.parse( times[0].trim() ), LocalTime.parse( times[1].trim() ),
+                        parseLimit( entry.substring( separator + 1 ) ) ) );
+            }
+        } catch( NumberFormatException | DateTimeParseException e ) {
+            throw new IllegalArgumentException( "Invalid bandwidth schedule - " + schedule, e );
+        }
+        return new BandwidthSchedule( windows, defaultLimitMbps );
+    }
+
+    /**
+     * Returns the limit in Mbps at the given time of day, or 0 for unlimited.
+     */
+    public long getLimitMbps( LocalTime time ) {
+        for( Window window: windows ) {
+            if( window.contains( time ) )
+                return window.limitMbps;
+        }
+        return defaultLimitMbps;
+    }
+
+    private static long parseLimit( String limit ) {
+        long limitMbps = Long.parseLong( limit.trim() );
+        if( limitMbps < 0 )
+            throw new NumberFormatException( limit );
+        return limitMbps;
+    }
+}
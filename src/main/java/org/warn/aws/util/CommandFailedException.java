@@ -0,0 +1,13 @@
+package org.warn.aws.util;
+
+/**
+ * An error that every further request of the current command would hit too, such as a wrong region, invalid
+ * credentials or a missing bucket. Thrown instead of ending the process when exit on error is disabled, so that in a
+ * batch only the command that hit it fails.
+ */
+public class CommandFailedException extends RuntimeException {
+
+    public CommandFailedException( String message ) {
+        super( message );
+    }
+}
@@ -3,6 +3,9 @@ package org.warn.aws.util;
 import org.warn.utils.core.Env;
 import org.warn.utils.datetime.DateTimeUtil;
 
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+
 public class ConfigConstants {
 
 	public static final String AWSTOOLS_DIR_NAME = ".awstools";
@@ -15,12 +18,48 @@ public class ConfigConstants {
 	public static final String PROP_ACCESS_KEY = "key";
 	public static final String PROP_SECRET_KEY = "secret";
 	public static final String PROP_REGION = "region";
+	public static final String PROP_BANDWIDTH = "bandwidth";
 
 	// error log properties
 	public static final String ERROR_LOGS_DIR = AWSTOOLS_DIR_NAME + Env.FILE_SEPERATOR + "error-logs";
 	public static final String ERROR_LOGS_CSV_DELIMITER = ",";
-	public static final String FAILED_S3_UPLOADS_CSV =  ERROR_LOGS_DIR + Env.FILE_SEPERATOR +
-			DateTimeUtil.dateSDF.format( System.currentTimeMillis() ) + "-s3-upload-failures.csv";
-	public static final String FAILED_S3_UPLOADS_CSV_HEADER_ROW =
+	// one file per run, named with newRunFile, so that a run's failures can be retried on their own
+	public static final String FAILED_S3_UPLOADS_CSV = "-s3-upload-failures.csv";
+	public static final String FAILED_S3_DOWNLOADS_CSV = "-s3-download-failures.csv";
+	public static final String FAILED_S3_DELETES_CSV = "-s3-delete-failures.csv";
+	// shared by the upload, download and delete failure logs, so that any of them can be fed back to retry or rm -l
+	public static final String FAILURE_LOG_CSV_HEADER_ROW =
 			"Bucket Name, Object Key, Local File Path, File Size, Error Message\n";
+
+	// sync index properties
+	public static final String SYNC_INDEX_DIR = AWSTOOLS_DIR_NAME + Env.FILE_SEPERATOR + "sync-index";
+
+	// small file packing properties
+	public static final String PACK_INDEX_CSV_HEADER_ROW = "Local File Path, Object Key, Archive Key, Offset, Length\n";
+
+	// bucket listing properties
+	public static final String LISTING_CSV_HEADER_ROW = "Object Key, Size, Last Modified, ETag, Storage Class\n";
+
+	// metrics export properties
+	public static final String METRICS_DIR = AWSTOOLS_DIR_NAME + Env.FILE_SEPERATOR + "metrics";
+
+	// run journal properties
+	public static final String JOURNALS_DIR = AWSTOOLS_DIR_NAME + Env.FILE_SEPERATOR + "journals";
+	public static final String RUN_JOURNAL_JSONL = "-run-journal.jsonl";
+
+	// daemon mode properties
+	public static final String JOBS_DIR = AWSTOOLS_DIR_NAME + Env.FILE_SEPERATOR + "jobs";
+
+	// multipart upload journal properties
+	public static final String UPLOAD_JOURNAL_FILE = AWSTOOLS_DIR_NAME + Env.FILE_SEPERATOR + "upload-journal.log";
+
+	/**
+	 * Returns the path, relative to the home directory, of a file of a run starting now, such as its failure log:
+	 * {@code <directory>/<date>-<time><suffix>}. Called as each operation starts, so that every command of a batch
+	 * or daemon gets files of its own.
+	 */
+	public static synchronized String newRunFile( String directory, String suffix ) {
+		return directory + Env.FILE_SEPERATOR + DateTimeUtil.dateSDF.format( System.currentTimeMillis() ) + "-" +
+				LocalTime.now().format( DateTimeFormatter.ofPattern( "HHmmss-SSS" ) ) + suffix;
+	}
 }
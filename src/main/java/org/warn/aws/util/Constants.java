@@ -10,19 +10,115 @@ public class Constants {
             "   aws-tools -- Client for managing AWS resources\n\n" +
             "SYNOPSIS\n" +
             "   [credentials] accessKey secretKey region\n" +
-            "   [s3] [put] bucketName [-f|-d|-l] fileOrDirectoryPath (s3PathPrefix)\n";
+            "   [s3] [put] bucketName [-f|-d|-l] fileOrDirectoryPath (s3PathPrefix) (--concurrency=N) (--adaptive) (--resume)\n" +
+            "       (--metrics) (--metrics-interval=S)\n" +
+            "       (--pack) (--pack-size=MB) (--pack-threshold=KB) (--compress=gzip|zstd) (--bandwidth=SCHEDULE)\n" +
+            "       (--fan-out=bucket[@region],...) (--dedup) (--prune)\n" +
+            "   [s3] [sync] bucketName [-d] directoryPath (s3PathPrefix) (--concurrency=N) (--adaptive) (--reconcile)\n" +
+            "       (--resume) (--metrics) (--metrics-interval=S) (--bandwidth=SCHEDULE)\n" +
+            "   [s3] [watch] bucketName [-d] directoryPath (s3PathPrefix) (--settle=S) (--scan-interval=S)\n" +
+            "       (--concurrency=N) (--metrics) (--metrics-interval=S) (--bandwidth=SCHEDULE)\n" +
+            "   [s3] [get] bucketName [-f|-d|-l] keyPrefixOrListing localPath (--concurrency=N) (--part-size=MB)\n" +
+            "       (--metrics) (--metrics-interval=S) (--bandwidth=SCHEDULE)\n" +
+            "   [s3] [ls] bucketName outputFile (s3PathPrefix) (--format=csv|jsonl|keys) (--compress=gzip)\n" +
+            "       (--delimiter=D) (--concurrency=N) (--metrics) (--metrics-interval=S)\n" +
+            "   [s3] [rm] bucketName [-f|-d|-l] keyPrefixOrListing (--dry-run) (--force) (--concurrency=N) (--metrics)\n" +
+            "       (--metrics-interval=S)\n" +
+            "   [s3] [retry] failedUploadsCsv (failedUploadsCsv...) (--concurrency=N) (--attempts=N) (--metrics)\n" +
+            "       (--metrics-interval=S) (--bandwidth=SCHEDULE)\n" +
+            "   [batch] commandFile (--flags applied to every command)\n" +
+            "   [daemon] (jobsDirectory) (--flags applied to every command)\n" +
+            "   [report] runJournalFile\n\n" +
+            "   Every command also takes (--engine=platform|virtual) (--threads=N) (--max-connections=N)\n" +
+            "       (--socket-buffer=KB)\n" +
+            "   put, sync, watch, get and retry also take (--journal)\n";
 
     public static final String COMMAND_CREDENTIALS = "credentials";
     public static final String COMMAND_S3 = "s3";
+    public static final String COMMAND_BATCH = "batch";
+    public static final String COMMAND_DAEMON = "daemon";
+    public static final String COMMAND_REPORT = "report";
 
     public static final String OPERATION_PUT = "put";
+    public static final String OPERATION_SYNC = "sync";
+    public static final String OPERATION_GET = "get";
+    public static final String OPERATION_RETRY = "retry";
+    public static final String OPERATION_WATCH = "watch";
+    public static final String OPERATION_LIST = "ls";
+    public static final String OPERATION_DELETE = "rm";
 
     public static final String OPTION_FILE = "-f";
     public static final String OPTION_DIRECTORY = "-d";
     public static final String OPTION_LIST = "-l";
 
+    public static final String FLAG_CONCURRENCY = "concurrency";
+    public static final String FLAG_RECONCILE = "reconcile";
+    public static final String FLAG_RESUME = "resume";
+    public static final String FLAG_ADAPTIVE = "adaptive";
+    public static final String FLAG_METRICS = "metrics";
+    public static final String FLAG_METRICS_INTERVAL = "metrics-interval";
+    public static final String FLAG_PACK = "pack";
+    public static final String FLAG_PACK_SIZE = "pack-size";
+    public static final String FLAG_PACK_THRESHOLD = "pack-threshold";
+    public static final String FLAG_PART_SIZE = "part-size";
+    public static final String FLAG_COMPRESS = "compress";
+    public static final String FLAG_BANDWIDTH = "bandwidth";
+    public static final String FLAG_ATTEMPTS = "attempts";
+    public static final String FLAG_SETTLE = "settle";
+    public static final String FLAG_SCAN_INTERVAL = "scan-interval";
+    public static final String FLAG_FAN_OUT = "fan-out";
+    public static final String FLAG_DEDUP = "dedup";
+    public static final String FLAG_ENGINE = "engine";
+    public static final String FLAG_THREADS = "threads";
+    public static final String FLAG_MAX_CONNECTIONS = "max-connections";
+    public static final String FLAG_SOCKET_BUFFER = "socket-buffer";
+    public static final String FLAG_FORMAT = "format";
+    public static final String FLAG_DELIMITER = "delimiter";
+    public static final String FLAG_PRUNE = "prune";
+    public static final String FLAG_JOURNAL = "journal";
+    public static final String FLAG_FORCE = "force";
+    public static final String FLAG_DRY_RUN = "dry-run";
+    public static final String FLAG_NO_VERIFY = "no-verify";
+
+    public static final String COMPRESSION_GZIP = "gzip";
+    public static final String COMPRESSION_ZSTD = "zstd";
+
+    public static final String ENGINE_PLATFORM = "platform";
+    public static final String ENGINE_VIRTUAL = "virtual";
+
+    public static final String LISTING_FORMAT_CSV = "csv";
+    public static final String LISTING_FORMAT_JSONL = "jsonl";
+    public static final String LISTING_FORMAT_KEYS = "keys";
+
+    public static final int DEFAULT_MAX_IN_FLIGHT_UPLOADS = 40;
+    public static final int MAX_ADAPTIVE_IN_FLIGHT_UPLOADS = 256;
+    public static final int PROGRESS_LOG_INTERVAL_SECONDS = 30;
+    public static final int DEFAULT_METRICS_INTERVAL_SECONDS = 15;
+    public static final long DEFAULT_MULTIPART_THRESHOLD = 100L * 1024 * 1024;
+    public static final long MIN_MULTIPART_THRESHOLD = 16L * 1024 * 1024;
+    public static final int DEFAULT_PACK_TARGET_SIZE_MB = 16;
+    public static final int DEFAULT_PACK_FILE_THRESHOLD_KB = 64;
+    public static final int MAX_IN_FLIGHT_PACK_ARCHIVES = 8;
+    public static final int DEFAULT_DOWNLOAD_PART_SIZE_MB = 64;
+    public static final int DEFAULT_RETRY_ATTEMPTS = 5;
+    public static final long RETRY_BASE_DELAY_MS = 1000;
+    public static final long RETRY_MAX_DELAY_MS = 60 * 1000;
+    public static final int DEFAULT_SETTLE_SECONDS = 2;
+    public static final int DEFAULT_SCAN_INTERVAL_SECONDS = 60;
+    public static final int DEFAULT_THREADS = 20;
+    public static final int DEFAULT_VIRTUAL_MAX_CONNECTIONS = 1024;
+
+    public static final String PACK_KEY_DIR = "_packs/";
+    public static final String PACK_ARCHIVE_SUFFIX = ".pack";
+    public static final String PACK_INDEX_SUFFIX = "index.csv";
+
+    public static final String JOB_FILE_SUFFIX = ".job";
+    public static final String JOB_DONE_SUFFIX = ".done";
+    public static final String JOB_FAILED_SUFFIX = ".failed";
+
     public static final String MSG_UNSUPPORTED_OPERATION = "Unsupported operation - ";
     public static final String MSG_UNSUPPORTED_OPTION = "Unsupported option - ";
+    public static final String MSG_INVALID_OPTION_VALUE = "Invalid option value - ";
     public static final String MSG_CONFIGURE_CREDENTIALS = "Please configure the AWS credentials";
     public static final String MSG_INVALID_FILEPATH = "Please provide a valid file or directory";
     public static final String MSG_INVALID_BUCKET_NAME = "Please provide a valid S3 bucket name";
@@ -31,6 +127,11 @@ public class Constants {
     public static final String MSG_INCORRECT_REGION = "Please configure correct region";
     public static final String MSG_NO_CONNECTIVITY = "Cannot connect to host. Please check internet connectivity";
 
-    public static final List<String> SUPPORTED_OPERATIONS_LIST = Arrays.asList( COMMAND_CREDENTIALS, OPERATION_PUT );
+    public static final List<String> SUPPORTED_OPERATIONS_LIST = Arrays.asList( COMMAND_CREDENTIALS, OPERATION_PUT,
+            OPERATION_SYNC, OPERATION_GET, OPERATION_RETRY, OPERATION_WATCH, OPERATION_LIST, OPERATION_DELETE );
     public static final List<String> SUPPORTED_OPTIONS_LIST = Arrays.asList( OPTION_FILE, OPTION_DIRECTORY, OPTION_LIST );
+    public static final List<String> SUPPORTED_COMPRESSIONS_LIST = Arrays.asList( COMPRESSION_GZIP, COMPRESSION_ZSTD );
+    public static final List<String> SUPPORTED_ENGINES_LIST = Arrays.asList( ENGINE_PLATFORM, ENGINE_VIRTUAL );
+    public static final List<String> SUPPORTED_LISTING_FORMATS_LIST = Arrays.asList( LISTING_FORMAT_CSV,
+            LISTING_FORMAT_JSONL, LISTING_FORMAT_KEYS );
 }
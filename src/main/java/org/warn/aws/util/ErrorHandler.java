@@ -7,15 +7,24 @@ import org.apache.commons.lang3.exception.ExceptionUtils;
 import org.warn.aws.s3.model.S3OperationRecord;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.net.UnknownHostException;
 import java.nio.file.Path;
-import java.util.List;
 
 @Slf4j
 public class ErrorHandler {
 
     public static void handleAmazonS3Exception(AmazonS3Exception e, String bucketName, String localFilePath,
-                                         Path initialPath, List<S3OperationRecord> failedUploads ) {
+                                         Path initialPath, FailureLog failedUploads ) {
+        handleAmazonS3Exception( e, bucketName, "N/A", localFilePath, -1, initialPath, failedUploads );
+    }
+
+    /**
+     * Records the failure of a single object, with the key and size needed to upload it again.
+     */
+    public static void handleAmazonS3Exception(AmazonS3Exception e, String bucketName, String key,
+                                         String localFilePath, long fileSize, Path initialPath,
+                                         FailureLog failedUploads ) {
         String errorMsg;
         switch( e.getErrorCode() ) {
             case "PermanentRedirect": // StatusCode: 301
@@ -38,36 +47,52 @@ public class ErrorHandler {
                 errorMsg = null;
         }
 
-        if( errorMsg != null ) {
-            System.err.println();
-            System.err.println( errorMsg );
-            System.exit(1); // no point continuing since all requests will fail due to above error
-        }
+        if( errorMsg != null )
+            abort( errorMsg ); // no point continuing since all requests will fail due to above error
 
         log.error( "Error during S3 upload - Key={}, StatusCode={}, ErrorCode={}",
                 initialPath, e.getStatusCode(), e.getErrorCode() );
-        failedUploads.add( new S3OperationRecord( bucketName, "N/A", localFilePath, -1, errorMsg ) );
+        failedUploads.add( new S3OperationRecord( bucketName, key, localFilePath, fileSize, e.getErrorMessage() ) );
     }
 
     public static void handleAmazonClientException(AmazonClientException e, String bucketName, String localFilePath,
-                                             Path initialPath, List<S3OperationRecord> failedUploads ) {
-        if( ExceptionUtils.indexOfType( e, UnknownHostException.class ) == 1 ) {
-            System.err.println();
-            System.err.println( Constants.MSG_NO_CONNECTIVITY );
-            System.exit(1);
-
-        } else if( ExceptionUtils.indexOfType( e, FileNotFoundException.class ) == 1 ) {
-            System.err.println();
-            System.err.println( Constants.MSG_INVALID_FILEPATH );
-            System.exit(1);
-        }
+                                             Path initialPath, FailureLog failedUploads ) {
+        handleAmazonClientException( e, bucketName, "N/A", localFilePath, -1, initialPath, failedUploads );
+    }
+
+    /**
+     * Records the failure of a single object, with the key and size needed to upload it again.
+     */
+    public static void handleAmazonClientException(AmazonClientException e, String bucketName, String key,
+                                             String localFilePath, long fileSize, Path initialPath,
+                                             FailureLog failedUploads ) {
+        if( ExceptionUtils.indexOfType( e, UnknownHostException.class ) == 1 )
+            abort( Constants.MSG_NO_CONNECTIVITY );
+        else if( ExceptionUtils.indexOfType( e, FileNotFoundException.class ) == 1 )
+            abort( Constants.MSG_INVALID_FILEPATH );
 
         log.error( "Error during S3 upload - key={}, Error={}", initialPath, e.getMessage() );
-        failedUploads.add( new S3OperationRecord( bucketName, "N/A", localFilePath, -1, e.getMessage() ) );
+        failedUploads.add( new S3OperationRecord( bucketName, key, localFilePath, fileSize, e.getMessage() ) );
+    }
+
+    /**
+     * Ends the process, or, when exit on error is disabled as in a batch, fails only the current command with a
+     * {@link CommandFailedException}.
+     */
+    private static void abort( String errorMsg ) {
+        if( !ValidationsUtil.isExitOnError() )
+            throw new CommandFailedException( errorMsg );
+        System.err.println();
+        System.err.println( errorMsg );
+        System.exit(1);
     }
 
     public static void handleInterruptedException( InterruptedException e, Path initialPath ) {
         Thread.currentThread().interrupt();
         log.error( "Error during S3 upload - Key={}, Message={}", initialPath, e.getMessage() );
     }
+
+    public static void handleIOException( IOException e, Path initialPath ) {
+        log.error( "Error reading local file - Path={}, Message={}", initialPath, e.getMessage() );
+    }
 }
@@ -0,0 +1,94 @@
+package org.warn.aws.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.warn.aws.s3.model.S3OperationRecord;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * CSV of the objects that failed to transfer. Records are written as failures happen and flushed one by one, so a
+ * crash loses none of them and memory use does not grow with the number of failures. The file is created with the
+ * first record. A log without a file only counts failures.
+ */
+@Slf4j
+public class FailureLog implements Closeable {
+
+    private final Path file;
+    private final AtomicInteger count = new AtomicInteger();
+    private Writer writer;
+
+    public FailureLog( Path file ) {
+        this.file = file;
+    }
+
+    public void add( S3OperationRecord record ) {
+        count.incrementAndGet();
+        if( file == null )
+            return;
+        synchronized( this ) {
+            try {
+                if( writer == null ) {
+                    Files.createDirectories( file.getParent() );
+                    boolean newFile = !Files.exists( file ) || Files.size( file ) == 0;
+                    writer = Files.newBufferedWriter( file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                            StandardOpenOption.APPEND );
+                    if( newFile )
+                        writer.write( ConfigConstants.FAILURE_LOG_CSV_HEADER_ROW );
+                }
+                writer.write( record.toCsvString( ConfigConstants.ERROR_LOGS_CSV_DELIMITER ) );
+                writer.flush();
+            } catch( IOException e ) {
+                log.error("Error writing failure record - file={}, key={}, Message={}",
+                        file, record.getKey(), e.getMessage());
+            }
+        }
+    }
+
+    public int size() {
+        return count.get();
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void close() {
+        if( writer == null )
+            return;
+        try {
+            writer.close();
+        } catch( IOException e ) {
+            log.error("Error closing failure log - file={}, Message={}", file, e.getMessage());
+        }
+        writer = null;
+    }
+
+    /**
+     * Reads the records of a failure log one at a time. Header rows, including those of runs appended to the same
+     * file, and malformed lines are skipped.
+     */
+    public static void read( Path file, Consumer<S3OperationRecord> consumer ) throws IOException {
+        String headerRow = ConfigConstants.FAILURE_LOG_CSV_HEADER_ROW.trim();
+        try( ManifestReader reader = new ManifestReader( file ) ) {
+            String line;
+            while( ( line = reader.readLine() ) != null ) {
+                if( line.equals( headerRow ) )
+                    continue;
+                try {
+                    consumer.accept( S3OperationRecord.fromCsvString( line, ConfigConstants.ERROR_LOGS_CSV_DELIMITER ) );
+                } catch( IllegalArgumentException e ) {
+                    log.warn("Skipping malformed failure record - file={}, line={}", file, line);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.warn.aws.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads a list file one line at a time through a fixed-size read buffer. Line bytes are collected in a reusable
+ * array, so the only allocation per line is the resulting {@code String}, and heap use does not depend on the
+ * length of the file. Blank lines are skipped and trailing carriage returns are removed; other whitespace is kept,
+ * since file names and keys may start or end with it.
+ */
+public class ManifestReader implements Closeable {
+
+    public interface LineHandler {
+        void onLine( String line ) throws InterruptedException;
+    }
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int INITIAL_LINE_BUFFER_SIZE = 1024;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect( READ_BUFFER_SIZE );
+    private byte[] lineBuffer = new byte[ INITIAL_LINE_BUFFER_SIZE ];
+    private int lineLength;
+    private boolean endOfFile;
+
+    public ManifestReader( Path path ) throws IOException {
+        this( FileChannel.open( path, StandardOpenOption.READ ) );
+    }
+
+    private ManifestReader( ReadableByteChannel channel ) {
+        this.channel = channel;
+        this.readBuffer.flip();
+    }
+
+    /**
+     * Opens a list file that may be gzipped, as recognized by its first bytes.
+     */
+    public static ManifestReader open( Path path ) throws IOException {
+        byte[] magic = new byte[2];
+        try( InputStream in = Files.newInputStream( path ) ) {
+            if( in.read( magic ) < magic.length || ( magic[0] & 0xff ) != 0x1f || ( magic[1] & 0xff ) != 0x8b )
+                return new ManifestReader( path );
+        }
+        return new ManifestReader( Channels.newChannel( new GZIPInputStream( Files.newInputStream( path ),
+                READ_BUFFER_SIZE ) ) );
+    }
+
+    /**
+     * Returns the next non-blank line, or {@code null} once the end of the file has been reached.
+     */
+    public String readLine() throws IOException {
+        while( true ) {
+            lineLength = 0;
+            boolean lineFound = false;
+            while( !lineFound ) {
+                if( !readBuffer.hasRemaining() && !fill() )
+                    break;
+                byte b = readBuffer.get();
+                if( b == '\n' )
+                    lineFound = true;
+                else
+                    append( b );
+            }
+            if( !lineFound && lineLength == 0 )
+                return null;
+            if( lineLength > 0 && lineBuffer[ lineLength - 1 ] == '\r' )
+                lineLength--;
+            if( !isBlank() )
+                return new String( lineBuffer, 0, lineLength, StandardCharsets.UTF_8 );
+        }
+    }
+
+    public void forEachLine( LineHandler handler ) throws IOException, InterruptedException {
+        String line;
+        while( ( line = readLine() ) != null )
+            handler.onLine( line );
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private boolean fill() throws IOException {
+        if( endOfFile )
+            return false;
+        readBuffer.clear();
+        int read;
+        do {
+            read = channel.read( readBuffer );
+        } while( read == 0 );
+        readBuffer.flip();
+        if( read < 0 ) {
+            endOfFile = true;
+            return false;
+        }
+        return true;
+    }
+
+    private void append( byte b ) {
+        if( lineLength == lineBuffer.length )
+            lineBuffer = Arrays.copyOf( lineBuffer, lineBuffer.length * 2 );
+        lineBuffer[ lineLength++ ] = b;
+    }
+
+    private boolean isBlank() {
+        for( int i = 0; i < lineLength; i++ ) {
+            if( lineBuffer[i] != ' ' && lineBuffer[i] != '\t' )
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,64 @@
+package org.warn.aws.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class OptionsUtil {
+
+    private static final String FLAG_PREFIX = "--";
+
+    public static String[] getPositionalArgs( String[] args ) {
+        List<String> positionalArgs = new ArrayList<>();
+        for( String arg: args ) {
+            if( !arg.startsWith( FLAG_PREFIX ) )
+                positionalArgs.add( arg );
+        }
+        return positionalArgs.toArray( new String[0] );
+    }
+
+    public static Map<String, String> getFlags( String[] args ) {
+        Map<String, String> flags = new HashMap<>();
+        for( String arg: args ) {
+            if( arg.startsWith( FLAG_PREFIX ) ) {
+                String flag = arg.substring( FLAG_PREFIX.length() );
+                int separatorIndex = flag.indexOf( '=' );
+                if( separatorIndex < 0 )
+                    flags.put( flag, Boolean.TRUE.toString() );
+                else
+                    flags.put( flag.substring( 0, separatorIndex ), flag.substring( separatorIndex + 1 ) );
+            }
+        }
+        return flags;
+    }
+
+    public static int getIntFlag( Map<String, String> flags, String name, int defaultValue ) {
+        String value = flags.get( name );
+        if( value == null )
+            return defaultValue;
+        try {
+            int intValue = Integer.parseInt( value );
+            if( intValue > 0 )
+                return intValue;
+        } catch( NumberFormatException e ) {
+            // handled below
+        }
+        ValidationsUtil.handleUnsupported( Constants.MSG_INVALID_OPTION_VALUE, FLAG_PREFIX + name + "=" + value );
+        return defaultValue;
+    }
+
+    /**
+     * Returns the value of a flag that must be one of the supported values, or null if the flag is not given.
+     */
+    public static String getStringFlag( Map<String, String> flags, String name, List<String> supportedValues ) {
+        String value = flags.get( name );
+        if( value != null && !supportedValues.contains( value ) )
+            ValidationsUtil.handleUnsupported( Constants.MSG_INVALID_OPTION_VALUE, FLAG_PREFIX + name + "=" + value );
+        return value;
+    }
+
+    public static boolean getBooleanFlag( Map<String, String> flags, String name ) {
+        return Boolean.parseBoolean( flags.get( name ) );
+    }
+}
@@ -4,8 +4,24 @@ import org.apache.commons.lang3.StringUtils;
 
 public class ValidationsUtil {
 
+    private static volatile boolean exitOnError = true;
+
+    /**
+     * When disabled, invalid arguments are reported with an {@link IllegalArgumentException} instead of ending the
+     * process, so that one bad command in a batch does not stop the others.
+     */
+    public static void setExitOnError( boolean exitOnError ) {
+        ValidationsUtil.exitOnError = exitOnError;
+    }
+
+    public static boolean isExitOnError() {
+        return exitOnError;
+    }
+
     public static void checkArgsLength( int argsLength, int expectedLength ) {
         if( argsLength < expectedLength ) {
+            if( !exitOnError )
+                throw new IllegalArgumentException( "Too few arguments" );
             System.out.println( Constants.USAGE );
             System.exit(1);
         }
@@ -22,6 +38,8 @@ public class ValidationsUtil {
 
     public static void checkIfBucketNameIsProvided( String bucketName ) {
         if( StringUtils.isEmpty(bucketName) ) {
+            if( !exitOnError )
+                throw new IllegalArgumentException( Constants.MSG_INVALID_BUCKET_NAME );
             System.out.println();
             System.err.println( Constants.MSG_INVALID_BUCKET_NAME );
             System.out.println( Constants.USAGE );
@@ -40,6 +58,8 @@ public class ValidationsUtil {
     }
 
     public static void handleUnsupported( String message, String operation ) {
+        if( !exitOnError )
+            throw new IllegalArgumentException( message + operation );
         System.out.println();
         System.err.println( message + operation );
         System.out.println();
@@ -0,0 +1,74 @@
+package org.warn.aws.s3.client;
+
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.Request;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+public class BandwidthLimiterTest extends TestCase {
+
+    private static final int MB = 1024 * 1024;
+
+    private final BandwidthLimiter bandwidthLimiter = new BandwidthLimiter();
+
+    @Override
+    protected void tearDown() {
+        bandwidthLimiter.close();
+    }
+
+    public void testUnlimitedWithoutSchedule() throws IOException {
+        bandwidthLimiter.start( () -> null );
+        assertEquals( 0, bandwidthLimiter.getLimitMbps() );
+        long start = System.nanoTime();
+        bandwidthLimiter.acquire( 100 * MB );
+        bandwidthLimiter.acquire( 100 * MB );
+        assertTrue( elapsedMillis( start ) < 100 );
+    }
+
+    public void testOneSecondOfBurstThenLimit() throws IOException {
+        bandwidthLimiter.start( () -> "80" ); // 10 MB/s
+        assertEquals( 80, bandwidthLimiter.getLimitMbps() );
+        long start = System.nanoTime();
+        bandwidthLimiter.acquire( 10 * MB );
+        assertTrue( elapsedMillis( start ) < 100 );
+        bandwidthLimiter.acquire( 5 * MB );
+        long elapsedMillis = elapsedMillis( start );
+        assertTrue( String.valueOf( elapsedMillis ), elapsedMillis >= 400 && elapsedMillis < 2000 );
+    }
+
+    public void testCloseRemovesLimit() {
+        bandwidthLimiter.start( () -> "100" );
+        bandwidthLimiter.close();
+        assertEquals( 0, bandwidthLimiter.getLimitMbps() );
+    }
+
+    public void testRequestBodiesThrottledOnlyWhileLimited() {
+        bandwidthLimiter.start( () -> "0" );
+        InputStream content = new ByteArrayInputStream( new byte[ 10 ] );
+        Request<PutObjectRequest> request = newRequest( content );
+        bandwidthLimiter.beforeRequest( request );
+        assertSame( content, request.getContent() );
+        bandwidthLimiter.close();
+
+        bandwidthLimiter.start( () -> "100" );
+        request = newRequest( content );
+        bandwidthLimiter.beforeRequest( request );
+        assertNotSame( content, request.getContent() );
+    }
+
+    private static Request<PutObjectRequest> newRequest( InputStream content ) {
+        Request<PutObjectRequest> request = new DefaultRequest<>(
+                new PutObjectRequest( "bucket", "logs/a.log", "unused" ), "Amazon S3" );
+        request.setContent( content );
+        return request;
+    }
+
+    private static long elapsedMillis( long startNanos ) {
+        return TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - startNanos );
+    }
+}
@@ -0,0 +1,115 @@
+package org.warn.aws.s3.client;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsResult;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import junit.framework.TestCase;
+import org.warn.aws.s3.metrics.TransferMetrics;
+import org.warn.aws.s3.model.S3OperationRecord;
+import org.warn.aws.util.FailureLog;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class BatchDeleterTest extends TestCase {
+
+    private Path failureLogFile;
+    private ExecutorService executorService;
+    private final TransferMetrics metrics = new TransferMetrics();
+    private final List<Integer> batchSizes = Collections.synchronizedList( new ArrayList<>() );
+
+    @Override
+    protected void setUp() throws IOException {
+        failureLogFile = Files.createTempFile( "batch-deleter-test", ".csv" );
+        executorService = Executors.newFixedThreadPool( 2 );
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        executorService.shutdownNow();
+        Files.deleteIfExists( failureLogFile );
+    }
+
+    public void testKeysAreDeletedInBatchesOfAThousand() throws Exception {
+        List<S3OperationRecord> failures = deleteKeys( 2500, request -> new DeleteObjectsResult(
+                Collections.emptyList() ) );
+        assertTrue( failures.isEmpty() );
+        Collections.sort( batchSizes );
+        assertEquals( 3, batchSizes.size() );
+        assertEquals( 500, (int) batchSizes.get( 0 ) );
+        assertEquals( 1000, (int) batchSizes.get( 2 ) );
+        assertEquals( 2500, metrics.getDeletes() );
+    }
+
+    public void testKeysS3CouldNotDeleteAreRecorded() throws Exception {
+        List<S3OperationRecord> failures = deleteKeys( 1500, request -> {
+            List<MultiObjectDeleteException.DeleteError> errors = new ArrayList<>();
+            for( DeleteObjectsRequest.KeyVersion keyVersion: request.getKeys() ) {
+                if( keyVersion.getKey().endsWith( "7" ) )
+                    errors.add( newDeleteError( keyVersion.getKey() ) );
+            }
+            throw new MultiObjectDeleteException( errors, Collections.emptyList() );
+        } );
+        assertEquals( 150, failures.size() );
+        for( S3OperationRecord failure: failures ) {
+            assertTrue( failure.getKey(), failure.getKey().endsWith( "7" ) );
+            assertEquals( "AccessDenied: Access Denied", failure.getErrorMessage() );
+        }
+        assertEquals( 1350, metrics.getDeletes() );
+    }
+
+    public void testEveryKeyOfAFailedRequestIsRecorded() throws Exception {
+        List<S3OperationRecord> failures = deleteKeys( 1500, request -> {
+            if( request.getKeys().size() == 500 )
+                throw new AmazonServiceException( "Slow Down" );
+            return new DeleteObjectsResult( Collections.emptyList() );
+        } );
+        assertEquals( 500, failures.size() );
+        assertEquals( "logs/key-01000", failures.get( 0 ).getKey() );
+        assertEquals( 1000, metrics.getDeletes() );
+    }
+
+    private interface DeleteObjects {
+        DeleteObjectsResult deleteObjects( DeleteObjectsRequest request );
+    }
+
+    private List<S3OperationRecord> deleteKeys( int count, DeleteObjects deleteObjects ) throws Exception {
+        AmazonS3 s3Client = (AmazonS3) Proxy.newProxyInstance( getClass().getClassLoader(),
+                new Class<?>[] { AmazonS3.class }, ( proxy, method, args ) -> {
+                    if( !method.getName().equals( "deleteObjects" ) )
+                        throw new UnsupportedOperationException( method.getName() );
+                    DeleteObjectsRequest request = (DeleteObjectsRequest) args[0];
+                    batchSizes.add( request.getKeys().size() );
+                    return deleteObjects.deleteObjects( request );
+                } );
+        FailureLog failedDeletes = new FailureLog( failureLogFile );
+        BatchDeleter batchDeleter = new BatchDeleter( s3Client, executorService, "bucket", key -> true, metrics,
+                failedDeletes, 2, false );
+        for( int i = 0; i < count; i++ )
+            batchDeleter.add( String.format( "logs/key-%05d", i ) );
+        batchDeleter.awaitCompletion();
+        failedDeletes.close();
+
+        List<S3OperationRecord> failures = new ArrayList<>();
+        FailureLog.read( failureLogFile, failures::add );
+        assertEquals( failures.size(), failedDeletes.size() );
+        return failures;
+    }
+
+    private static MultiObjectDeleteException.DeleteError newDeleteError( String key ) {
+        MultiObjectDeleteException.DeleteError error = new MultiObjectDeleteException.DeleteError();
+        error.setKey( key );
+        error.setCode( "AccessDenied" );
+        error.setMessage( "Access Denied" );
+        return error;
+    }
+}
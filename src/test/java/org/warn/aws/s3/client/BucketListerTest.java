@@ -0,0 +1,161 @@
+package org.warn.aws.s3.client;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+public class BucketListerTest extends TestCase {
+
+    private static final String EMOJI = new String( Character.toChars( 0x1F600 ) );
+
+    public void testCompareKeysOrdersPrefixesFirst() {
+        assertEquals( 0, BucketLister.compareKeys( "logs/a", "logs/a" ) );
+        assertTrue( BucketLister.compareKeys( "logs/a", "logs/ab" ) < 0 );
+        assertTrue( BucketLister.compareKeys( "logs/b", "logs/ab" ) > 0 );
+        assertTrue( BucketLister.compareKeys( "", "a" ) < 0 );
+    }
+
+    public void testCompareKeysByCodePoint() {
+        // String.compareTo puts the surrogate pair first, S3 lists it after U+FFFF
+        assertTrue( "a\uFFFF".compareTo( "a" + EMOJI ) > 0 );
+        assertTrue( BucketLister.compareKeys( "a\uFFFF", "a" + EMOJI ) < 0 );
+        assertTrue( BucketLister.compareKeys( "a" + EMOJI, "a\uFFFF" ) > 0 );
+        assertEquals( 0, BucketLister.compareKeys( "a" + EMOJI, "a" + EMOJI ) );
+    }
+
+    public void testGetKeyBeforeSkipsNoKey() {
+        String keyBefore = BucketLister.getKeyBefore( "logs/b" );
+        assertTrue( BucketLister.compareKeys( keyBefore, "logs/b" ) < 0 );
+        // keys below the shard stay below the StartAfter key, so only they are skipped
+        assertTrue( BucketLister.compareKeys( "logs/a", keyBefore ) < 0 );
+        assertTrue( BucketLister.compareKeys( "logs/a" + EMOJI, keyBefore ) < 0 );
+        assertTrue( BucketLister.compareKeys( "logs/azzz", keyBefore ) < 0 );
+    }
+
+    public void testGetKeyBeforeDropsLowestAndSurrogateChars() {
+        assertEquals( "logs/", BucketLister.getKeyBefore( "logs/\u0000" ) );
+        String keyBefore = BucketLister.getKeyBefore( "logs/" + EMOJI );
+        assertEquals( "logs/" + EMOJI.charAt( 0 ), keyBefore );
+        assertTrue( BucketLister.compareKeys( keyBefore, "logs/" + EMOJI ) < 0 );
+    }
+
+    public void testGetSplitKeysAscendPastLastKey() {
+        BucketLister bucketLister = newBucketLister( "logs/" );
+        List<String> splitKeys = bucketLister.getSplitKeys( "logs/a1", "logs/a5", null );
+        assertFalse( splitKeys.isEmpty() );
+        String previous = "logs/a5";
+        for( String splitKey: splitKeys ) {
+            assertTrue( splitKey, splitKey.startsWith( "logs/" ) );
+            assertTrue( splitKey, BucketLister.compareKeys( previous, splitKey ) < 0 );
+            previous = splitKey;
+        }
+    }
+
+    public void testGetSplitKeysStopAtUpperBound() {
+        BucketLister bucketLister = newBucketLister( "logs/" );
+        assertEquals( Arrays.asList( "logs/a:", "logs/a?", "logs/aI", "logs/a]", "logs/b", "logs/c" ),
+                bucketLister.getSplitKeys( "logs/a1", "logs/a5", "logs/d" ) );
+    }
+
+    public void testGetSplitKeysNeverLeaveThePrefix() {
+        BucketLister bucketLister = newBucketLister( "logs/" );
+        for( String splitKey: bucketLister.getSplitKeys( "logs/~1", "logs/~2", null ) )
+            assertTrue( splitKey, splitKey.startsWith( "logs/~" ) );
+    }
+
+    public void testListingErrorIsThrown() throws Exception {
+        AmazonS3 s3Client = newS3Client( () -> {
+            throw new IllegalStateException( "Connection pool shut down" );
+        } );
+        ExecutorService executorService = Executors.newFixedThreadPool( 2 );
+        try {
+            new BucketLister( s3Client, executorService, "bucket", "logs/", 2, shardNumber -> newSink() ).list( null );
+            fail();
+        } catch( IllegalStateException e ) {
+            // expected
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    public void testSinkErrorIsThrownAsIOException() throws Exception {
+        AmazonS3 s3Client = newS3Client( () -> {
+            ListObjectsV2Result result = new ListObjectsV2Result();
+            S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setKey( "logs/a" );
+            result.getObjectSummaries().add( summary );
+            return result;
+        } );
+        ExecutorService executorService = Executors.newFixedThreadPool( 2 );
+        try {
+            new BucketLister( s3Client, executorService, "bucket", "logs/", 1, shardNumber -> newFailingSink() )
+                    .list( null );
+            fail();
+        } catch( IOException e ) {
+            assertEquals( "No space left on device", e.getMessage() );
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    public void testRejectedShardIsAnError() throws Exception {
+        AmazonS3 s3Client = newS3Client( ListObjectsV2Result::new );
+        ExecutorService executorService = Executors.newFixedThreadPool( 2 );
+        executorService.shutdown();
+        try {
+            new BucketLister( s3Client, executorService, "bucket", "logs/", 2, shardNumber -> newSink() ).list( null );
+            fail();
+        } catch( RejectedExecutionException e ) {
+            // expected, rather than waiting for shards that never run
+        }
+    }
+
+    private static AmazonS3 newS3Client( Supplier<ListObjectsV2Result> listObjectsV2 ) {
+        return (AmazonS3) Proxy.newProxyInstance( BucketListerTest.class.getClassLoader(),
+                new Class<?>[] { AmazonS3.class }, ( proxy, method, args ) -> {
+                    if( !method.getName().equals( "listObjectsV2" ) )
+                        throw new UnsupportedOperationException( method.getName() );
+                    return listObjectsV2.get();
+                } );
+    }
+
+    private static BucketLister.ObjectSink newSink() {
+        return new BucketLister.ObjectSink() {
+            @Override
+            public void accept( S3ObjectSummary summary ) {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private static BucketLister.ObjectSink newFailingSink() {
+        return new BucketLister.ObjectSink() {
+            @Override
+            public void accept( S3ObjectSummary summary ) {
+                throw new UncheckedIOException( new IOException( "No space left on device" ) );
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    private static BucketLister newBucketLister( String prefix ) {
+        return new BucketLister( null, null, "bucket", prefix, 4, shardNumber -> null );
+    }
+}
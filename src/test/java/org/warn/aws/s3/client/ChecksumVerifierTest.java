@@ -0,0 +1,135 @@
+package org.warn.aws.s3.client;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.util.BinaryUtils;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class ChecksumVerifierTest extends TestCase {
+
+    private static final byte[] PART_1 = "first part".getBytes( StandardCharsets.US_ASCII );
+    private static final byte[] PART_2 = "second part".getBytes( StandardCharsets.US_ASCII );
+
+    private final ChecksumVerifier checksumVerifier = new ChecksumVerifier();
+
+    public void testSinglePutMatchesItsMd5() throws Exception {
+        send( new PutObjectRequest( "bucket", "logs/a.log", "unused" ), PART_1, new ObjectMetadata() );
+        assertNull( checksumVerifier.verify( "bucket", "logs/a.log", BinaryUtils.toHex( md5( PART_1 ) ) ) );
+    }
+
+    public void testSinglePutMismatch() throws Exception {
+        send( new PutObjectRequest( "bucket", "logs/a.log", "unused" ), PART_1, new ObjectMetadata() );
+        assertNotNull( checksumVerifier.verify( "bucket", "logs/a.log", BinaryUtils.toHex( md5( PART_2 ) ) ) );
+        // the digests are forgotten once verified
+        assertNull( checksumVerifier.verify( "bucket", "logs/a.log", BinaryUtils.toHex( md5( PART_2 ) ) ) );
+    }
+
+    public void testMultipartETagCombinesPartDigestsInPartOrder() throws Exception {
+        // parts complete in any order
+        send( newUploadPartRequest( 2 ), PART_2, new ObjectMetadata() );
+        send( newUploadPartRequest( 1 ), PART_1, new ObjectMetadata() );
+        String eTag = BinaryUtils.toHex( md5( concat( md5( PART_1 ), md5( PART_2 ) ) ) ) + "-2";
+        assertNull( checksumVerifier.verify( "bucket", "logs/a.log", eTag ) );
+
+        send( newUploadPartRequest( 2 ), PART_2, new ObjectMetadata() );
+        send( newUploadPartRequest( 1 ), PART_1, new ObjectMetadata() );
+        String swappedETag = BinaryUtils.toHex( md5( concat( md5( PART_2 ), md5( PART_1 ) ) ) ) + "-2";
+        assertNotNull( checksumVerifier.verify( "bucket", "logs/a.log", swappedETag ) );
+    }
+
+    public void testResumedUploadIsNotVerified() throws Exception {
+        // the first part was sent by an earlier run
+        send( newUploadPartRequest( 2 ), PART_2, new ObjectMetadata() );
+        assertNull( checksumVerifier.verify( "bucket", "logs/a.log", BinaryUtils.toHex( md5( PART_1 ) ) + "-2" ) );
+    }
+
+    public void testEncryptedObjectsAreNotVerified() throws Exception {
+        ObjectMetadata kms = new ObjectMetadata();
+        kms.setSSEAlgorithm( "aws:kms" );
+        send( new PutObjectRequest( "bucket", "logs/a.log", "unused" ), PART_1, kms );
+        assertNull( checksumVerifier.verify( "bucket", "logs/a.log", BinaryUtils.toHex( md5( PART_2 ) ) ) );
+
+        ObjectMetadata customerKey = new ObjectMetadata();
+        customerKey.setSSECustomerAlgorithm( "AES256" );
+        send( newUploadPartRequest( 1 ), PART_1, customerKey );
+        assertNull( checksumVerifier.verify( "bucket", "logs/a.log", BinaryUtils.toHex( md5( PART_2 ) ) + "-1" ) );
+
+        ObjectMetadata s3Key = new ObjectMetadata();
+        s3Key.setSSEAlgorithm( "AES256" );
+        send( new PutObjectRequest( "bucket", "logs/a.log", "unused" ), PART_1, s3Key );
+        assertNotNull( checksumVerifier.verify( "bucket", "logs/a.log", BinaryUtils.toHex( md5( PART_2 ) ) ) );
+    }
+
+    public void testETagsThatAreNoMd5AreNotVerified() throws Exception {
+        send( new PutObjectRequest( "bucket", "logs/a.log", "unused" ), PART_1, new ObjectMetadata() );
+        assertNull( checksumVerifier.verify( "bucket", "logs/a.log", "not-an-md5" ) );
+    }
+
+    public void testRetriedBodyIsDigestedOnce() throws Exception {
+        Request<PutObjectRequest> request = new DefaultRequest<>(
+                new PutObjectRequest( "bucket", "logs/a.log", "unused" ), "Amazon S3" );
+        request.setContent( new ByteArrayInputStream( PART_1 ) );
+        checksumVerifier.beforeRequest( request );
+        InputStream content = request.getContent();
+        content.mark( PART_1.length );
+        assertTrue( content.read( new byte[ 4 ] ) > 0 ); // a first attempt that failed part way
+        content.reset();
+        readFully( content );
+        checksumVerifier.afterResponse( request, new Response<>( new ObjectMetadata(), null ) );
+        assertNull( checksumVerifier.verify( "bucket", "logs/a.log", BinaryUtils.toHex( md5( PART_1 ) ) ) );
+    }
+
+    public void testDisabledVerifierLeavesRequestsAlone() throws Exception {
+        checksumVerifier.setEnabled( false );
+        Request<PutObjectRequest> request = new DefaultRequest<>(
+                new PutObjectRequest( "bucket", "logs/a.log", "unused" ), "Amazon S3" );
+        InputStream content = new ByteArrayInputStream( PART_1 );
+        request.setContent( content );
+        checksumVerifier.beforeRequest( request );
+        assertSame( content, request.getContent() );
+    }
+
+    private void send( AmazonWebServiceRequest originalRequest, byte[] body, ObjectMetadata result )
+            throws IOException {
+        Request<AmazonWebServiceRequest> request = new DefaultRequest<>( originalRequest, "Amazon S3" );
+        request.setContent( new ByteArrayInputStream( body ) );
+        checksumVerifier.beforeRequest( request );
+        readFully( request.getContent() );
+        checksumVerifier.afterResponse( request, new Response<>( result, null ) );
+    }
+
+    private static UploadPartRequest newUploadPartRequest( int partNumber ) {
+        return new UploadPartRequest().withBucketName( "bucket" ).withKey( "logs/a.log" ).withPartNumber( partNumber );
+    }
+
+    private static void readFully( InputStream in ) throws IOException {
+        byte[] buffer = new byte[ 3 ];
+        while( in.read( buffer ) > 0 ) {
+            // the verifier digests what is read
+        }
+    }
+
+    private static byte[] concat( byte[] first, byte[] second ) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write( first, 0, first.length );
+        out.write( second, 0, second.length );
+        return out.toByteArray();
+    }
+
+    private static byte[] md5( byte[] bytes ) throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance( "MD5" ).digest( bytes );
+    }
+}
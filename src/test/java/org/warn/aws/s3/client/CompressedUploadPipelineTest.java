@@ -0,0 +1,71 @@
+package org.warn.aws.s3.client;
+
+import junit.framework.TestCase;
+import org.warn.aws.s3.client.CompressedUploadPipeline.ChunksInputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+public class CompressedUploadPipelineTest extends TestCase {
+
+    private static final byte[] CHUNK_1 = { 1, 2, 3 };
+    private static final byte[] CHUNK_2 = {};
+    private static final byte[] CHUNK_3 = { 4, 5, 6, 7 };
+    private static final byte[] ALL = { 1, 2, 3, 4, 5, 6, 7 };
+
+    public void testChunksReadAsOneStream() {
+        assertTrue( Arrays.equals( ALL, readAll( newStream(), 2 ) ) );
+        assertTrue( Arrays.equals( ALL, readAll( newStream(), 100 ) ) );
+    }
+
+    public void testSingleByteReads() {
+        ChunksInputStream in = newStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int b;
+        while( ( b = in.read() ) >= 0 )
+            out.write( b );
+        assertTrue( Arrays.equals( ALL, out.toByteArray() ) );
+    }
+
+    public void testResetToStartReplaysEverything() {
+        ChunksInputStream in = newStream();
+        assertTrue( in.markSupported() );
+        in.mark( ALL.length );
+        readAll( in, 5 ); // a first attempt that failed after sending the whole body
+        in.reset();
+        assertTrue( Arrays.equals( ALL, readAll( in, 3 ) ) );
+    }
+
+    public void testResetToMarkWithinAChunk() {
+        ChunksInputStream in = newStream();
+        byte[] buffer = new byte[ 2 ];
+        assertEquals( 2, in.read( buffer, 0, buffer.length ) );
+        in.mark( ALL.length );
+        assertEquals( 1, in.read( buffer, 0, buffer.length ) ); // reads stop at the end of a chunk
+        assertEquals( 2, in.read( buffer, 0, buffer.length ) );
+        in.reset();
+        assertTrue( Arrays.equals( new byte[] { 3, 4, 5, 6, 7 }, readAll( in, 4 ) ) );
+    }
+
+    public void testAvailableCountsTheCurrentChunk() {
+        ChunksInputStream in = newStream();
+        assertEquals( 3, in.available() );
+        assertEquals( 3, in.read( new byte[ 3 ], 0, 3 ) );
+        assertEquals( 4, in.read( new byte[ 4 ], 0, 4 ) );
+        assertEquals( 0, in.available() );
+        assertEquals( -1, in.read( new byte[ 4 ], 0, 4 ) );
+    }
+
+    private static ChunksInputStream newStream() {
+        return new ChunksInputStream( Arrays.asList( CHUNK_1, CHUNK_2, CHUNK_3 ) );
+    }
+
+    private static byte[] readAll( ChunksInputStream in, int bufferSize ) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[ bufferSize ];
+        int read;
+        while( ( read = in.read( buffer, 0, buffer.length ) ) >= 0 )
+            out.write( buffer, 0, read );
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,92 @@
+package org.warn.aws.s3.client;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.transfer.Transfer;
+import com.amazonaws.services.s3.transfer.TransferManager;
+import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
+import junit.framework.TestCase;
+import org.warn.aws.s3.metrics.TransferMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class DeduplicatingUploaderTest extends TestCase {
+
+    private Path dir;
+    private TransferManager transferManager;
+    private UploadJournal uploadJournal;
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = Files.createTempDirectory( "deduplicating-uploader-test" );
+        uploadJournal = UploadJournal.open( dir.resolve( "upload-journal.log" ) );
+        // the source of a copy is looked up before the copy starts, and that lookup fails here
+        AmazonS3 s3 = (AmazonS3) Proxy.newProxyInstance( getClass().getClassLoader(), new Class<?>[] { AmazonS3.class },
+                ( proxy, method, args ) -> {
+                    switch( method.getName() ) {
+                        case "putObject":
+                            PutObjectResult result = new PutObjectResult();
+                            result.setETag( "etag" );
+                            return result;
+                        case "getObjectMetadata":
+                            throw new AmazonS3Exception( "Access Denied" );
+                        default:
+                            throw new UnsupportedOperationException( method.getName() );
+                    }
+                } );
+        transferManager = TransferManagerBuilder.standard().withS3Client( s3 ).build();
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        transferManager.shutdownNow( false );
+        uploadJournal.close();
+        try( Stream<Path> paths = Files.walk( dir ) ) {
+            paths.sorted( Comparator.reverseOrder() ).forEach( path -> path.toFile().delete() );
+        }
+    }
+
+    public void testCopyFailingToStartIsReported() throws Exception {
+        File first = writeFile( "a.log" );
+        File second = writeFile( "b.log" );
+        List<String> uploadedKeys = new ArrayList<>();
+        List<AmazonClientException> copyErrors = new ArrayList<>();
+        UploadPipeline pipeline = new UploadPipeline( transferManager, uploadJournal, new TransferMetrics(), 1,
+                false );
+        DeduplicatingUploader uploader = new DeduplicatingUploader( transferManager, pipeline, "bucket", null, 1,
+                ( key, file, upload ) -> {
+                    uploadedKeys.add( key );
+                    return upload.getState() == Transfer.TransferState.Completed;
+                },
+                ( key, file, sourceKey, error ) -> {
+                    assertEquals( "b.log", key );
+                    assertEquals( "a.log", sourceKey );
+                    copyErrors.add( error );
+                } );
+
+        uploader.submit( "a.log", first );
+        uploader.submit( "b.log", second );
+        uploader.awaitCompletion(); // used to wait forever for the copy that never started
+
+        assertEquals( 1, uploadedKeys.size() );
+        assertEquals( 1, copyErrors.size() );
+        assertTrue( copyErrors.get( 0 ) instanceof AmazonS3Exception );
+    }
+
+    private File writeFile( String name ) throws IOException {
+        Path file = dir.resolve( name );
+        Files.write( file, "same content".getBytes( StandardCharsets.US_ASCII ) );
+        return file.toFile();
+    }
+}
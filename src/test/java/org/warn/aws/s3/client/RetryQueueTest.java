@@ -0,0 +1,61 @@
+package org.warn.aws.s3.client;
+
+import junit.framework.TestCase;
+import org.warn.aws.s3.model.S3OperationRecord;
+
+import java.util.concurrent.TimeUnit;
+
+public class RetryQueueTest extends TestCase {
+
+    private static final long BASE_DELAY_MILLIS = 1000;
+    private static final long MAX_DELAY_MILLIS = 30_000;
+
+    private final RetryQueue retryQueue = new RetryQueue( BASE_DELAY_MILLIS, MAX_DELAY_MILLIS );
+
+    public void testFirstAttemptIsReadyAtOnce() {
+        retryQueue.add( newRecord( "logs/a.log" ), 1 );
+        RetryQueue.Attempt attempt = retryQueue.poll();
+        assertNotNull( attempt );
+        assertEquals( "logs/a.log", attempt.getRecord().getKey() );
+        assertEquals( 1, attempt.getNumber() );
+        assertTrue( retryQueue.isEmpty() );
+    }
+
+    public void testBackoffDoublesPerAttempt() {
+        assertEquals( 0, retryQueue.getMaxDelayMillis( 1 ) );
+        assertEquals( 1000, retryQueue.getMaxDelayMillis( 2 ) );
+        assertEquals( 2000, retryQueue.getMaxDelayMillis( 3 ) );
+        assertEquals( 4000, retryQueue.getMaxDelayMillis( 4 ) );
+        assertEquals( 16_000, retryQueue.getMaxDelayMillis( 6 ) );
+    }
+
+    public void testBackoffIsCapped() {
+        assertEquals( MAX_DELAY_MILLIS, retryQueue.getMaxDelayMillis( 7 ) );
+        assertEquals( MAX_DELAY_MILLIS, retryQueue.getMaxDelayMillis( 40 ) );
+        assertEquals( MAX_DELAY_MILLIS, retryQueue.getMaxDelayMillis( Integer.MAX_VALUE ) );
+    }
+
+    public void testDelaysStayWithinBackoff() throws InterruptedException {
+        RetryQueue shortDelays = new RetryQueue( 10, 40 );
+        long start = System.nanoTime();
+        for( int attemptNumber = 2; attemptNumber <= 10; attemptNumber++ )
+            shortDelays.add( newRecord( "logs/a.log" ), attemptNumber );
+        while( !shortDelays.isEmpty() )
+            shortDelays.take();
+        assertTrue( TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - start ) < 1000 );
+    }
+
+    public void testAttemptsComeBackInOrderOfReadiness() throws InterruptedException {
+        RetryQueue shortDelays = new RetryQueue( 20, 20 );
+        shortDelays.add( newRecord( "logs/later.log" ), 3 );
+        shortDelays.add( newRecord( "logs/now.log" ), 1 );
+        assertEquals( 2, shortDelays.size() );
+        assertEquals( "logs/now.log", shortDelays.take().getRecord().getKey() );
+        assertEquals( "logs/later.log", shortDelays.take().getRecord().getKey() );
+        assertTrue( shortDelays.isEmpty() );
+    }
+
+    private static S3OperationRecord newRecord( String key ) {
+        return new S3OperationRecord( "bucket", key, "/data/" + key, 10, "Slow Down" );
+    }
+}
@@ -0,0 +1,89 @@
+package org.warn.aws.s3.client;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+public class SyncIndexTest extends TestCase {
+
+    private Path dir;
+    private Path indexFile;
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = Files.createTempDirectory( "sync-index-test" );
+        indexFile = dir.resolve( "index" ).resolve( "sync.idx" );
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        try( Stream<Path> paths = Files.walk( dir ) ) {
+            paths.sorted( Comparator.reverseOrder() ).forEach( path -> path.toFile().delete() );
+        }
+    }
+
+    public void testMissingIndexIsEmpty() throws IOException {
+        assertTrue( SyncIndex.load( indexFile ).getPreviousEntries().isEmpty() );
+    }
+
+    public void testSaveAndReload() throws IOException {
+        SyncIndex syncIndex = SyncIndex.load( indexFile );
+        syncIndex.recordUpload( "logs/app.log", 10, 1000, "etag-1" );
+        syncIndex.recordUpload( "logs/line\nbreak \u00fc.log", 20, 2000, null );
+        syncIndex.save();
+
+        SyncIndex reloaded = SyncIndex.load( indexFile );
+        assertEquals( 2, reloaded.getPreviousEntries().size() );
+        assertEquals( new SyncIndex.Entry( 10, 1000, "etag-1" ), reloaded.getPreviousEntries().get( "logs/app.log" ) );
+        assertEquals( new SyncIndex.Entry( 20, 2000, null ),
+                reloaded.getPreviousEntries().get( "logs/line\nbreak \u00fc.log" ) );
+        assertTrue( reloaded.isUnchanged( "logs/app.log", 10, 1000 ) );
+        assertFalse( reloaded.isUnchanged( "logs/app.log", 10, 1001 ) );
+    }
+
+    public void testInterruptedSaveKeepsPreviousIndex() throws IOException {
+        SyncIndex syncIndex = SyncIndex.load( indexFile );
+        syncIndex.recordUpload( "logs/app.log", 10, 1000, "etag-1" );
+        syncIndex.save();
+        // a save cut short leaves only a partly written temporary file
+        Files.write( indexFile.resolveSibling( "sync.idx.tmp" ), "SYNC".getBytes( StandardCharsets.US_ASCII ) );
+
+        SyncIndex reloaded = SyncIndex.load( indexFile );
+        assertEquals( 1, reloaded.getPreviousEntries().size() );
+        assertTrue( reloaded.isUnchanged( "logs/app.log", 10, 1000 ) );
+        reloaded.save();
+        assertEquals( 1, SyncIndex.load( indexFile ).getPreviousEntries().size() );
+    }
+
+    public void testTruncatedIndexIsRejected() throws IOException {
+        SyncIndex syncIndex = SyncIndex.load( indexFile );
+        syncIndex.recordUpload( "logs/app.log", 10, 1000, "etag-1" );
+        syncIndex.save();
+        byte[] bytes = Files.readAllBytes( indexFile );
+        Files.write( indexFile, Arrays.copyOf( bytes, bytes.length - 3 ) );
+
+        try {
+            SyncIndex.load( indexFile );
+            fail();
+        } catch( IOException e ) {
+            // expected
+        }
+    }
+
+    public void testUnrecognizedIndexIsRejected() throws IOException {
+        Files.createDirectories( indexFile.getParent() );
+        Files.write( indexFile, "not a sync index".getBytes( StandardCharsets.US_ASCII ) );
+        try {
+            SyncIndex.load( indexFile );
+            fail();
+        } catch( IOException e ) {
+            // expected
+        }
+    }
+}
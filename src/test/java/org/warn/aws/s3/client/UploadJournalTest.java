@@ -0,0 +1,91 @@
+package org.warn.aws.s3.client;
+
+import com.amazonaws.services.s3.transfer.PersistableUpload;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+public class UploadJournalTest extends TestCase {
+
+    private static final String KEY = "logs/tab\tand\nline break.log";
+    private static final String LOCAL_FILE_PATH = "/data/logs/tab\tand\nline break.log";
+
+    private Path dir;
+    private Path journalFile;
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = Files.createTempDirectory( "upload-journal-test" );
+        journalFile = dir.resolve( "journal" ).resolve( "uploads.journal" );
+    }
+
+    @Override
+    protected void tearDown() throws IOException {
+        try( Stream<Path> paths = Files.walk( dir ) ) {
+            paths.sorted( Comparator.reverseOrder() ).forEach( path -> path.toFile().delete() );
+        }
+    }
+
+    public void testUnfinishedUploadsAreReloaded() throws IOException {
+        try( UploadJournal uploadJournal = UploadJournal.open( journalFile ) ) {
+            startUpload( uploadJournal, KEY, LOCAL_FILE_PATH );
+            startUpload( uploadJournal, "logs/done.log", "/data/logs/done.log" );
+            uploadJournal.recordFinished( "bucket", "logs/done.log" );
+        }
+
+        try( UploadJournal uploadJournal = UploadJournal.open( journalFile ) ) {
+            List<UploadJournal.Entry> pendingEntries = uploadJournal.getPendingEntries();
+            assertEquals( 1, pendingEntries.size() );
+            UploadJournal.Entry entry = pendingEntries.get( 0 );
+            assertEquals( "bucket", entry.getBucketName() );
+            assertEquals( KEY, entry.getKey() );
+            assertEquals( LOCAL_FILE_PATH, entry.getLocalFilePath() );
+            assertEquals( 100, entry.getFileSize() );
+            assertEquals( 200, entry.getLastModified() );
+            assertTrue( entry.getPersistableUpload().contains( "upload-" + KEY.length() ) );
+        }
+    }
+
+    public void testPartlyWrittenLinesAreSkipped() throws IOException {
+        try( UploadJournal uploadJournal = UploadJournal.open( journalFile ) ) {
+            startUpload( uploadJournal, KEY, LOCAL_FILE_PATH );
+        }
+        String startedLine = new String( Files.readAllBytes( journalFile ), StandardCharsets.UTF_8 );
+        // the process died while writing a second upload, then once within its upload state
+        String partialLines = "S\tbucket\n" + startedLine.replace( "bucket", "other-bucket" )
+                .substring( 0, startedLine.length() - 10 );
+        Files.write( journalFile, partialLines.getBytes( StandardCharsets.UTF_8 ), StandardOpenOption.APPEND );
+
+        try( UploadJournal uploadJournal = UploadJournal.open( journalFile ) ) {
+            assertEquals( 1, uploadJournal.getPendingEntries().size() );
+            assertEquals( "bucket", uploadJournal.getPendingEntries().get( 0 ).getBucketName() );
+        }
+        // reopening rewrote the journal without the partial lines
+        assertEquals( startedLine, new String( Files.readAllBytes( journalFile ), StandardCharsets.UTF_8 ) );
+    }
+
+    public void testPendingEntryIsTakenOnce() throws IOException {
+        try( UploadJournal uploadJournal = UploadJournal.open( journalFile ) ) {
+            startUpload( uploadJournal, KEY, LOCAL_FILE_PATH );
+        }
+
+        try( UploadJournal uploadJournal = UploadJournal.open( journalFile ) ) {
+            assertNull( uploadJournal.takePendingEntry( "bucket", "logs/other.log" ) );
+            assertEquals( KEY, uploadJournal.takePendingEntry( "bucket", KEY ).getKey() );
+            assertNull( uploadJournal.takePendingEntry( "bucket", KEY ) );
+        }
+    }
+
+    private static void startUpload( UploadJournal uploadJournal, String key, String localFilePath ) {
+        PersistableUpload persistableUpload = new PersistableUpload( "bucket", key, localFilePath,
+                "upload-" + key.length(), 5 * 1024 * 1024, 16 * 1024 * 1024 );
+        uploadJournal.newListener( "bucket", key, localFilePath, 100, 200 ).onPersistableTransfer( persistableUpload );
+    }
+}
@@ -0,0 +1,69 @@
+package org.warn.aws.s3.metrics;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class JournalReportTest extends TestCase {
+
+    private static final String LINE = "{\"op\":\"upload\",\"bucket\":\"bucket\",\"key\":\"logs/app.log\"," +
+            "\"size\":1024,\"start\":1000,\"end\":1250,\"queueWaitMicros\":50000,\"durationMicros\":250000," +
+            "\"parts\":1,\"retries\":0,\"bytesPerSec\":5120,\"thread\":\"pool-1\",\"outcome\":\"ok\",\"error\":null}";
+
+    public void testParseCompleteLine() {
+        assertTrue( JournalReport.parse( LINE, new JournalReport.Record() ) );
+    }
+
+    public void testParseSkipsFieldsWithinStrings() {
+        String line = LINE.replace( "logs/app.log", "logs/\\\"size\\\":1,\\\"parts\\\":2.log" );
+        assertTrue( JournalReport.parse( line, new JournalReport.Record() ) );
+    }
+
+    public void testParseRejectsPartlyWrittenLines() {
+        JournalReport.Record record = new JournalReport.Record();
+        int outcomeEnd = LINE.indexOf( ",\"error\"" ) - 1;
+        for( int length = 0; length < outcomeEnd; length++ )
+            assertFalse( LINE.substring( 0, length ), JournalReport.parse( LINE.substring( 0, length ), record ) );
+    }
+
+    public void testParseRejectsLineWithoutOutcome() {
+        assertFalse( JournalReport.parse( LINE.substring( 0, LINE.indexOf( ",\"outcome\"" ) ) + "}",
+                new JournalReport.Record() ) );
+    }
+
+    public void testParseRejectsMalformedNumbers() {
+        assertFalse( JournalReport.parse( LINE.replace( "\"size\":1024", "\"size\":10x4" ),
+                new JournalReport.Record() ) );
+    }
+
+    public void testParseRejectsOtherLines() {
+        assertFalse( JournalReport.parse( "", new JournalReport.Record() ) );
+        assertFalse( JournalReport.parse( "upload,bucket,logs/app.log", new JournalReport.Record() ) );
+    }
+
+    public void testJournalLinesParse() throws IOException {
+        Path journalFile = Files.createTempFile( "run-journal-test", ".jsonl" );
+        try {
+            RunJournal runJournal = new RunJournal( journalFile );
+            runJournal.finish( runJournal.start( RunJournal.OPERATION_UPLOAD, "bucket", "logs/a,\"b\"\n.log", 10 ),
+                    null );
+            runJournal.finish( runJournal.start( RunJournal.OPERATION_DOWNLOAD, "bucket", "logs/c.log", -1 ),
+                    new IOException( "Connection reset, \"retry\"" ) );
+            runJournal.close();
+
+            List<String> lines = Files.readAllLines( journalFile, StandardCharsets.UTF_8 );
+            assertEquals( 2, lines.size() );
+            for( String line: lines )
+                assertTrue( line, JournalReport.parse( line, new JournalReport.Record() ) );
+            // a run killed while writing leaves a partial last line, which is told apart from whole ones
+            String partialLine = lines.get( 1 ).substring( 0, lines.get( 1 ).indexOf( "\"parts\"" ) );
+            assertFalse( JournalReport.parse( partialLine, new JournalReport.Record() ) );
+        } finally {
+            Files.deleteIfExists( journalFile );
+        }
+    }
+}
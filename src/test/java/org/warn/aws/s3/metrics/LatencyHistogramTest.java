@@ -0,0 +1,60 @@
+package org.warn.aws.s3.metrics;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+public class LatencyHistogramTest extends TestCase {
+
+    public void testEmptyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals( 0, histogram.getCount() );
+        assertEquals( 0, histogram.getPercentileMicros( 0.5 ) );
+        assertEquals( 0.0, histogram.getMeanMicros(), 0.0 );
+    }
+
+    public void testSmallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for( int micros = 0; micros < 16; micros++ )
+            histogram.record( micros, TimeUnit.MICROSECONDS );
+        assertEquals( 7, histogram.getPercentileMicros( 0.5 ) );
+        assertEquals( 15, histogram.getPercentileMicros( 1.0 ) );
+    }
+
+    public void testPercentilesWithinBucketPrecision() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for( int millis = 1; millis <= 1000; millis++ )
+            histogram.record( millis, TimeUnit.MILLISECONDS );
+        assertEquals( 1000, histogram.getCount() );
+        assertWithin( 500_000, histogram.getPercentileMicros( 0.5 ) );
+        assertWithin( 990_000, histogram.getPercentileMicros( 0.99 ) );
+        assertEquals( 1_000_000, histogram.getPercentileMicros( 1.0 ) ); // never above the largest value
+        assertEquals( 1_000_000, histogram.getMaxMicros() );
+        assertEquals( 500_500.0, histogram.getMeanMicros(), 0.001 );
+    }
+
+    public void testOutlierOnlyMovesTheTail() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for( int i = 0; i < 99; i++ )
+            histogram.record( 20, TimeUnit.MILLISECONDS );
+        histogram.record( 30, TimeUnit.SECONDS );
+        assertWithin( 20_000, histogram.getPercentileMicros( 0.5 ) );
+        assertWithin( 20_000, histogram.getPercentileMicros( 0.99 ) );
+        assertEquals( 30_000_000, histogram.getPercentileMicros( 1.0 ) );
+    }
+
+    public void testBucketsCoverTheirValues() {
+        for( long value = 1; value < Long.MAX_VALUE / 3; value = value * 3 + 1 ) {
+            int index = LatencyHistogram.bucketIndex( value );
+            long upperBound = LatencyHistogram.bucketUpperBound( index );
+            assertTrue( value + " > " + upperBound, value <= upperBound );
+            assertTrue( value + " < " + upperBound, upperBound - value <= value / 16 );
+            if( index > 0 )
+                assertTrue( LatencyHistogram.bucketUpperBound( index - 1 ) < value );
+        }
+    }
+
+    private static void assertWithin( long expected, long actual ) {
+        assertTrue( expected + " != " + actual, Math.abs( actual - expected ) <= expected / 16 );
+    }
+}
@@ -0,0 +1,77 @@
+package org.warn.aws.s3.model;
+
+import junit.framework.TestCase;
+import org.warn.aws.util.ConfigConstants;
+
+public class S3ListingRecordTest extends TestCase {
+
+    private static final String DELIMITER = ConfigConstants.ERROR_LOGS_CSV_DELIMITER;
+
+    public void testCsvRoundTrip() {
+        S3ListingRecord record = newRecord( "logs/2020/app.log" );
+        assertEquals( record, S3ListingRecord.fromLine( toLine( record.toCsvString( DELIMITER ) ), DELIMITER ) );
+    }
+
+    public void testCsvRoundTripOfKeyWithDelimiterAndQuotes() {
+        S3ListingRecord record = newRecord( "reports/\"q1\", \"q2\",final.csv" );
+        assertEquals( record, S3ListingRecord.fromLine( toLine( record.toCsvString( DELIMITER ) ), DELIMITER ) );
+    }
+
+    public void testCsvRejectsKeyWithLineBreaks() {
+        // a CSV line cannot hold the key, and writing another key instead would make rm -l delete the wrong object
+        for( String key: new String[] { "a\nb", "a\rb" } ) {
+            try {
+                newRecord( key ).toCsvString( DELIMITER );
+                fail( key );
+            } catch( IllegalArgumentException e ) {
+                // expected
+            }
+        }
+    }
+
+    public void testCsvRoundTripWithoutETagAndStorageClass() {
+        S3ListingRecord record = new S3ListingRecord( "logs/empty", 0, "2020-01-01T00:00:00Z", null, null );
+        assertEquals( record, S3ListingRecord.fromLine( toLine( record.toCsvString( DELIMITER ) ), DELIMITER ) );
+    }
+
+    public void testJsonRoundTrip() {
+        S3ListingRecord record = newRecord( "logs/2020/app.log" );
+        assertEquals( record, S3ListingRecord.fromLine( toLine( record.toJsonString() ), DELIMITER ) );
+    }
+
+    public void testJsonRoundTripOfKeyWithDelimiterQuotesAndLineBreaks() {
+        S3ListingRecord record = newRecord( "reports/\"q1\",\tq2\\\nfinal\r\n.csv}" );
+        String json = record.toJsonString();
+        assertEquals( json.length() - 1, json.indexOf( '\n' ) );
+        assertEquals( record, S3ListingRecord.fromLine( toLine( json ), DELIMITER ) );
+    }
+
+    public void testJsonRoundTripWithoutETagAndStorageClass() {
+        S3ListingRecord record = new S3ListingRecord( "logs/empty", 0, "2020-01-01T00:00:00Z", null, null );
+        assertEquals( record, S3ListingRecord.fromLine( toLine( record.toJsonString() ), DELIMITER ) );
+    }
+
+    public void testPlainKey() {
+        S3ListingRecord record = S3ListingRecord.fromLine( "logs/2020/app.log", DELIMITER );
+        assertEquals( "logs/2020/app.log", record.getKey() );
+        assertEquals( -1, record.getSize() );
+    }
+
+    public void testJsonWithoutKeyIsRejected() {
+        try {
+            S3ListingRecord.fromLine( "{\"size\":12}", DELIMITER );
+            fail();
+        } catch( IllegalArgumentException e ) {
+            // expected
+        }
+    }
+
+    private static S3ListingRecord newRecord( String key ) {
+        return new S3ListingRecord( key, 1234, "2020-06-30T12:00:00Z", "d41d8cd98f00b204e9800998ecf8427e",
+                "STANDARD" );
+    }
+
+    private static String toLine( String record ) {
+        return record.substring( 0, record.length() - 1 );
+    }
+}